@@ -0,0 +1,112 @@
+/**
+ * Measures the board engines under load: placing letters at random cells from many threads at
+ * once, rendering the board, and both together.
+ * @file BoardBenchmark.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Placement and rendering for each engine and board size.  The board is put back to its
+ * starting state before every iteration, so each iteration sees the board fill up the same
+ * way.  Run with more threads (-t, or RunBenchmarks) to see how placements contend.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class BoardBenchmark {
+  /** Number of rows and columns on the board. */
+  @Param( { "16", "256", "2048" } )
+  int size;
+
+  /** Which engine to measure, as given to the server's -engine option. */
+  @Param( { "striped", "atomic", "chunked" } )
+  String engine;
+
+  /** The board every thread shares. */
+  private GameBoard board;
+
+  /**
+   * Makes the board.
+   */
+  @Setup( Level.Trial )
+  public void makeBoard() {
+    board = Boards.make( engine, Boards.template( size ) );
+  }
+
+  /**
+   * Clears the board before each iteration.
+   */
+  @Setup( Level.Iteration )
+  public void resetBoard() {
+    board.reset();
+  }
+
+  /**
+   * Places a random letter at a random cell.  Most attempts are refused until letters start
+   * to spread out from the starting spaces, just as in a real game.
+   * @return The points awarded
+   */
+  @Benchmark
+  public int place() {
+    return placeRandom();
+  }
+
+  /**
+   * Renders the whole board.
+   * @return The rendering
+   */
+  @Benchmark
+  public StringBuilder render() {
+    return renderBoard();
+  }
+
+  /**
+   * Places letters while another thread in the group renders the board.
+   * @return The points awarded
+   */
+  @Benchmark
+  @Group( "placeWhileRendering" )
+  @GroupThreads( 3 )
+  public int placer() {
+    return placeRandom();
+  }
+
+  /**
+   * Renders the board while the other threads in the group place letters.
+   * @return The rendering
+   */
+  @Benchmark
+  @Group( "placeWhileRendering" )
+  @GroupThreads( 1 )
+  public StringBuilder renderer() {
+    return renderBoard();
+  }
+
+  /**
+   * Places a random letter at a random cell.
+   * @return The points awarded
+   */
+  private int placeRandom() {
+    ThreadLocalRandom rand = ThreadLocalRandom.current();
+    return board.place( ( char ) ( 'a' + rand.nextInt( 26 ) ), rand.nextInt( size ),
+                        rand.nextInt( size ) );
+  }
+
+  /**
+   * Renders the board into a builder that's already big enough for it.
+   * @return The rendering
+   */
+  private StringBuilder renderBoard() {
+    StringBuilder out = new StringBuilder( size * ( size + 1 ) );
+    board.render( out );
+    return out;
+  }
+}
@@ -0,0 +1,49 @@
+/**
+ * Boards of any size for the benchmarks, laid out like the game's own board, so the engines
+ * can be measured on boards much bigger than the one in the input directory.
+ * @file Boards.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+/**
+ * Builds board templates and boards for the benchmarks.
+ */
+class Boards {
+  /**
+   * Makes a square template of open spaces, with starting spaces ('o'), double letter spaces
+   * (':') and walls ('#') scattered through it the way the game's board has them.  Rows and
+   * columns 0 to 2 never have anything but open spaces, so the benchmarks have cells near the
+   * edge with no letters around them.
+   * @param size Number of rows and columns
+   * @return The template, one array per row
+   */
+  static char[][] template( int size ) {
+    char[][] template = new char [ size ][ size ];
+    for ( int i = 0; i < size; i++ )
+      for ( int j = 0; j < size; j++ ) {
+        if ( i % 8 == 3 && j % 8 == 3 )
+          template[ i ][ j ] = 'o';
+        else if ( i % 8 == 6 && j % 8 == 6 )
+          template[ i ][ j ] = ':';
+        else if ( i % 8 == 5 && j % 8 == 7 )
+          template[ i ][ j ] = '#';
+        else
+          template[ i ][ j ] = '.';
+      }
+    return template;
+  }
+
+  /**
+   * Makes a board with one of the server's engines, the way the server does, with the game's
+   * own score sheet.
+   * @param engine "striped", "atomic" or "chunked", as given to the server's -engine option
+   * @param template Initial contents of the board
+   * @return The board
+   */
+  static GameBoard make( String engine, char[][] template ) {
+    int width = template.length == 0 ? 0 : template[ 0 ].length;
+    return Rules.newBoard( engine, new BoardTemplate( template, width ), Rules.scoreSheet(),
+                           null );
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Measures encrypting and decrypting messages with a session key, which the server does for
+ * every command and every reply.
+ * @file CryptoBenchmark.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One AES doFinal() per message, with the ciphers made once per session just as the server
+ * makes them, in each of the session modes: the old AES-ECB and the AES-GCM that clients ask
+ * for now.  Encrypting into a reused buffer is measured too, since that's what the server and
+ * client do, and so is a whole round trip through reused buffers.  A GCM message can only be
+ * decrypted once, with the nonce it was sent with, so decrypting is only measured as part of
+ * the round trip.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class CryptoBenchmark {
+  /** Size of the message being encrypted. */
+  @Param( { "16", "256", "4096" } )
+  int size;
+
+  /** Session mode, either "ecb" or "gcm". */
+  @Param( { "ecb", "gcm" } )
+  String mode;
+
+  /** The message. */
+  private byte[] msg;
+
+  /** The message in a buffer, and buffers for it encrypted and decrypted again. */
+  private ByteBuffer plain, sealed, opened;
+
+  /** Cipher objects for one direction of a session, one for each end. */
+  private SessionCipher AESEncrypter, AESDecrypter;
+
+  /**
+   * Makes the session key, ciphers and message.
+   */
+  @Setup( Level.Trial )
+  public void makeCiphers() throws GeneralSecurityException {
+    Random rand = new Random( 1 );
+    byte[] sessionKey = new byte [ 16 ];
+    rand.nextBytes( sessionKey );
+    boolean gcm = mode.equals( "gcm" );
+    AESEncrypter = new SessionCipher( Cipher.ENCRYPT_MODE, sessionKey, gcm,
+                                      SessionCipher.FROM_SERVER );
+    AESDecrypter = new SessionCipher( Cipher.DECRYPT_MODE, sessionKey, gcm,
+                                      SessionCipher.FROM_SERVER );
+
+    msg = new byte [ size ];
+    rand.nextBytes( msg );
+    plain = ByteBuffer.wrap( msg );
+    sealed = ByteBuffer.allocate( AESEncrypter.getOutputSize( size ) );
+    opened = ByteBuffer.allocate( size + 16 );
+  }
+
+  /**
+   * Encrypts one message into a new array.
+   * @return The encrypted message
+   */
+  @Benchmark
+  public byte[] encrypt() throws GeneralSecurityException {
+    return AESEncrypter.doFinal( msg );
+  }
+
+  /**
+   * Encrypts one message into a buffer that's reused for every message.
+   * @return The size of the encrypted message
+   */
+  @Benchmark
+  public int encryptIntoBuffer() throws GeneralSecurityException {
+    plain.clear();
+    sealed.clear();
+    return AESEncrypter.doFinal( plain, sealed );
+  }
+
+  /**
+   * Encrypts one message and decrypts it again, through buffers that are reused for every
+   * message.
+   * @return The size of the decrypted message
+   */
+  @Benchmark
+  public int roundTrip() throws GeneralSecurityException {
+    plain.clear();
+    sealed.clear();
+    AESEncrypter.doFinal( plain, sealed );
+    sealed.flip();
+    opened.clear();
+    return AESDecrypter.doFinal( sealed, opened );
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Measures the length-prefixed framing every message goes through, in memory, so the numbers
+ * don't include the network.
+ * @file FramingBenchmark.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Server.putMessage() and Server.getMessage() over byte array streams, for messages the size
+ * of a short reply, a board, and a large batch.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FramingBenchmark {
+  /** Size of the message being framed. */
+  @Param( { "16", "256", "4096" } )
+  int size;
+
+  /** The message. */
+  private byte[] msg;
+
+  /** Where putMessage() writes to, emptied before every message. */
+  private ByteArrayOutputStream sink;
+  private DataOutputStream output;
+
+  /** One framed message for getMessage() to read, rewound before every read. */
+  private ByteArrayInputStream source;
+  private DataInputStream input;
+
+  /**
+   * Makes the message and the streams.
+   */
+  @Setup( Level.Trial )
+  public void makeStreams() throws IOException {
+    msg = new byte [ size ];
+    new Random( 1 ).nextBytes( msg );
+
+    sink = new ByteArrayOutputStream( 4 + size );
+    output = new DataOutputStream( sink );
+
+    ByteArrayOutputStream framed = new ByteArrayOutputStream();
+    Server.putMessage( new DataOutputStream( framed ), msg );
+    source = new ByteArrayInputStream( framed.toByteArray() );
+    input = new DataInputStream( source );
+  }
+
+  /**
+   * Writes one message.
+   * @return Number of bytes written
+   */
+  @Benchmark
+  public int putMessage() throws IOException {
+    sink.reset();
+    Server.putMessage( output, msg );
+    return sink.size();
+  }
+
+  /**
+   * Reads one message.
+   * @return The message
+   */
+  @Benchmark
+  public byte[] getMessage() throws IOException {
+    source.reset();
+    return Server.getMessage( input );
+  }
+}
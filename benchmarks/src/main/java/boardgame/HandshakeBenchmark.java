@@ -0,0 +1,127 @@
+/**
+ * Measures the RSA challenge and session key exchange that every login goes through, and the
+ * cheaper one a user with a resumption ticket goes through instead.
+ * @file HandshakeBenchmark.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Both sides of the handshake in Server.handshake(), done in memory, using the same cipher
+ * helpers as the server: the challenge is made, encrypted by the client and checked, and then
+ * the session key is sent and recovered and the session's AES ciphers are made.  The users in
+ * the input directory have 512-bit keys, and bigger keys are measured for comparison.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class HandshakeBenchmark {
+  /** Size of the user's RSA key. */
+  @Param( { "512", "2048" } )
+  int keyBits;
+
+  /** The user's keys. */
+  private PublicKey publicKey;
+  private PrivateKey privateKey;
+
+  /** A ticket secret, for measuring resumed logins. */
+  private byte[] secret;
+
+  /** Issues the ticket a resumed login comes back with. */
+  private Tickets tickets = new Tickets();
+  private String ticket;
+
+  /**
+   * Makes a key pair for the user, and a ticket for them to resume with.
+   */
+  @Setup( Level.Trial )
+  public void makeKeys() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+    generator.initialize( keyBits );
+    KeyPair pair = generator.generateKeyPair();
+    publicKey = pair.getPublic();
+    privateKey = pair.getPrivate();
+    secret = Tickets.newSecret();
+    ticket = tickets.issue( "user", secret );
+  }
+
+  /**
+   * Runs one whole handshake.  Each thread reuses one RSA cipher for each direction, so each
+   * is fetched just before it's used, in the same order the two sides would use them.
+   * @return The client's cipher for encrypting with the session key
+   */
+  @Benchmark
+  public Cipher handshake() throws GeneralSecurityException {
+    // Server: make the challenge and session key.
+    Random rand = new Random();
+    byte[] challenge = new byte [ 16 ];
+    rand.nextBytes( challenge );
+    byte[] sessionKey = new byte [ 16 ];
+    rand.nextBytes( sessionKey );
+
+    // Client: encrypt the challenge with the private key.
+    byte[] encryptedChallenge =
+      Server.rsaCipher( Cipher.ENCRYPT_MODE, privateKey ).doFinal( challenge );
+
+    // Server: check the challenge and send the session key.
+    byte[] decryptedChallenge =
+      Server.rsaCipher( Cipher.DECRYPT_MODE, publicKey ).doFinal( encryptedChallenge );
+    if ( !Arrays.equals( decryptedChallenge, challenge ) )
+      throw new IllegalStateException( "Challenge didn't match" );
+    byte[] encryptedSessionKey =
+      Server.rsaCipher( Cipher.ENCRYPT_MODE, publicKey ).doFinal( sessionKey );
+
+    // Client: recover the session key.
+    byte[] decryptedKey =
+      Server.rsaCipher( Cipher.DECRYPT_MODE, privateKey ).doFinal( encryptedSessionKey );
+
+    // Both: make the AES ciphers for the session.
+    Server.aesCipher( Cipher.ENCRYPT_MODE, sessionKey );
+    Server.aesCipher( Cipher.DECRYPT_MODE, sessionKey );
+    Server.aesCipher( Cipher.DECRYPT_MODE, decryptedKey );
+    return Server.aesCipher( Cipher.ENCRYPT_MODE, decryptedKey );
+  }
+
+  /**
+   * Runs one resumed handshake, where the user comes back with a ticket instead of doing the
+   * RSA challenge.  It doesn't depend on the key size, so only compare it with handshake().
+   * @return The client's cipher for encrypting with the session key
+   */
+  @Benchmark
+  public Cipher resume() throws GeneralSecurityException {
+    // Server: open the ticket, and make the challenge and session key.
+    byte[] opened = tickets.open( ticket, "user" );
+    Random rand = new Random();
+    byte[] challenge = new byte [ 16 ];
+    rand.nextBytes( challenge );
+    byte[] sessionKey = new byte [ 16 ];
+    rand.nextBytes( sessionKey );
+
+    // Client: prove it has the secret.  Server: check the proof and send the session key.
+    byte[] proof = Tickets.prove( secret, challenge );
+    if ( !Tickets.check( opened, challenge, proof ) )
+      throw new IllegalStateException( "Proof didn't match" );
+    byte[] wrapped = Tickets.wrapKey( opened, sessionKey );
+
+    // Client: recover the session key.  Both: make the AES ciphers for the session.
+    byte[] decryptedKey = Tickets.unwrapKey( secret, wrapped );
+    Server.aesCipher( Cipher.ENCRYPT_MODE, sessionKey );
+    Server.aesCipher( Cipher.DECRYPT_MODE, sessionKey );
+    Server.aesCipher( Cipher.DECRYPT_MODE, decryptedKey );
+    return Server.aesCipher( Cipher.ENCRYPT_MODE, decryptedKey );
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Measures how the boards tell where a letter can go: refusing a placement on a cell no letter
+ * can ever go on, and listing the cells a letter can go on, as the moves command and the bots
+ * do.
+ * @file MoveBenchmark.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Both answers come from the board's index of legal moves, or for the chunked board, from the
+ * template for tiles nobody has played on.  The board is played on first, with a random letter
+ * at a random cell once for every cell, so letters have spread out from the starting spaces
+ * the way they do in a game.  Nothing is placed while measuring, so the board never changes.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class MoveBenchmark {
+  /** Most rows and columns listed by moves(), as a client's view of a big board would be. */
+  private static final int VIEW = 64;
+
+  /** Number of rows and columns on the board. */
+  @Param( { "16", "2048" } )
+  int size;
+
+  /** Which engine to measure, as given to the server's -engine option. */
+  @Param( { "striped", "atomic", "chunked" } )
+  String engine;
+
+  /** The board, played on before measuring starts. */
+  private GameBoard board;
+
+  /**
+   * Makes the board and plays on it.
+   */
+  @Setup( Level.Trial )
+  public void makeBoard() {
+    board = Boards.make( engine, Boards.template( size ) );
+    ThreadLocalRandom rand = ThreadLocalRandom.current();
+    for ( long i = ( long ) size * size; i > 0; i-- )
+      board.place( ( char ) ( 'a' + rand.nextInt( 26 ) ), rand.nextInt( size ),
+                   rand.nextInt( size ) );
+  }
+
+  /**
+   * Tries to place a letter on a wall, which no letter can ever go on.
+   * @return The points awarded, always 0
+   */
+  @Benchmark
+  public int refused() {
+    return board.place( 'a', 5, 7 );
+  }
+
+  /**
+   * Lists the cells a letter can go on in the top left corner of the board.
+   * @return How many there are
+   */
+  @Benchmark
+  public int moves() {
+    int[] count = new int [ 1 ];
+    int last = Math.min( size, VIEW ) - 1;
+    board.moves( 0, 0, last, last, ( row, col, cell ) -> count[ 0 ]++ );
+    return count[ 0 ];
+  }
+}
@@ -0,0 +1,38 @@
+/**
+ * Runs the JMH benchmarks once for each of several thread counts, so contention shows up as a
+ * curve instead of a single number.
+ * @file RunBenchmarks.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.Arrays;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Usage: RunBenchmarks [-threads 1,2,4,8] [JMH options and benchmark patterns]
+ */
+public class RunBenchmarks {
+  /**
+   * Runs the chosen benchmarks at each thread count in turn.
+   * @param args An optional list of thread counts, then anything JMH itself accepts
+   */
+  public static void main( String[] args ) throws Exception {
+    String counts = "1,2,4,8";
+    if ( args.length > 1 && args[ 0 ].equals( "-threads" ) ) {
+      counts = args[ 1 ];
+      args = Arrays.copyOfRange( args, 2, args.length );
+    }
+
+    Options given = new CommandLineOptions( args );
+    for ( String count : counts.split( "," ) ) {
+      System.out.println( "# Threads: " + count );
+      Options options = new OptionsBuilder().parent( given )
+        .threads( Integer.parseInt( count ) ).build();
+      new Runner( options ).run();
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * A lock-free board for the game. Every cell lives in one flat array, and a letter is placed
+ * with a single compare-and-set, so users never wait on each other to place letters.
+ * @file AtomicBoard.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Map;
+
+/**
+ * Board where placement is optimistic.  We check the neighbours, then try to swap the open
+ * space we saw for our letter.  Letters are never taken off the board during a game, so a
+ * neighbour that had a letter when we looked still has one when we swap.  If two users race
+ * for the same cell, exactly one compare-and-set succeeds and the other user is told the move
+ * is invalid.
+ *
+ * Which cells can take a letter is kept in a MoveIndex.  Without a lock, a letter landing next
+ * to a cell just as another one lands on it can leave the cell's bit set after it's taken, so
+ * the bit says a cell may take a letter, and the cell itself still has to be an open space.
+ * That's one more read, not four.
+ */
+public class AtomicBoard implements GameBoard {
+  /** Atomic access to individual cells of the board array. */
+  private static final VarHandle CELL = MethodHandles.arrayElementVarHandle( char[].class );
+
+  /** Original state of the board, for resetting at the start of a game. */
+  private char[][] template;
+
+  /** Current board, stored a row at a time in one array. */
+  private char[] cells;
+
+  /** The cells a letter may go on right now. */
+  private MoveIndex legal;
+
+  /** Number of rows and columns on the board. */
+  private int height, width;
+
+  /** Points for each letter from a to z, so scoring doesn't need a map lookup. */
+  private int[] letterPoints = new int [ 26 ];
+
+  /**
+   * Makes a new board in its initial state.
+   * @param template Initial contents of the board, one array per row
+   * @param width Number of columns on the board
+   * @param scoreSheet Points awarded for each letter
+   */
+  public AtomicBoard( char[][] template, int width, Map< Character, Integer > scoreSheet ) {
+    this.template = template;
+    this.height = template.length;
+    this.width = width;
+    cells = new char [ height * width ];
+    legal = new MoveIndex( height, width );
+
+    for ( char let = 'a'; let <= 'z'; let++ ) {
+      Integer points = scoreSheet.get( let );
+      letterPoints[ let - 'a' ] = points == null ? 0 : points;
+    }
+
+    reset();
+  }
+
+  /**
+   * Set the game board back to its initial state.
+   */
+  public void reset() {
+    for ( int i = 0; i < height; i++ )
+      for ( int j = 0; j < width; j++ )
+        CELL.setVolatile( cells, i * width + j, template[ i ][ j ] );
+
+    legal.clear();
+    for ( int i = 0; i < height; i++ )
+      for ( int j = 0; j < width; j++ ) {
+        char c = template[ i ][ j ];
+        if ( c == 'o' || ( isOpen( c ) && hasLetterNext( i, j ) ) )
+          legal.set( i, j );
+      }
+  }
+
+  /**
+   * Puts a letter back where it was placed before the server stopped.
+   * @param let The letter
+   * @param row The row it was placed in, on the board
+   * @param col The column it was placed in, on the board
+   */
+  public void restore( char let, int row, int col ) {
+    CELL.setVolatile( cells, row * width + col, let );
+    landed( let, row, col );
+  }
+
+  /**
+   * Attempts to place a letter on the board at a particular location, with a single
+   * compare-and-set on the cell.
+   * @param let The letter to place
+   * @param row The row the user wishes to place a letter
+   * @param col The column the user wishes to place a letter
+   * @return The points awarded for the letter, or 0 if it can't be placed there
+   */
+  public int place( char let, int row, int col ) {
+    if ( row < 0 || row >= height || col < 0 || col >= width || let < 'a' || let > 'z' )
+      return 0;
+    int points = letterPoints[ let - 'a' ];
+    if ( points == 0 )
+      return 0;
+
+    if ( !legal.get( row, col ) )
+      return 0;
+    int index = row * width + col;
+    char pos = ( char ) CELL.getAcquire( cells, index );
+    if ( pos == ':' )
+      points *= 2;
+    else if ( pos != '.' && pos != 'o' )
+      return 0;
+
+    // Only the first user to swap out the open space gets it.
+    if ( !CELL.compareAndSet( cells, index, pos, let ) )
+      return 0;
+    landed( let, row, col );
+    return points;
+  }
+
+  /**
+   * Brings the index up to date after a letter lands.  Its own cell can't take another
+   * letter, unless the letter is an 'o', which counts as a starting space like any other,
+   * and the open spaces around it now can.
+   * @param let The letter
+   * @param row The row it went in
+   * @param col The column it went in
+   */
+  private void landed( char let, int row, int col ) {
+    int index = row * width + col;
+    if ( let != 'o' )
+      legal.clear( row, col );
+    if ( row > 0 && isOpen( ( char ) CELL.getAcquire( cells, index - width ) ) )
+      legal.set( row - 1, col );
+    if ( row + 1 < height && isOpen( ( char ) CELL.getAcquire( cells, index + width ) ) )
+      legal.set( row + 1, col );
+    if ( col > 0 && isOpen( ( char ) CELL.getAcquire( cells, index - 1 ) ) )
+      legal.set( row, col - 1 );
+    if ( col + 1 < width && isOpen( ( char ) CELL.getAcquire( cells, index + 1 ) ) )
+      legal.set( row, col + 1 );
+  }
+
+  /**
+   * Reports whether a cell is an open space, which can take a letter once there's one next
+   * to it.
+   * @param c What's in the cell
+   * @return True for '.' and ':' spaces
+   */
+  private static boolean isOpen( char c ) {
+    return c == '.' || c == ':';
+  }
+
+  /**
+   * Checks the four cells around the given one for a letter, for working out the index when
+   * a game starts.
+   * @param row The row of the cell
+   * @param col The column of the cell
+   * @return True if there's a letter above, below, left or right of the cell
+   */
+  private boolean hasLetterNext( int row, int col ) {
+    int index = row * width + col;
+    return ( row > 0 && isLetter( index - width ) )
+      || ( row + 1 < height && isLetter( index + width ) )
+      || ( col > 0 && isLetter( index - 1 ) )
+      || ( col + 1 < width && isLetter( index + 1 ) );
+  }
+
+  /**
+   * Reports whether a cell holds a letter.
+   * @param index The cell's position in the array
+   * @return True if a letter has been placed there
+   */
+  private boolean isLetter( int index ) {
+    char c = ( char ) CELL.getAcquire( cells, index );
+    return c >= 'a' && c <= 'z';
+  }
+
+  /**
+   * Appends the contents of the board to the given builder, one line per row.  Letters placed
+   * while we're copying may or may not show up, but each cell is read atomically.
+   * @param out The builder to add the board to
+   */
+  public void render( StringBuilder out ) {
+    for ( int i = 0; i < height; i++ ) {
+      for ( int j = 0; j < width; j++ )
+        out.append( ( char ) CELL.getOpaque( cells, i * width + j ) );
+      out.append( "\n" );
+    }
+  }
+
+  /**
+   * Appends a rectangle of the board to the given builder, reading each cell atomically just
+   * as render() does.
+   * @param out The builder to add the rectangle to
+   * @param top The first row
+   * @param left The first column
+   * @param bottom The last row
+   * @param right The last column
+   */
+  public void render( StringBuilder out, int top, int left, int bottom, int right ) {
+    for ( int i = top; i <= bottom; i++ ) {
+      for ( int j = left; j <= right; j++ )
+        out.append( ( char ) CELL.getOpaque( cells, i * width + j ) );
+      out.append( "\n" );
+    }
+  }
+
+  /**
+   * Visits the cells in a rectangle that can take a letter, skipping any whose bit was left
+   * set by a race.
+   * @param top The first row
+   * @param left The first column
+   * @param bottom The last row
+   * @param right The last column
+   * @param visitor What to do with each cell
+   */
+  public void moves( int top, int left, int bottom, int right, MoveVisitor visitor ) {
+    legal.forEach( top, left, bottom, right, ( i, j ) -> {
+        char c = ( char ) CELL.getAcquire( cells, i * width + j );
+        if ( c == 'o' || isOpen( c ) )
+          visitor.visit( i, j, c );
+      } );
+  }
+}
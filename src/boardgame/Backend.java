@@ -0,0 +1,219 @@
+/**
+ * Serves the router, when this server is one of the backends in a cluster. The router logs
+ * users in and passes their commands on, so a backend only carries out commands and pushes
+ * board changes for the rooms the router has given it.
+ * @file Backend.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The backend end of the links described in Cluster.  Each link gets a thread of its own,
+ * which reads requests and carries them out with the server's execute() or executeBinary(),
+ * just as for a client of its own, and writes the replies straight back.  Board changes are
+ * written to the link by the subscription workers.  The link is trusted, so nothing on it is
+ * encrypted, and the user the router names is taken to be logged in.
+ */
+public class Backend {
+  /** The server whose game this is. */
+  private Server server;
+
+  /** The cluster key, which the router has to prove it has. */
+  private byte[] key;
+
+  /** Threads that serve the links. */
+  private ExecutorService links = Executors.newCachedThreadPool( r -> {
+      Thread t = new Thread( r, "cluster-link" );
+      t.setDaemon( true );
+      return t;
+    } );
+
+  /** The sending side of a user's link, where board changes for them are pushed. */
+  private static class Session implements Subscriptions.Subscriber {
+    // The link's output stream, shared by the link's thread and the subscription workers.
+    private DataOutputStream output;
+
+    // True if the user is using the binary protocol.
+    private boolean binary;
+
+    /**
+     * Makes the sending side of a link.
+     * @param output The link's output stream
+     * @param binary True if the user is using the binary protocol
+     */
+    Session( DataOutputStream output, boolean binary ) {
+      this.output = output;
+      this.binary = binary;
+    }
+
+    /**
+     * Sends a message to the router, with its kind in front.
+     * @param kind Cluster.REPLY or Cluster.EVENT
+     * @param msg The message, ready for reading
+     * @param flush True if the message should go out right away
+     */
+    void send( byte kind, ByteBuffer msg, boolean flush ) throws IOException {
+      synchronized ( output ) {
+        output.writeInt( 1 + msg.remaining() );
+        output.writeByte( kind );
+        output.write( msg.array(), msg.arrayOffset() + msg.position(), msg.remaining() );
+        if ( flush )
+          output.flush();
+      }
+    }
+
+    /**
+     * Sends a board change event to the router.  Binary clients get events as text messages.
+     * @param event The text of the event
+     * @param done To be run once the event has been written, or the link has failed
+     */
+    public void push( byte[] event, Runnable done ) {
+      try {
+        if ( binary )
+          send( Cluster.EVENT, ByteBuffer.allocate( 1 + event.length ).put( BinaryProtocol.TEXT )
+                .put( event ).flip(), true );
+        else
+          send( Cluster.EVENT, ByteBuffer.wrap( event ), true );
+      } catch ( IOException e ) {
+        // The link's own thread notices it's gone and lets go of the session.
+      } finally {
+        done.run();
+      }
+    }
+  }
+
+  /**
+   * Makes the backend side of a cluster for a server.
+   * @param server The server whose game this is
+   * @param key The cluster key
+   */
+  public Backend( Server server, byte[] key ) {
+    this.server = server;
+    this.key = key;
+  }
+
+  /**
+   * Takes links from the router, forever.
+   * @param port The cluster port to listen on
+   */
+  public void run( int port ) throws IOException {
+    ServerSocket serverSocket = new ServerSocket( port, Server.ACCEPT_BACKLOG );
+    while ( true ) {
+      try {
+        Socket sock = serverSocket.accept();
+        links.execute( () -> serve( sock ) );
+      } catch ( IOException e ) {
+        System.err.println( "Failure accepting router " + e );
+      }
+    }
+  }
+
+  /**
+   * Runs on a link's thread.  Checks the router has the cluster key, then serves the link
+   * until the router closes it.
+   * @param sock The link
+   */
+  private void serve( Socket sock ) {
+    try {
+      sock.setTcpNoDelay( true );
+      DataInputStream input = new DataInputStream( new BufferedInputStream( sock.getInputStream() ) );
+      DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream( sock.getOutputStream() ) );
+
+      // Anyone can reach the port, so they get a short time to prove who they are.
+      sock.setSoTimeout( Cluster.HELLO_TIMEOUT );
+      byte[] challenge = Tickets.newSecret();
+      Server.putMessage( output, challenge );
+      if ( !Tickets.check( key, challenge, Server.getMessage( input ) ) )
+        throw new GeneralSecurityException( "Bad cluster key from " + sock.getInetAddress() );
+      String hello[] = input.readUTF().split( " " );
+      sock.setSoTimeout( 0 );
+
+      if ( hello[ 0 ].equals( Cluster.CONTROL ) ) {
+        control( input, new Session( output, false ) );
+        return;
+      }
+      Server.UserRec rec = server.findUser( hello[ 0 ] );
+      if ( rec == null )
+        throw new IOException( "No such user " + hello[ 0 ] );
+      user( rec, input, new Session( output, Server.hasOption( hello, BinaryProtocol.OPTION ) ) );
+    } catch ( IOException e ) {
+      // The router closing the link is how a user leaves.
+    } catch ( GeneralSecurityException e ) {
+      System.err.println( "Encryption error: " + e );
+    } finally {
+      try {
+        sock.close();
+      } catch ( IOException e ) {
+      }
+    }
+  }
+
+  /**
+   * Carries out one user's commands until the router closes their link.
+   * @param rec The user
+   * @param input The link's input stream
+   * @param session The sending side of the link
+   */
+  private void user( Server.UserRec rec, DataInputStream input, Session session )
+    throws IOException {
+    server.metrics.activeSessions.increment();
+    ByteBuffer reply = ByteBuffer.allocate( 1024 );
+    try {
+      while ( true ) {
+        ByteBuffer request = ByteBuffer.wrap( Server.getMessage( input ) );
+        ByteBuffer answer;
+        if ( session.binary )
+          answer = reply = server.executeBinary( request, reply, rec, session );
+        else
+          answer = ByteBuffer.wrap( server.execute( new String( request.array() ), rec, session ) );
+
+        // Replies to requests the router has already sent can go out together.
+        session.send( Cluster.REPLY, answer, input.available() == 0 );
+      }
+    } finally {
+      server.leave( session );
+      server.metrics.activeSessions.decrement();
+    }
+  }
+
+  /**
+   * Carries out the router's own requests until it closes the link.
+   * @param input The link's input stream
+   * @param session The sending side of the link
+   */
+  private void control( DataInputStream input, Session session ) throws IOException {
+    while ( true ) {
+      String request = new String( Server.getMessage( input ) );
+      String reply;
+      if ( request.equals( "rooms" ) )
+        reply = server.roomTable();
+      else if ( request.startsWith( "export " ) )
+        reply = server.exportRoom( request.substring( 7 ) );
+      else if ( request.startsWith( "import " ) ) {
+        int end = request.indexOf( '\n' );
+        if ( end < 0 )
+          end = request.length();
+        server.importRoom( request.substring( 7, end ), request.substring( end ) );
+        reply = "imported\n";
+      } else if ( request.startsWith( "drop " ) ) {
+        server.dropRoom( request.substring( 5 ) );
+        reply = "dropped\n";
+      } else
+        reply = "Invalid Command\n";
+      session.send( Cluster.REPLY, ByteBuffer.wrap( reply.getBytes() ), true );
+    }
+  }
+}
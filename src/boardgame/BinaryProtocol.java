@@ -0,0 +1,261 @@
+/**
+ * A compact binary form of the board game's commands and replies. A client asks for it by
+ * sending "binary/1" after its username when it logs in; otherwise the server sticks to text.
+ * Messages are still encrypted with the session key, just as text ones are.
+ * @file BinaryProtocol.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Opcodes and encoding helpers shared by the Server and the Client.  Every message starts with
+ * a one-byte opcode.  Numbers are big-endian and fixed width, so messages can be built and
+ * taken apart in place, in buffers that are reused from one message to the next.
+ *
+ * Requests:
+ *   BOARD
+ *   PLACE letter(1) row(4) col(4)
+ *   BATCH count(4), then letter(1) row(4) col(4) for each letter
+ *   EXIT
+ *   TEXT utf-8 command, for any command without an opcode of its own
+ *
+ * Replies:
+ *   BOARD version(8) height(4) width(4), runs of cells as count(1) cell(1) in row order,
+ *         users(4), then name-length(1) name score(8) for each user
+ *   PLACE points(4), with 0 meaning the letter couldn't be placed
+ *   BATCH count(4), then points(4) for each letter
+ *   TEXT utf-8 text, for replies to TEXT commands and for pushed events
+ *   INVALID
+ */
+public class BinaryProtocol {
+  /** Version of the encoding described here.  Any change to it gets a new version. */
+  public static final int VERSION = 1;
+
+  /** Login option a client sends after its username to ask for this protocol. */
+  public static final String OPTION = "binary/" + VERSION;
+
+  /** Reply to a command that couldn't be understood. */
+  public static final byte INVALID = 0;
+
+  /** Show the board and scores. */
+  public static final byte BOARD = 1;
+
+  /** Place a letter. */
+  public static final byte PLACE = 2;
+
+  /** Place a group of letters as one transaction. */
+  public static final byte BATCH = 3;
+
+  /** Leave the game. */
+  public static final byte EXIT = 4;
+
+  /** A command or reply given as text. */
+  public static final byte TEXT = 127;
+
+  /** Size of a letter, row and column in a PLACE or BATCH request. */
+  public static final int MOVE_SIZE = 9;
+
+  /**
+   * Makes sure a buffer in writing mode has room for more bytes.
+   * @param buf The buffer
+   * @param needed How many more bytes need to fit
+   * @return The same buffer if there's room, or a bigger one holding what it had
+   */
+  public static ByteBuffer ensure( ByteBuffer buf, int needed ) {
+    if ( buf.remaining() >= needed )
+      return buf;
+    ByteBuffer bigger = ByteBuffer.allocate( Math.max( buf.capacity() * 2, buf.position() + needed ) );
+    buf.flip();
+    bigger.put( buf );
+    return bigger;
+  }
+
+  /**
+   * Encodes a rendering of the board, as made by GameBoard.render(), with the scores that go
+   * with it.
+   * @param version The version of the board
+   * @param rows The rendered board, one line per row
+   * @param names Each user's name
+   * @param scores Each user's score
+   * @return The BOARD reply
+   */
+  public static byte[] encodeBoard( long version, CharSequence rows, String[] names, long[] scores ) {
+    // Work out the shape of the board from the line breaks.
+    int height = 0, width = 0, lineStart = 0;
+    for ( int i = 0; i < rows.length(); i++ )
+      if ( rows.charAt( i ) == '\n' ) {
+        width = Math.max( width, i - lineStart );
+        lineStart = i + 1;
+        height++;
+      }
+
+    ByteBuffer out = ByteBuffer.allocate( 64 + 2 * height * width + 64 * names.length );
+    out.put( BOARD );
+    out.putLong( version );
+    out.putInt( height );
+    out.putInt( width );
+
+    // Runs of identical cells, which is most of a board.
+    char run = 0;
+    int count = 0;
+    for ( int i = 0; i < rows.length(); i++ ) {
+      char c = rows.charAt( i );
+      if ( c == '\n' )
+        continue;
+      if ( count == 255 || ( count > 0 && c != run ) ) {
+        out = ensure( out, 2 );
+        out.put( ( byte ) count ).put( ( byte ) run );
+        count = 0;
+      }
+      run = c;
+      count++;
+    }
+    if ( count > 0 ) {
+      out = ensure( out, 2 );
+      out.put( ( byte ) count ).put( ( byte ) run );
+    }
+
+    out = ensure( out, 4 );
+    out.putInt( names.length );
+    for ( int i = 0; i < names.length; i++ ) {
+      byte[] name = names[ i ].getBytes( StandardCharsets.UTF_8 );
+      out = ensure( out, 1 + name.length + 8 );
+      out.put( ( byte ) name.length ).put( name ).putLong( scores[ i ] );
+    }
+
+    byte[] image = new byte [ out.position() ];
+    out.flip();
+    out.get( image );
+    return image;
+  }
+
+  /**
+   * Encodes a text command in binary, using an opcode if it has one.
+   * @param request The command, as a user would type it
+   * @param out Buffer to put the request in, in writing mode
+   * @return The buffer holding the request, which may be a bigger one
+   */
+  public static ByteBuffer encode( String request, ByteBuffer out ) {
+    if ( request.equals( "board" ) ) {
+      out = ensure( out, 1 );
+      return out.put( BOARD );
+    }
+    if ( request.equals( "exit" ) ) {
+      out = ensure( out, 1 );
+      return out.put( EXIT );
+    }
+
+    if ( request.startsWith( "place" ) ) {
+      out = ensure( out, 1 + MOVE_SIZE );
+      int start = out.position();
+      if ( putMove( request, out.put( PLACE ) ) )
+        return out;
+      out.position( start );
+    }
+
+    if ( request.startsWith( "batch\n" ) ) {
+      String[] lines = request.split( "\n" );
+      out = ensure( out, 5 + MOVE_SIZE * ( lines.length - 1 ) );
+      int start = out.position();
+      out.put( BATCH ).putInt( lines.length - 1 );
+      boolean ok = true;
+      for ( int i = 1; ok && i < lines.length; i++ )
+        ok = putMove( lines[ i ], out );
+      if ( ok )
+        return out;
+      out.position( start );
+    }
+
+    // Anything we can't encode, the server can still read as text.
+    byte[] text = request.getBytes( StandardCharsets.UTF_8 );
+    out = ensure( out, 1 + text.length );
+    return out.put( TEXT ).put( text );
+  }
+
+  /**
+   * Encodes the letter, row and column of a place command.
+   * @param request The place command, as a user would type it
+   * @param out Buffer to put them in, with room for MOVE_SIZE bytes
+   * @return False if the command isn't a well-formed place command
+   */
+  private static boolean putMove( String request, ByteBuffer out ) {
+    String requestSplit[] = request.split( " " );
+    if ( requestSplit.length != 4 || !requestSplit[ 0 ].equals( "place" )
+         || requestSplit[ 1 ].length() != 1 || requestSplit[ 1 ].charAt( 0 ) > 0xFF )
+      return false;
+    try {
+      int row = Integer.parseInt( requestSplit[ 2 ] );
+      int col = Integer.parseInt( requestSplit[ 3 ] );
+      out.put( ( byte ) requestSplit[ 1 ].charAt( 0 ) ).putInt( row ).putInt( col );
+      return true;
+    } catch ( NumberFormatException e ) {
+      return false;
+    }
+  }
+
+  /**
+   * Turns a reply back into the text the server would have sent with the text protocol.
+   * @param reply The reply, ready for reading
+   * @return The text of the reply
+   */
+  public static String decode( ByteBuffer reply ) {
+    StringBuilder text = new StringBuilder();
+    byte op = reply.get();
+    switch ( op ) {
+      case BOARD: {
+        reply.getLong();
+        int height = reply.getInt();
+        int width = reply.getInt();
+        int col = 0;
+        for ( int cells = height * width; cells > 0; ) {
+          int count = reply.get() & 0xFF;
+          char c = ( char ) ( reply.get() & 0xFF );
+          cells -= count;
+          for ( ; count > 0; count-- ) {
+            text.append( c );
+            if ( ++col == width ) {
+              text.append( "\n" );
+              col = 0;
+            }
+          }
+        }
+        int users = reply.getInt();
+        for ( int i = 0; i < users; i++ ) {
+          byte[] name = new byte [ reply.get() & 0xFF ];
+          reply.get( name );
+          text.append( new String( name, StandardCharsets.UTF_8 ) + ": " + reply.getLong() + "\n" );
+        }
+        break;
+      }
+      case PLACE:
+        appendPoints( text, reply.getInt() );
+        break;
+      case BATCH:
+        for ( int count = reply.getInt(); count > 0; count-- )
+          appendPoints( text, reply.getInt() );
+        break;
+      case TEXT:
+        text.append( StandardCharsets.UTF_8.decode( reply ) );
+        break;
+      default:
+        text.append( "Invalid Command\n" );
+        break;
+    }
+    return text.toString();
+  }
+
+  /**
+   * Adds the text reply for a placement worth the given points.
+   * @param text Where to add the reply
+   * @param points Points awarded, or 0 if the letter couldn't be placed
+   */
+  private static void appendPoints( StringBuilder text, int points ) {
+    if ( points > 0 )
+      text.append( points + " points\n" );
+    else
+      text.append( "Invalid Command\n" );
+  }
+}
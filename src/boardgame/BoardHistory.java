@@ -0,0 +1,182 @@
+/**
+ * Keeps track of how the board has changed over a game. Every successful placement gets the
+ * next version number, so the server can reuse its last rendering of the board until something
+ * changes, and tell clients just what's changed since a version they've already seen.
+ * @file BoardHistory.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * Version counter, recent placements, and a cached rendering of the board.  None of it is
+ * locked.  Placements claim a version with an atomic increment and then publish their change
+ * in a ring buffer, and readers walk the ring from the version they want up to the newest one.
+ */
+public class BoardHistory {
+  /** Most recent placements we remember for building deltas, however big the board. */
+  private static final int CAPACITY = 4096;
+
+  /** One accepted placement. */
+  static class Change {
+    // Version of the board this placement produced.
+    final long version;
+
+    // Where the letter went, and what it was.
+    final int row, col;
+    final char let;
+
+    // The user who placed it.
+    final Server.UserRec rec;
+
+    /**
+     * Makes a record of an accepted placement.
+     * @param version Version of the board after this placement
+     * @param row Row the letter went in
+     * @param col Column the letter went in
+     * @param let The letter
+     * @param rec The user who placed it
+     */
+    Change( long version, int row, int col, char let, Server.UserRec rec ) {
+      this.version = version;
+      this.row = row;
+      this.col = col;
+      this.let = let;
+      this.rec = rec;
+    }
+  }
+
+  /** A rendering of the board, along with the version it was made from. */
+  private static class Image {
+    // Version that was current when rendering started.
+    final long version;
+
+    // The rendered board and scores.
+    final byte[] bytes;
+
+    /**
+     * Makes a cached rendering.
+     * @param version Version that was current when rendering started
+     * @param bytes The rendered board and scores
+     */
+    Image( long version, byte[] bytes ) {
+      this.version = version;
+      this.bytes = bytes;
+    }
+  }
+
+  /** Latest version handed out.  Version 0 is the board as the game started. */
+  private AtomicLong version = new AtomicLong();
+
+  /** Recent changes, with version v kept in slot v % capacity. */
+  private AtomicReferenceArray< Change > ring;
+
+  /** How many recent placements we remember. */
+  private int capacity;
+
+  /**
+   * Makes the history of a new game, remembering about as many placements as the board has
+   * cells, up to CAPACITY.  That's only a guide to how many a client is likely to be behind:
+   * a cell with an 'o' in it can take letters again, so a game can run to more placements
+   * than cells.  A client that's behind by more than we remember is told so by
+   * changesSince(), and gets the whole board instead.
+   * @param cells Number of cells on the board
+   */
+  public BoardHistory( long cells ) {
+    capacity = ( int ) Math.max( 1, Math.min( CAPACITY, cells ) );
+    ring = new AtomicReferenceArray< Change >( capacity );
+  }
+
+  /**
+   * The most recent rendering of the board in one particular form.  The server keeps one of
+   * these for each protocol it speaks.
+   */
+  public class Cache {
+    // Most recent rendering of the board.
+    private volatile Image cached;
+
+    /**
+     * Returns a rendering of the current board, making a new one only if the board has
+     * changed since the last one.  If several threads find the rendering out of date at once
+     * they each render, rather than waiting on each other.
+     * @param renderer Makes a fresh rendering of the board, given the version it's for
+     * @return The rendered board
+     */
+    public byte[] get( LongFunction< byte[] > renderer ) {
+      long v = version.get();
+      Image img = cached;
+      if ( img != null && img.version == v )
+        return img.bytes;
+
+      // Tag the new rendering with the version from before we started.  If a placement lands
+      // while we're rendering, the next request will see a newer version and render again.
+      byte[] bytes = renderer.apply( v );
+      cached = new Image( v, bytes );
+      return bytes;
+    }
+  }
+
+  /**
+   * Reports the latest version of the board.
+   * @return The version produced by the most recent placement
+   */
+  public long version() {
+    return version.get();
+  }
+
+  /**
+   * Records an accepted placement.  This must be called after the placement and its points
+   * are visible, so a rendering tagged with the new version is sure to include them.
+   * @param row Row the letter went in
+   * @param col Column the letter went in
+   * @param let The letter
+   * @param rec The user who placed it
+   * @return The new version of the board
+   */
+  public long record( int row, int col, char let, Server.UserRec rec ) {
+    long v = version.incrementAndGet();
+    ring.set( ( int ) ( v % capacity ), new Change( v, row, col, let, rec ) );
+    return v;
+  }
+
+  /**
+   * Makes a new, empty cache for renderings of the board.
+   * @return The cache
+   */
+  public Cache cache() {
+    return new Cache();
+  }
+
+  /**
+   * Passes every change after the given version, up to the given one, to an action, oldest
+   * first.
+   * @param since Version the caller already has
+   * @param upTo Newest version to report, normally from version()
+   * @param action What to do with each change
+   * @return False if some of those changes have already been forgotten
+   */
+  public boolean changesSince( long since, long upTo, Consumer< Change > action ) {
+    if ( since < 0 || since > upTo )
+      return false;
+    if ( upTo - since > capacity )
+      return false;
+
+    for ( long v = since + 1; v <= upTo; v++ ) {
+      Change c = ring.get( ( int ) ( v % capacity ) );
+
+      // A placement can claim its version just before it stores its change, so wait for it.
+      while ( c == null || c.version < v ) {
+        Thread.onSpinWait();
+        c = ring.get( ( int ) ( v % capacity ) );
+      }
+      if ( c.version != v )
+        return false;
+      action.accept( c );
+    }
+    return true;
+  }
+}
@@ -0,0 +1,249 @@
+/**
+ * The board as a game starts, read from board.txt. Rows are kept as runs of the same cell, and
+ * rows that are alike share their runs, so even a map of millions of cells takes little memory
+ * until letters are placed on it.
+ * @file BoardTemplate.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The starting contents of the board.  The first line of board.txt gives the number of rows
+ * and columns, and each line after that gives a row.  A row can be written out a cell at a
+ * time, as in the game's own board, or as runs of cells, where a count goes in front of a cell
+ * to repeat it.  For instance, "4.o4." is the same row as "....o....".  Rows can mix the two,
+ * since a cell with no count in front of it is just one cell.
+ */
+public class BoardTemplate {
+  /** A row, as runs of the same cell. */
+  private static class Row {
+    // Column just past the end of each run, in order.
+    final int[] ends;
+
+    // What's in the cells of each run.
+    final char[] cells;
+
+    /**
+     * Makes a row from its runs.
+     * @param ends Column just past the end of each run
+     * @param cells What's in the cells of each run
+     */
+    Row( int[] ends, char[] cells ) {
+      this.ends = ends;
+      this.cells = cells;
+    }
+
+    /**
+     * Finds the run holding a column.
+     * @param col The column
+     * @return Index of the run
+     */
+    int run( int col ) {
+      int lo = 0, hi = ends.length - 1;
+      while ( lo < hi ) {
+        int mid = ( lo + hi ) >>> 1;
+        if ( ends[ mid ] <= col )
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+      return lo;
+    }
+  }
+
+  /** Number of rows and columns on the board. */
+  private int height, width;
+
+  /** Each row of the board, with rows that are alike sharing one Row. */
+  private Row[] rows;
+
+  /**
+   * Makes a template from the cells of each row, as the benchmarks build them.
+   * @param cells Initial contents of the board, one array per row
+   * @param width Number of columns on the board
+   */
+  public BoardTemplate( char[][] cells, int width ) {
+    this.height = cells.length;
+    this.width = width;
+    rows = new Row [ height ];
+    Map< String, Row > seen = new HashMap< String, Row >();
+    for ( int i = 0; i < height; i++ )
+      rows[ i ] = share( seen, parseRow( new String( cells[ i ], 0, width ) ) );
+  }
+
+  /**
+   * Makes an empty template, for read() to fill in.
+   * @param height Number of rows on the board
+   * @param width Number of columns on the board
+   */
+  private BoardTemplate( int height, int width ) {
+    this.height = height;
+    this.width = width;
+    rows = new Row [ height ];
+  }
+
+  /**
+   * Reads a template from a board file.
+   * @param file The board file
+   * @return The template
+   */
+  public static BoardTemplate read( File file ) throws IOException {
+    try ( BufferedReader reader = new BufferedReader( new FileReader( file ) ) ) {
+      String first = reader.readLine();
+      String[] size = first == null ? new String [ 0 ] : first.trim().split( "\\s+" );
+      if ( size.length < 2 )
+        throw new IOException( file + " doesn't start with the size of the board" );
+
+      BoardTemplate template;
+      try {
+        template = new BoardTemplate( Integer.parseInt( size[ 0 ] ),
+                                      Integer.parseInt( size[ 1 ] ) );
+      } catch ( NumberFormatException e ) {
+        throw new IOException( file + " doesn't start with the size of the board" );
+      }
+
+      Map< String, Row > seen = new HashMap< String, Row >();
+      for ( int i = 0; i < template.height; i++ ) {
+        String line = reader.readLine();
+        if ( line == null )
+          throw new IOException( file + " has " + i + " rows, not " + template.height );
+        Row row = parseRow( line );
+        if ( row == null || row.ends[ row.ends.length - 1 ] != template.width )
+          throw new IOException( "Row " + i + " of " + file + " isn't "
+                                 + template.width + " cells" );
+        template.rows[ i ] = share( seen, row );
+      }
+      return template;
+    }
+  }
+
+  /**
+   * Turns a line of a board file into runs.  Neighbouring runs of the same cell are joined.
+   * @param line The row, cell by cell or as runs
+   * @return The row, or null if a count has no cell after it
+   */
+  private static Row parseRow( String line ) {
+    int[] ends = new int [ 8 ];
+    char[] cells = new char [ 8 ];
+    int runs = 0, col = 0, count = -1;
+    for ( int i = 0; i < line.length(); i++ ) {
+      char c = line.charAt( i );
+      if ( c >= '0' && c <= '9' ) {
+        count = Math.max( count, 0 ) * 10 + ( c - '0' );
+        continue;
+      }
+
+      col += count < 0 ? 1 : count;
+      count = -1;
+      if ( runs > 0 && cells[ runs - 1 ] == c ) {
+        ends[ runs - 1 ] = col;
+        continue;
+      }
+      if ( runs == ends.length ) {
+        ends = Arrays.copyOf( ends, runs * 2 );
+        cells = Arrays.copyOf( cells, runs * 2 );
+      }
+      ends[ runs ] = col;
+      cells[ runs ] = c;
+      runs++;
+    }
+    if ( count >= 0 || runs == 0 )
+      return null;
+    return new Row( Arrays.copyOf( ends, runs ), Arrays.copyOf( cells, runs ) );
+  }
+
+  /**
+   * Finds a row that's the same as the given one, so only one copy is kept.
+   * @param seen Rows so far, by their runs
+   * @param row The row just read
+   * @return The row to keep
+   */
+  private static Row share( Map< String, Row > seen, Row row ) {
+    StringBuilder key = new StringBuilder();
+    for ( int r = 0; r < row.ends.length; r++ )
+      key.append( row.ends[ r ] ).append( row.cells[ r ] );
+    return seen.computeIfAbsent( key.toString(), k -> row );
+  }
+
+  /**
+   * Reports the number of rows.
+   * @return The height of the board
+   */
+  public int height() {
+    return height;
+  }
+
+  /**
+   * Reports the number of columns.
+   * @return The width of the board
+   */
+  public int width() {
+    return width;
+  }
+
+  /**
+   * Gets what a cell starts the game as.
+   * @param row The row, on the board
+   * @param col The column, on the board
+   * @return The cell
+   */
+  public char get( int row, int col ) {
+    Row r = rows[ row ];
+    return r.cells[ r.run( col ) ];
+  }
+
+  /**
+   * Copies part of a row into an array.
+   * @param row The row, on the board
+   * @param col The first column to copy
+   * @param dest Where to copy the cells to
+   * @param off Where in dest the first cell goes
+   * @param len How many cells to copy, all of them on the board
+   */
+  public void copy( int row, int col, char[] dest, int off, int len ) {
+    Row r = rows[ row ];
+    int end = col + len;
+    for ( int run = r.run( col ); col < end; run++ ) {
+      int stop = Math.min( end, r.ends[ run ] );
+      Arrays.fill( dest, off, off + stop - col, r.cells[ run ] );
+      off += stop - col;
+      col = stop;
+    }
+  }
+
+  /**
+   * Appends part of a row to the given builder.
+   * @param out The builder to add the cells to
+   * @param row The row, on the board
+   * @param col The first column to add
+   * @param len How many cells to add, all of them on the board
+   */
+  public void append( StringBuilder out, int row, int col, int len ) {
+    Row r = rows[ row ];
+    int end = col + len;
+    for ( int run = r.run( col ); col < end; run++ ) {
+      int stop = Math.min( end, r.ends[ run ] );
+      for ( ; col < stop; col++ )
+        out.append( r.cells[ run ] );
+    }
+  }
+
+  /**
+   * Writes the whole template out a cell at a time, for the boards that keep every cell.
+   * @return The cells of each row
+   */
+  public char[][] toArray() {
+    char[][] cells = new char [ height ][ width ];
+    for ( int i = 0; i < height; i++ )
+      copy( i, 0, cells[ i ], 0, width );
+    return cells;
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Players the server runs itself, to fill out a game. Each bot asks the move search for the
+ * best placements and makes one of them, every so often, just as a user would with place.
+ * @file Bots.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A group of bots playing in one room.  Bots don't log in, so they have records of their own
+ * that aren't in the user directory, and they place letters straight on the room's board.
+ * Each bot picks at random among the best few moves, so bots don't all pile onto the same
+ * cell, and a move someone else took first is just skipped until the bot's next turn.
+ */
+public class Bots {
+  /** Milliseconds between a bot's moves if no time is given. */
+  public static final long DEFAULT_DELAY = 1000;
+
+  /** Name of the room bots play in if none is given. */
+  public static final String DEFAULT_ROOM = "bots";
+
+  /** How many of the best moves a bot picks from. */
+  private static final int CHOICES = 4;
+
+  /** The room the bots play in. */
+  private Room room;
+
+  /** Finds the moves. */
+  private MoveSearch search;
+
+  /** Where placements are counted. */
+  private Metrics metrics;
+
+  /** Thread that gives the bots their turns. */
+  private ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor( r -> {
+      Thread t = new Thread( r, "bots" );
+      t.setDaemon( true );
+      return t;
+    } );
+
+  /**
+   * Starts a group of bots, named bot1, bot2 and so on.  Their first moves are spread out
+   * over one delay, so they don't all move at once.
+   * @param count How many bots to start
+   * @param room The room they play in
+   * @param search Finds their moves
+   * @param metrics Where to count their placements
+   * @param delay Milliseconds between each bot's moves
+   */
+  public Bots( int count, Room room, MoveSearch search, Metrics metrics, long delay ) {
+    this.room = room;
+    this.search = search;
+    this.metrics = metrics;
+    for ( int i = 1; i <= count; i++ ) {
+      Server.UserRec bot = new Server.UserRec( "bot" + i, null );
+      room.score( bot );
+      timer.scheduleWithFixedDelay( () -> move( bot ),
+                                    ThreadLocalRandom.current().nextLong( Math.max( 1, delay ) ),
+                                    Math.max( 1, delay ), TimeUnit.MILLISECONDS );
+    }
+  }
+
+  /**
+   * Has a bot make one of the best moves on the board, if there are any.
+   * @param bot The bot
+   */
+  private void move( Server.UserRec bot ) {
+    if ( room.height() == 0 || room.width() == 0 )
+      return;
+    MoveSearch.Result found = search.search( room.board, 0, 0, room.height() - 1,
+                                             room.width() - 1, CHOICES );
+    if ( found.moves.length == 0 )
+      return;
+
+    // Only pick among the moves worth as much as the best one.
+    int best = 1;
+    while ( best < found.moves.length && found.moves[ best ].points == found.moves[ 0 ].points )
+      best++;
+    MoveSearch.Move m = found.moves[ ThreadLocalRandom.current().nextInt( best ) ];
+
+    int points = room.place( bot, m.let, m.row, m.col );
+    metrics.placed( points );
+    if ( points > 0 )
+      room.subscriptions.changed();
+  }
+}
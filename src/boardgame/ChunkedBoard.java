@@ -0,0 +1,360 @@
+/**
+ * A board for very large maps. The board is split into square tiles, and a tile only gets
+ * cells of its own once a letter is placed on it, so memory goes with how much of the map has
+ * been played on rather than how big it is.
+ * @file ChunkedBoard.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Board where every tile starts out as the template, and is copied out the first time a
+ * letter goes on it.  Placement is lock-free, as it is on the AtomicBoard: we check the cell
+ * and its neighbours, then compare-and-set the open space we saw for our letter.  Two users
+ * copying out the same tile at once race to install it, and the loser uses the winner's copy.
+ * Resetting the board just forgets the tiles.
+ *
+ * Each tile that's been copied out keeps a bit for each of its cells that may take a letter,
+ * one word per row of the tile, as the MoveIndex does for the other boards.  A letter landing
+ * at the edge of a tile copies out the tile next to it if the cell across the edge is an open
+ * space, so it can set that cell's bit.  A tile nobody has copied out has no letters on it or
+ * next to it, so its cells are checked against the template as they always were.  As on the
+ * AtomicBoard, a bit can be left set by a race, so a cell also has to be an open space.
+ */
+public class ChunkedBoard implements GameBoard {
+  /** Atomic access to individual cells of a tile. */
+  private static final VarHandle CELL = MethodHandles.arrayElementVarHandle( char[].class );
+
+  /** Atomic access to the words of a tile's move bits. */
+  private static final VarHandle WORD = MethodHandles.arrayElementVarHandle( long[].class );
+
+  /** Tiles are TILE cells on a side. */
+  private static final int TILE_BITS = 6, TILE = 1 << TILE_BITS;
+
+  /** A tile that's been played on, or next to. */
+  private static class Tile {
+    // The tile's cells, a row at a time.
+    final char[] cells = new char [ TILE * TILE ];
+
+    // A bit for each cell that may take a letter, one word for each row, since tiles are 64
+    // cells wide.
+    final long[] moves = new long [ TILE ];
+  }
+
+  /** Original state of the board, for the tiles nobody has played on. */
+  private BoardTemplate template;
+
+  /** Number of rows and columns on the board, and columns of tiles. */
+  private int height, width, tileCols;
+
+  /** Each tile that's been played on, or null for the rest. */
+  private volatile AtomicReferenceArray< Tile > tiles;
+
+  /** Points for each letter from a to z, so scoring doesn't need a map lookup. */
+  private int[] letterPoints = new int [ 26 ];
+
+  /**
+   * Makes a new board in its initial state.
+   * @param template Initial contents of the board
+   * @param scoreSheet Points awarded for each letter
+   */
+  public ChunkedBoard( BoardTemplate template, Map< Character, Integer > scoreSheet ) {
+    this.template = template;
+    this.height = template.height();
+    this.width = template.width();
+    tileCols = ( width + TILE - 1 ) >> TILE_BITS;
+
+    for ( char let = 'a'; let <= 'z'; let++ ) {
+      Integer points = scoreSheet.get( let );
+      letterPoints[ let - 'a' ] = points == null ? 0 : points;
+    }
+
+    reset();
+  }
+
+  /**
+   * Set the game board back to its initial state, by dropping every tile.
+   */
+  public void reset() {
+    int tileRows = ( height + TILE - 1 ) >> TILE_BITS;
+    tiles = new AtomicReferenceArray< Tile >( tileRows * tileCols );
+  }
+
+  /**
+   * Finds the tile a cell is in.
+   * @param row The cell's row
+   * @param col The cell's column
+   * @return Index of the tile
+   */
+  private int tile( int row, int col ) {
+    return ( row >> TILE_BITS ) * tileCols + ( col >> TILE_BITS );
+  }
+
+  /**
+   * Finds a cell within its tile.
+   * @param row The cell's row
+   * @param col The cell's column
+   * @return Index of the cell in its tile's array
+   */
+  private static int offset( int row, int col ) {
+    return ( ( row & ( TILE - 1 ) ) << TILE_BITS ) + ( col & ( TILE - 1 ) );
+  }
+
+  /**
+   * Reads a cell, from its tile if it has one or from the template if it doesn't.
+   * @param tiles The tiles of the current game
+   * @param row The cell's row
+   * @param col The cell's column
+   * @return What's in the cell
+   */
+  private char cell( AtomicReferenceArray< Tile > tiles, int row, int col ) {
+    Tile t = tiles.get( tile( row, col ) );
+    if ( t == null )
+      return template.get( row, col );
+    return ( char ) CELL.getAcquire( t.cells, offset( row, col ) );
+  }
+
+  /**
+   * Reports whether a cell may take a letter, by its tile's bits if it has a tile, or by the
+   * template and its neighbours if it doesn't.
+   * @param tiles The tiles of the current game
+   * @param row The cell's row
+   * @param col The cell's column
+   * @param pos What's in the cell
+   * @return True if a letter can go there
+   */
+  private boolean legal( AtomicReferenceArray< Tile > tiles, int row, int col, char pos ) {
+    Tile t = tiles.get( tile( row, col ) );
+    if ( t == null )
+      return pos == 'o' || ( isOpen( pos ) && hasLetterNext( tiles, row, col ) );
+    long word = ( long ) WORD.getAcquire( t.moves, row & ( TILE - 1 ) );
+    return ( word & ( 1L << col ) ) != 0 && ( pos == 'o' || isOpen( pos ) );
+  }
+
+  /**
+   * Sets or clears a cell's bit, copying out its tile if it has to.
+   * @param tiles The tiles of the current game
+   * @param row The cell's row
+   * @param col The cell's column
+   * @param legal True to set the bit, false to clear it
+   */
+  private void mark( AtomicReferenceArray< Tile > tiles, int row, int col, boolean legal ) {
+    Tile t = copyOut( tiles, row, col );
+    if ( legal )
+      WORD.getAndBitwiseOr( t.moves, row & ( TILE - 1 ), 1L << col );
+    else
+      WORD.getAndBitwiseAnd( t.moves, row & ( TILE - 1 ), ~( 1L << col ) );
+  }
+
+  /**
+   * Brings the bits up to date after a letter lands.  Its own cell can't take another
+   * letter, unless the letter is an 'o', which counts as a starting space like any other,
+   * and the open spaces around it now can.
+   * @param tiles The tiles of the current game
+   * @param let The letter
+   * @param row The row it went in
+   * @param col The column it went in
+   */
+  private void landed( AtomicReferenceArray< Tile > tiles, char let, int row, int col ) {
+    if ( let != 'o' )
+      mark( tiles, row, col, false );
+    if ( row > 0 && isOpen( cell( tiles, row - 1, col ) ) )
+      mark( tiles, row - 1, col, true );
+    if ( row + 1 < height && isOpen( cell( tiles, row + 1, col ) ) )
+      mark( tiles, row + 1, col, true );
+    if ( col > 0 && isOpen( cell( tiles, row, col - 1 ) ) )
+      mark( tiles, row, col - 1, true );
+    if ( col + 1 < width && isOpen( cell( tiles, row, col + 1 ) ) )
+      mark( tiles, row, col + 1, true );
+  }
+
+  /**
+   * Puts a letter back where it was placed before the server stopped, copying its tile out
+   * just as a placement would.
+   * @param let The letter
+   * @param row The row it was placed in, on the board
+   * @param col The column it was placed in, on the board
+   */
+  public void restore( char let, int row, int col ) {
+    AtomicReferenceArray< Tile > tiles = this.tiles;
+    CELL.setVolatile( copyOut( tiles, row, col ).cells, offset( row, col ), let );
+    landed( tiles, let, row, col );
+  }
+
+  /**
+   * Attempts to place a letter on the board at a particular location.  The cell's tile is
+   * only copied out once we know the letter can go there.
+   * @param let The letter to place
+   * @param row The row the user wishes to place a letter
+   * @param col The column the user wishes to place a letter
+   * @return The points awarded for the letter, or 0 if it can't be placed there
+   */
+  public int place( char let, int row, int col ) {
+    if ( row < 0 || row >= height || col < 0 || col >= width || let < 'a' || let > 'z' )
+      return 0;
+    int points = letterPoints[ let - 'a' ];
+    if ( points == 0 )
+      return 0;
+
+    AtomicReferenceArray< Tile > tiles = this.tiles;
+    char pos = cell( tiles, row, col );
+    if ( !legal( tiles, row, col, pos ) )
+      return 0;
+    if ( pos == ':' )
+      points *= 2;
+
+    // Only the first user to swap out the open space gets it.
+    if ( !CELL.compareAndSet( copyOut( tiles, row, col ).cells, offset( row, col ), pos, let ) )
+      return 0;
+    landed( tiles, let, row, col );
+    return points;
+  }
+
+  /**
+   * Gets a cell's tile, copying it out of the template if nobody has played on it yet.  The
+   * new tile's bits are worked out from its cells and their neighbours, just this once.
+   * @param tiles The tiles of the current game
+   * @param row The cell's row
+   * @param col The cell's column
+   * @return The tile
+   */
+  private Tile copyOut( AtomicReferenceArray< Tile > tiles, int row, int col ) {
+    int t = tile( row, col );
+    Tile tile = tiles.get( t );
+    if ( tile != null )
+      return tile;
+
+    int top = row & ~( TILE - 1 ), left = col & ~( TILE - 1 );
+    int len = Math.min( TILE, width - left );
+    int bottom = Math.min( top + TILE, height );
+    tile = new Tile();
+    for ( int i = top; i < bottom; i++ )
+      template.copy( i, left, tile.cells, ( i - top ) << TILE_BITS, len );
+    for ( int i = top; i < bottom; i++ )
+      for ( int j = left; j < left + len; j++ ) {
+        char c = tile.cells[ offset( i, j ) ];
+        if ( c == 'o' || ( isOpen( c ) && hasLetterNext( tiles, i, j ) ) )
+          tile.moves[ i - top ] |= 1L << j;
+      }
+
+    // Someone else may have copied the tile out first, and even placed on it since.  A letter
+    // that lands next to the tile after we looked sets its bit in whichever copy wins.
+    if ( tiles.compareAndSet( t, null, tile ) )
+      return tile;
+    return tiles.get( t );
+  }
+
+  /**
+   * Checks the four cells around the given one for a letter.
+   * @param tiles The tiles of the current game
+   * @param row The row the user wishes to place a letter
+   * @param col The column the user wishes to place a letter
+   * @return True if there's a letter above, below, left or right of the cell
+   */
+  private boolean hasLetterNext( AtomicReferenceArray< Tile > tiles, int row, int col ) {
+    return ( row > 0 && isLetter( cell( tiles, row - 1, col ) ) )
+      || ( row + 1 < height && isLetter( cell( tiles, row + 1, col ) ) )
+      || ( col > 0 && isLetter( cell( tiles, row, col - 1 ) ) )
+      || ( col + 1 < width && isLetter( cell( tiles, row, col + 1 ) ) );
+  }
+
+  /**
+   * Reports whether a cell is an open space, which can take a letter once there's one next
+   * to it.
+   * @param c What's in the cell
+   * @return True for '.' and ':' spaces
+   */
+  private static boolean isOpen( char c ) {
+    return c == '.' || c == ':';
+  }
+
+  /**
+   * Reports whether a cell holds a letter.
+   * @param c What's in the cell
+   * @return True if a letter has been placed there
+   */
+  private static boolean isLetter( char c ) {
+    return c >= 'a' && c <= 'z';
+  }
+
+  /**
+   * Appends the contents of the board to the given builder, one line per row.
+   * @param out The builder to add the board to
+   */
+  public void render( StringBuilder out ) {
+    if ( height > 0 && width > 0 )
+      render( out, 0, 0, height - 1, width - 1 );
+  }
+
+  /**
+   * Appends a rectangle of the board to the given builder.  Parts of rows in tiles nobody has
+   * played on come straight from the template's runs.  Letters placed while we're copying may
+   * or may not show up, but each cell is read atomically.
+   * @param out The builder to add the rectangle to
+   * @param top The first row
+   * @param left The first column
+   * @param bottom The last row
+   * @param right The last column
+   */
+  public void render( StringBuilder out, int top, int left, int bottom, int right ) {
+    AtomicReferenceArray< Tile > tiles = this.tiles;
+    for ( int i = top; i <= bottom; i++ ) {
+      for ( int j = left; j <= right; ) {
+        int end = Math.min( ( j | ( TILE - 1 ) ) + 1, right + 1 );
+        Tile t = tiles.get( tile( i, j ) );
+        if ( t == null )
+          template.append( out, i, j, end - j );
+        else
+          for ( int k = offset( i, j ), stop = k + end - j; k < stop; k++ )
+            out.append( ( char ) CELL.getOpaque( t.cells, k ) );
+        j = end;
+      }
+      out.append( "\n" );
+    }
+  }
+
+  /**
+   * Visits the cells in a rectangle that can take a letter.  Copied-out tiles are walked by
+   * their bits; the rest are checked cell by cell against the template.
+   * @param top The first row
+   * @param left The first column
+   * @param bottom The last row
+   * @param right The last column
+   * @param visitor What to do with each cell
+   */
+  public void moves( int top, int left, int bottom, int right, MoveVisitor visitor ) {
+    AtomicReferenceArray< Tile > tiles = this.tiles;
+    for ( int i = top; i <= bottom; i++ ) {
+      for ( int j = left; j <= right; ) {
+        int end = Math.min( ( j | ( TILE - 1 ) ) + 1, right + 1 );
+        Tile t = tiles.get( tile( i, j ) );
+        if ( t == null ) {
+          for ( ; j < end; j++ ) {
+            char c = template.get( i, j );
+            if ( c == 'o' || ( isOpen( c ) && hasLetterNext( tiles, i, j ) ) )
+              visitor.visit( i, j, c );
+          }
+          continue;
+        }
+
+        // Keep just the bits from j up to end, then visit the ones still set.
+        long word = ( long ) WORD.getAcquire( t.moves, i & ( TILE - 1 ) );
+        word &= -1L << j;
+        if ( ( end & ( TILE - 1 ) ) != 0 )
+          word &= ( 1L << end ) - 1;
+        for ( ; word != 0; word &= word - 1 ) {
+          int col = ( j & ~( TILE - 1 ) ) + Long.numberOfTrailingZeros( word );
+          char c = ( char ) CELL.getAcquire( t.cells, offset( i, col ) );
+          if ( c == 'o' || isOpen( c ) )
+            visitor.visit( i, col, c );
+        }
+        j = end;
+      }
+    }
+  }
+}
@@ -0,0 +1,569 @@
+/**
+ * Represents the Client in the board game program. Attempts to log in as a certain, user specified
+ * player and begins sending commands to be processed by the Server
+ * @file Client.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.*;
+import java.util.Scanner;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import javax.crypto.Cipher;
+import java.security.PrivateKey;
+import java.security.KeyFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Client supporting simple interactionw with the server.
+ */
+public class Client {
+  /** Most commands a script can have sent without getting their replies back yet. */
+  private static final int PIPELINE_DEPTH = 64;
+
+  /**
+   * An authenticated connection to the server.  The interactive client uses one of these,
+   * and so do tools that need to drive the server with lots of users at once.
+   */
+  static class Connection {
+    // The socket connection to the server.
+    private Socket sock;
+
+    // Formatted input/output streams for talking with the server.
+    private DataInputStream input;
+    private DataOutputStream output;
+
+    // AES cipher objects for the session key.
+    private SessionCipher AESEncrypter, AESDecrypter;
+
+    // True if we're using the binary protocol.
+    private boolean binary;
+
+    // True if we're using AES-GCM instead of AES-ECB.
+    private boolean gcm;
+
+    // Reused buffers for messages, for sending and for receiving.
+    private ByteBuffer plainOut, cipherOut, cipherIn, plainIn;
+
+    /**
+     * Connects to the server and logs in as the given user, proving who we are with the
+     * user's private key and getting a session key back.
+     * @param host The host the server is running on
+     * @param port The port the server is listening on
+     * @param name The user to log in as
+     * @param privateKey That user's private key
+     */
+    public Connection( String host, int port, String name, PrivateKey privateKey )
+      throws IOException, GeneralSecurityException {
+      this( host, port, name, privateKey, false );
+    }
+
+    /**
+     * Connects to the server and logs in as the given user, asking for the binary protocol
+     * if we want it.  Commands and replies are the same text either way.  Messages are
+     * encrypted with AES-GCM.
+     * @param host The host the server is running on
+     * @param port The port the server is listening on
+     * @param name The user to log in as
+     * @param privateKey That user's private key
+     * @param binary True to use the binary protocol
+     */
+    public Connection( String host, int port, String name, PrivateKey privateKey, boolean binary )
+      throws IOException, GeneralSecurityException {
+      this( host, port, name, privateKey, binary, true );
+    }
+
+    /**
+     * Connects to the server and logs in as the given user, asking for the binary protocol
+     * and AES-GCM if we want them.
+     * @param host The host the server is running on
+     * @param port The port the server is listening on
+     * @param name The user to log in as
+     * @param privateKey That user's private key
+     * @param binary True to use the binary protocol
+     * @param gcm True to encrypt messages with AES-GCM, false for the older AES-ECB
+     */
+    public Connection( String host, int port, String name, PrivateKey privateKey, boolean binary,
+                       boolean gcm )
+      throws IOException, GeneralSecurityException {
+      byte[] challenge = connect( host, port, name, binary, gcm, null );
+
+      // Encrypt the challenge with our private key and send it back.
+      Cipher RSAEncrypter = Server.rsaCipher( Cipher.ENCRYPT_MODE, privateKey );
+      byte[] rawCiphertext = RSAEncrypter.doFinal( challenge );
+      Server.putMessage( output, rawCiphertext );
+
+      // Get the symmetric key from the server, encrypted with our public key.
+      byte[] encryptedKey = Server.getMessage( input );
+      Cipher RSADecrypter = Server.rsaCipher( Cipher.DECRYPT_MODE, privateKey );
+      startSession( RSADecrypter.doFinal( encryptedKey ) );
+    }
+
+    /**
+     * Connects to the server and logs back in as the given user with a ticket from an
+     * earlier session, which saves both sides the RSA work.  If the server won't take the
+     * ticket, it hangs up, and this throws an IOException.
+     * @param host The host the server is running on
+     * @param port The port the server is listening on
+     * @param name The user to log in as
+     * @param ticket A ticket the server gave that user
+     * @param binary True to use the binary protocol
+     * @param gcm True to encrypt messages with AES-GCM, false for the older AES-ECB
+     */
+    public Connection( String host, int port, String name, Ticket ticket, boolean binary,
+                       boolean gcm )
+      throws IOException, GeneralSecurityException {
+      byte[] challenge = connect( host, port, name, binary, gcm, ticket.ticket );
+
+      // Prove we have the ticket's secret, and get the session key encrypted with it.
+      Server.putMessage( output, Tickets.prove( ticket.secret, challenge ) );
+      byte[] encryptedKey = Server.getMessage( input );
+      startSession( Tickets.unwrapKey( ticket.secret, encryptedKey ) );
+    }
+
+    /**
+     * Opens the socket, says who we are and waits for the server's challenge.
+     * @param host The host the server is running on
+     * @param port The port the server is listening on
+     * @param name The user to log in as
+     * @param binary True to use the binary protocol
+     * @param gcm True to use AES-GCM
+     * @param ticket A ticket to resume with, or null to log in with RSA
+     * @return The challenge
+     */
+    private byte[] connect( String host, int port, String name, boolean binary, boolean gcm,
+                            String ticket )
+      throws IOException {
+      // Try to create a socket connection to the server.
+      sock = new Socket( host, port );
+      sock.setTcpNoDelay( true );
+
+      // Get formatted input/output streams for talking with the server.
+      input = new DataInputStream( new BufferedInputStream( sock.getInputStream() ) );
+      output = new DataOutputStream( new BufferedOutputStream( sock.getOutputStream() ) );
+
+      // Send the username to the server, with the protocol and cipher we want and any
+      // ticket we have.
+      this.binary = binary;
+      this.gcm = gcm;
+      String hello = binary ? name + " " + BinaryProtocol.OPTION : name;
+      if ( gcm )
+        hello += " " + SessionCipher.GCM_OPTION;
+      if ( ticket != null )
+        hello += " " + Tickets.OPTION + ticket;
+      output.writeUTF( hello );
+      output.flush();
+
+      // Get the challenge string (really a byte array) from the server.
+      return Server.getMessage( input );
+    }
+
+    /**
+     * Makes the AES encrypt/decrypt objects for the session, and the buffers for messages.
+     * @param decryptedKey The session key the server sent
+     */
+    private void startSession( byte[] decryptedKey ) throws GeneralSecurityException {
+      AESEncrypter = new SessionCipher( Cipher.ENCRYPT_MODE, decryptedKey, gcm,
+                                        SessionCipher.FROM_CLIENT );
+      AESDecrypter = new SessionCipher( Cipher.DECRYPT_MODE, decryptedKey, gcm,
+                                        SessionCipher.FROM_SERVER );
+
+      plainOut = ByteBuffer.allocate( 1024 );
+      cipherOut = ByteBuffer.allocate( 1024 );
+      cipherIn = ByteBuffer.allocate( 1024 );
+      plainIn = ByteBuffer.allocate( 1024 );
+    }
+
+    /**
+     * Encrypts a command and sends it to the server.
+     * @param request The command to send
+     */
+    public void send( String request ) throws IOException, GeneralSecurityException {
+      send( request, true );
+    }
+
+    /**
+     * Encrypts a command and sends it to the server, leaving it buffered if asked to, so
+     * several commands can go out together.
+     * @param request The command to send
+     * @param flush True if the command should go out right away
+     */
+    public void send( String request, boolean flush ) throws IOException, GeneralSecurityException {
+      plainOut.clear();
+      if ( binary )
+        plainOut = BinaryProtocol.encode( request, plainOut );
+      else {
+        byte[] text = request.getBytes();
+        plainOut = BinaryProtocol.ensure( plainOut, text.length );
+        plainOut.put( text );
+      }
+      plainOut.flip();
+
+      cipherOut.clear();
+      cipherOut = BinaryProtocol.ensure( cipherOut, AESEncrypter.getOutputSize( plainOut.remaining() ) );
+      int len = AESEncrypter.doFinal( plainOut, cipherOut );
+      output.writeInt( len );
+      output.write( cipherOut.array(), 0, len );
+      if ( flush )
+        output.flush();
+    }
+
+    /**
+     * Sends any commands that are still buffered.
+     */
+    public void flush() throws IOException {
+      output.flush();
+    }
+
+    /**
+     * Waits for the next message from the server and decrypts it.
+     * @return The text of the server's reply
+     */
+    public String receive() throws IOException, GeneralSecurityException {
+      int len = input.readInt();
+      if ( len < 0 )
+        throw new IOException( "Bad message length " + len );
+      if ( cipherIn.capacity() < len )
+        cipherIn = ByteBuffer.allocate( len );
+      input.readFully( cipherIn.array(), 0, len );
+      cipherIn.clear().limit( len );
+      plainIn.clear();
+      plainIn = BinaryProtocol.ensure( plainIn, AESDecrypter.getOutputSize( len ) );
+      AESDecrypter.doFinal( cipherIn, plainIn );
+      plainIn.flip();
+      if ( binary )
+        return BinaryProtocol.decode( plainIn );
+      return new String( plainIn.array(), 0, plainIn.limit() );
+    }
+
+    /**
+     * Sends a command and waits for the server's reply to it.
+     * @param request The command to send
+     * @return The text of the server's reply
+     */
+    public String request( String request ) throws IOException, GeneralSecurityException {
+      send( request );
+      return receive();
+    }
+
+    /**
+     * Asks the server for a ticket we can log back in with later.  This has to be done before
+     * anything else is listening for replies on the connection.
+     * @return The ticket
+     */
+    public Ticket requestTicket() throws IOException, GeneralSecurityException {
+      String[] reply = request( "ticket" ).trim().split( " " );
+      if ( reply.length != 3 || !reply[ 0 ].equals( "ticket" ) )
+        throw new IOException( "No ticket from the server" );
+      return new Ticket( reply[ 1 ], Base64.getDecoder().decode( reply[ 2 ] ) );
+    }
+
+    /**
+     * Tells the server we're leaving and closes the connection.
+     */
+    public void close() throws IOException, GeneralSecurityException {
+      try {
+        send( "exit" );
+      } finally {
+        sock.close();
+      }
+    }
+  }
+
+  /**
+   * A resumption ticket from the server, with the secret that goes with it.  Tickets are kept
+   * in a file for each user in the current directory, so the next run can use them.
+   */
+  static class Ticket {
+    // The ticket, as the server gave it to us.
+    private String ticket;
+
+    // The secret that goes with it, for proving the ticket is ours.
+    private byte[] secret;
+
+    /**
+     * Makes a ticket.
+     * @param ticket The ticket text
+     * @param secret Its resumption secret
+     */
+    Ticket( String ticket, byte[] secret ) {
+      this.ticket = ticket;
+      this.secret = secret;
+    }
+
+    /**
+     * Reads the ticket saved for a user.
+     * @param name The user
+     * @return Their ticket, or null if there isn't a good one saved
+     */
+    static Ticket load( String name ) {
+      try ( Scanner scanner = new Scanner( new File( name + ".ticket" ) ) ) {
+        return new Ticket( scanner.next(), Base64.getDecoder().decode( scanner.next() ) );
+      } catch ( IOException | RuntimeException e ) {
+        return null;
+      }
+    }
+
+    /**
+     * Saves this ticket for a user, replacing any they had.
+     * @param name The user
+     */
+    void save( String name ) throws IOException {
+      try ( PrintWriter out = new PrintWriter( new FileWriter( name + ".ticket" ) ) ) {
+        out.println( ticket + " " + Base64.getEncoder().encodeToString( secret ) );
+      }
+    }
+  }
+
+  /**
+   * Logs in as a user.  If we're resuming, it tries the user's saved ticket first and falls
+   * back to their private key, then saves a new ticket for next time.
+   * @param host The host the server is running on
+   * @param name The user to log in as
+   * @param binary True to use the binary protocol
+   * @param gcm True to use AES-GCM, false for AES-ECB
+   * @param resume True to log in with a ticket if we have one, and keep a ticket afterwards
+   * @return The connection
+   */
+  static Connection login( String host, String name, boolean binary, boolean gcm,
+                           boolean resume )
+    throws IOException, GeneralSecurityException {
+    if ( !resume )
+      return new Connection( host, Server.PORT_NUMBER, name, readPrivateKey( name ), binary,
+                             gcm );
+
+    Connection conn = null;
+    Ticket ticket = Ticket.load( name );
+    if ( ticket != null ) {
+      try {
+        conn = new Connection( host, Server.PORT_NUMBER, name, ticket, binary, gcm );
+      } catch ( IOException e ) {
+        // The ticket has expired, or the server has a new key, so log in the long way.
+      }
+    }
+    if ( conn == null )
+      conn = new Connection( host, Server.PORT_NUMBER, name, readPrivateKey( name ), binary,
+                             gcm );
+    conn.requestTicket().save( name );
+    return conn;
+  }
+
+  /**
+   * Reads a user's private key from their file in the input directory.
+   * @param name The user whose key we need
+   * @return The user's private key
+   */
+  static PrivateKey readPrivateKey( String name ) throws IOException, GeneralSecurityException {
+    // Try to read the user's private key.
+    Scanner keyScanner = new Scanner( new File( "../input/" + name + ".txt" ) );
+    String base64Key = keyScanner.nextLine();
+    byte[] rawKey = Base64.getDecoder().decode( base64Key );
+    keyScanner.close();
+
+    // Make a key specification based on this key.
+    PKCS8EncodedKeySpec privKeySpec = new PKCS8EncodedKeySpec( rawKey );
+
+    // Get an RSA key based on this specification
+    KeyFactory keyFactory = KeyFactory.getInstance( "RSA" );
+    return keyFactory.generatePrivate( privKeySpec );
+  }
+
+  /**
+   * Starts a thread that prints every message the server sends, whether it's the reply to a
+   * command or a pushed event, as soon as it arrives.  The thread quits when the connection
+   * is closed.
+   * @param conn The connection to listen on
+   */
+  private static void startListener( Connection conn ) {
+    Thread listener = new Thread( () -> {
+        try {
+          while ( true ) {
+            System.out.print( conn.receive() );
+            System.out.print( "cmd> " );
+          }
+        } catch( IOException e ){
+          // The connection was closed, so there's nothing left to print.
+        } catch( GeneralSecurityException e ){
+          System.err.println( "Encryption error: " + e );
+        }
+      }, "listener" );
+    listener.setDaemon( true );
+    listener.start();
+  }
+
+  /**
+   * Runs commands from a script without waiting for each reply before sending the next one.
+   * Replies come back in the order the commands were sent, and a listener thread prints them
+   * as they arrive.  Runs of place commands can be sent as batches, which the server handles
+   * as one transaction with one reply.  If the connection is lost before every reply is
+   * back, this stops sending and throws an IOException.
+   * @param conn The connection to send commands on
+   * @param script Where to read commands from, one per line
+   * @param batchSize Most place commands to put in a batch, or 1 to send each on its own
+   */
+  private static void runScript( Connection conn, BufferedReader script, int batchSize )
+    throws IOException, GeneralSecurityException, InterruptedException {
+    // Each command or batch takes a permit, and gives it back once its reply is printed.  If
+    // the connection goes, the listener hands back every permit, so we don't wait for
+    // replies that will never come, and leaves a note that it's gone.
+    Semaphore window = new Semaphore( PIPELINE_DEPTH );
+    AtomicBoolean lost = new AtomicBoolean();
+    Thread listener = new Thread( () -> {
+        try {
+          while ( true ) {
+            System.out.print( conn.receive() );
+            window.release();
+          }
+        } catch( IOException e ){
+          // The connection was closed, so there's nothing left to print.
+        } catch( GeneralSecurityException e ){
+          System.err.println( "Encryption error: " + e );
+        } finally {
+          lost.set( true );
+          window.release( PIPELINE_DEPTH );
+        }
+      }, "listener" );
+    listener.setDaemon( true );
+    listener.start();
+
+    StringBuilder batch = new StringBuilder();
+    int batched = 0;
+    String request;
+    while ( ( request = script.readLine() ) != null && ! request.equals( "exit" ) ) {
+      if ( lost.get() )
+        break;
+      if ( request.isEmpty() )
+        continue;
+
+      // Save up place commands for a batch, if we're batching.
+      if ( batchSize > 1 && request.startsWith( "place" ) ) {
+        batch.append( "\n" ).append( request );
+        if ( ++batched < batchSize )
+          continue;
+        request = null;
+      }
+
+      // Anything else goes out after the batch that came before it.
+      if ( batched > 0 ) {
+        pipeline( conn, window, "batch" + batch, script );
+        batch.setLength( 0 );
+        batched = 0;
+      }
+      if ( request != null )
+        pipeline( conn, window, request, script );
+    }
+    if ( batched > 0 )
+      pipeline( conn, window, "batch" + batch, script );
+    conn.flush();
+
+    // Wait for the rest of the replies before we leave.
+    window.acquire( PIPELINE_DEPTH );
+    if ( lost.get() )
+      throw new IOException( "Lost the connection to the server" );
+  }
+
+  /**
+   * Sends one message from a script once there's room in the window.  The message is left
+   * buffered while more of the script is ready to go, so commands go out in groups.
+   * @param conn The connection to send on
+   * @param window Permits for commands that haven't had replies yet
+   * @param request The command or batch to send
+   * @param script The rest of the script
+   */
+  private static void pipeline( Connection conn, Semaphore window, String request,
+                                BufferedReader script )
+    throws IOException, GeneralSecurityException, InterruptedException {
+    // Make sure everything we've sent is really on its way before waiting for replies.
+    if ( !window.tryAcquire() ) {
+      conn.flush();
+      window.acquire();
+    }
+    conn.send( request, !script.ready() );
+  }
+
+  /**
+   * Takes in the number of arguments, then begins to connect with the Server. Takes in User
+   * commands and encrypts them, then sends them to the Server for processing
+   * @param args The arguments specified by the user at startup
+   */
+  public static void main( String[] args ) {
+    // Ask for the binary protocol, log in with a ticket, or stick with the old AES-ECB
+    // encryption, if we're told to.
+    boolean binary = false, resume = false, ecb = false;
+    while ( args.length > 0 && args[ 0 ].matches( "-binary|-resume|-ecb" ) ) {
+      binary |= args[ 0 ].equals( "-binary" );
+      resume |= args[ 0 ].equals( "-resume" );
+      ecb |= args[ 0 ].equals( "-ecb" );
+      args = Arrays.copyOfRange( args, 1, args.length );
+    }
+
+    // Complain if we don't get the right number of arguments.
+    if ( args.length != 1 && ( args.length < 3 || args.length > 4 ) ) {
+      System.out.println( "Usage: Client [-binary] [-resume] [-ecb] <host> "
+                          + "[<username> <script-file|-> [batch-size]]" );
+      System.exit( -1 );
+    }
+
+    try {
+      // With a script, run it without any prompts.
+      if ( args.length > 1 ) {
+        Connection conn = login( args[ 0 ], args[ 1 ], binary, !ecb, resume );
+        BufferedReader script = new BufferedReader(
+          args[ 2 ].equals( "-" ) ? new InputStreamReader( System.in ) : new FileReader( args[ 2 ] ) );
+        runScript( conn, script, args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 1 );
+        script.close();
+        conn.close();
+        return;
+      }
+
+      // Get a username from the user, then log in as that user.
+      Scanner scanner = new Scanner( System.in );
+      System.out.print( "Username: " );
+      String name = scanner.nextLine();
+      Connection conn = login( args[ 0 ], name, binary, !ecb, resume );
+
+      // Read commands from the user and print server responses.  Once we subscribe, the
+      // server can send us events at any time, so a listener thread takes over printing
+      // everything the server sends.
+      String request = "";
+      boolean listening = false;
+      System.out.print( "cmd> " );
+      while ( scanner.hasNextLine() && ! ( request = scanner.nextLine() ).equals( "exit" ) ) {
+        if ( listening ) {
+          conn.send( request );
+          continue;
+        }
+
+        if ( request.equals( "subscribe" ) ) {
+          conn.send( request );
+          startListener( conn );
+          listening = true;
+          continue;
+        }
+
+        // Send the request, then read and print the response.
+        System.out.print( conn.request( request ) );
+
+        System.out.print( "cmd> " );
+      }
+
+      // Send the exit command to the server.  We are done communicating with the server.
+      conn.close();
+    } catch( IOException e ){
+      System.err.println( "IO Error: " + e );
+      System.exit( 1 );
+    } catch( GeneralSecurityException e ){
+      System.err.println( "Encryption error: " + e );
+      System.exit( 1 );
+    } catch( InterruptedException e ){
+      System.err.println( "Interrupted: " + e );
+      System.exit( 1 );
+    }
+  }
+}
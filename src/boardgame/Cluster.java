@@ -0,0 +1,176 @@
+/**
+ * What the router and the backend servers say to each other, when the game is spread over
+ * several server processes. Clients only ever talk to the router, which logs them in and
+ * passes their commands on to the backend holding their room.
+ * @file Cluster.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * The link between the router and a backend.  The router connects to a backend's cluster
+ * port, and the backend sends it a random challenge, which the router answers with an
+ * HMAC-SHA256 of it keyed with the cluster key, a key shared by the router and every
+ * backend.  Then the router sends a hello with writeUTF(): either a user's name, followed by
+ * "binary" if they use the binary protocol, or "control" for the router's own link.
+ *
+ * After that, messages go both ways with a length in front, as with putMessage(), but without
+ * encryption, since the router has already decrypted what the client sent.  The router sends
+ * requests, just as the client sent them, and the backend sends each message back with a kind
+ * in front: REPLY for the reply to a request, in order, or EVENT for a board change.  A
+ * control link takes these requests, each answered with a REPLY:
+ *
+ *   rooms                 a line for each room, as its name, players and version
+ *   export <room>         freezes the room and lists its placements, a line each
+ *   import <room>\n...    puts back placements listed by export, and journals them
+ *   drop <room>           forgets the room, and journals that it's gone
+ */
+public class Cluster {
+  /** Kinds of message a backend sends the router. */
+  static final byte REPLY = 'R', EVENT = 'E';
+
+  /** Hello the router sends for its own link to a backend. */
+  static final String CONTROL = "control";
+
+  /** Milliseconds a connection gets to finish the challenge and hello. */
+  static final int HELLO_TIMEOUT = 10000;
+
+  /**
+   * Milliseconds the router waits to connect to a backend, or for it to answer, before
+   * giving up on it, so a backend that has hung can't hold up anyone else.
+   */
+  static final int CALL_TIMEOUT = 5000;
+
+  /** A connection from the router to a backend. */
+  static class Link {
+    // Address of the backend, as host:port.
+    final String backend;
+
+    // The connection.
+    private Socket sock;
+    private DataInputStream input;
+    private DataOutputStream output;
+
+    /**
+     * Connects to a backend and gets past the challenge and hello.
+     * @param backend Address of the backend, as host:port
+     * @param key The cluster key
+     * @param hello The user's name and options, or CONTROL
+     */
+    Link( String backend, byte[] key, String hello ) throws IOException, GeneralSecurityException {
+      this.backend = backend;
+      int colon = backend.lastIndexOf( ':' );
+      if ( colon < 0 )
+        throw new IOException( "Backend " + backend + " isn't host:port" );
+      sock = new Socket();
+      try {
+        sock.connect( new InetSocketAddress( backend.substring( 0, colon ),
+                                             Integer.parseInt( backend.substring( colon + 1 ) ) ),
+                      CALL_TIMEOUT );
+        sock.setSoTimeout( CALL_TIMEOUT );
+        sock.setTcpNoDelay( true );
+        input = new DataInputStream( new BufferedInputStream( sock.getInputStream() ) );
+        output = new DataOutputStream( new BufferedOutputStream( sock.getOutputStream() ) );
+        byte[] challenge = Server.getMessage( input );
+        Server.putMessage( output, Tickets.prove( key, challenge ), false );
+        output.writeUTF( hello );
+        output.flush();
+      } catch ( IOException | GeneralSecurityException e ) {
+        close();
+        throw e;
+      }
+    }
+
+    /**
+     * Sends a request.  Requests can come from more than one thread, and go out whole.
+     * @param msg The request, ready for reading, which is left as it was
+     */
+    synchronized void send( ByteBuffer msg ) throws IOException {
+      output.writeInt( msg.remaining() );
+      output.write( msg.array(), msg.arrayOffset() + msg.position(), msg.remaining() );
+      output.flush();
+    }
+
+    /**
+     * Sends a text request.
+     * @param text The request
+     */
+    void send( String text ) throws IOException {
+      send( ByteBuffer.wrap( text.getBytes() ) );
+    }
+
+    /**
+     * Waits up to the call timeout for the next message to start arriving, without reading
+     * any of it, for a thread that waits on a link that can be quiet for a long time.
+     * @return False if nothing arrived in time
+     */
+    boolean await() throws IOException {
+      input.mark( 1 );
+      try {
+        if ( input.read() < 0 )
+          throw new EOFException( "Backend " + backend + " closed the link" );
+      } catch ( SocketTimeoutException e ) {
+        return false;
+      }
+      input.reset();
+      return true;
+    }
+
+    /**
+     * Reads the next message from the backend.  Only one thread reads from a link.  If the
+     * backend takes longer than the call timeout, this throws a SocketTimeoutException.
+     * @return The message, with its kind first
+     */
+    byte[] receive() throws IOException {
+      byte[] msg = Server.getMessage( input );
+      if ( msg.length == 0 )
+        throw new IOException( "Empty message from " + backend );
+      return msg;
+    }
+
+    /**
+     * Reads messages until the next reply, skipping any events before it.
+     * @return The reply, without its kind
+     */
+    byte[] reply() throws IOException {
+      while ( true ) {
+        byte[] msg = receive();
+        if ( msg[ 0 ] == REPLY )
+          return Arrays.copyOfRange( msg, 1, msg.length );
+      }
+    }
+
+    /**
+     * Sends a request on a control link and waits for the reply.
+     * @param request The request
+     * @return The text of the reply
+     */
+    synchronized String call( String request ) throws IOException {
+      send( request );
+      return new String( reply() );
+    }
+
+    /**
+     * Closes the connection, ignoring any trouble doing it.
+     */
+    void close() {
+      try {
+        sock.close();
+      } catch ( IOException e ) {
+      }
+    }
+  }
+}
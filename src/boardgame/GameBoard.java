@@ -0,0 +1,95 @@
+/**
+ * The part of the board game that keeps track of where letters have been placed. The Server
+ * talks to the board through this interface, so different ways of sharing the board between
+ * threads can be swapped in without changing how commands are handled.
+ * @file GameBoard.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+/**
+ * A board that any number of user threads can place letters on and display at the same time.
+ * Implementations do their own locking, so callers never need to hold a lock around these
+ * methods.
+ */
+public interface GameBoard {
+  /** Something to do with each cell a letter can be placed on. */
+  interface MoveVisitor {
+    /**
+     * Visits one cell.
+     * @param row The cell's row
+     * @param col The cell's column
+     * @param cell What's in the cell: 'o', '.', or ':' for a space that scores double
+     */
+    void visit( int row, int col, char cell );
+  }
+
+  /**
+   * Attempts to place a letter on the board at a particular location.  A letter can go on an
+   * `o` space, or on a `.` or `:` space that's next to another letter.
+   * @param let The letter to place
+   * @param row The row the user wishes to place a letter
+   * @param col The column the user wishes to place a letter
+   * @return The points awarded for the letter, or 0 if it can't be placed there
+   */
+  int place( char let, int row, int col );
+
+  /**
+   * Places a group of letters, in order, as one transaction, so no other placement can land
+   * in between them.  Each letter is checked just as place() would check it, so later letters
+   * in the group can build on earlier ones.  Boards without locks can't hold other users off,
+   * and just place the letters one after another.
+   * @param lets The letters to place
+   * @param rows The row for each letter
+   * @param cols The column for each letter
+   * @param count How many letters there are
+   * @param points Filled in with the points awarded for each letter, 0 if it couldn't be placed
+   */
+  default void placeAll( char[] lets, int[] rows, int[] cols, int count, int[] points ) {
+    for ( int i = 0; i < count; i++ )
+      points[ i ] = place( lets[ i ], rows[ i ], cols[ i ] );
+  }
+
+  /**
+   * Appends the contents of the board to the given builder, one line per row.
+   * @param out The builder to add the board to
+   */
+  void render( StringBuilder out );
+
+  /**
+   * Appends a rectangle of the board to the given builder, one line per row.  The corners are
+   * part of the rectangle, and the caller makes sure they're on the board.
+   * @param out The builder to add the rectangle to
+   * @param top The first row
+   * @param left The first column
+   * @param bottom The last row
+   * @param right The last column
+   */
+  void render( StringBuilder out, int top, int left, int bottom, int right );
+
+  /**
+   * Visits every cell in a rectangle that a letter can be placed on right now, a row at a
+   * time from the top left.  The corners are part of the rectangle, and the caller makes sure
+   * they're on the board.  Cells that change while we're looking may or may not be visited.
+   * @param top The first row
+   * @param left The first column
+   * @param bottom The last row
+   * @param right The last column
+   * @param visitor What to do with each cell
+   */
+  void moves( int top, int left, int bottom, int right, MoveVisitor visitor );
+
+  /**
+   * Puts a letter back where it was placed before the server stopped, without checking it
+   * against the rules, since it was already checked when it was first placed.
+   * @param let The letter
+   * @param row The row it was placed in, on the board
+   * @param col The column it was placed in, on the board
+   */
+  void restore( char let, int row, int col );
+
+  /**
+   * Set the game board back to its initial state.
+   */
+  void reset();
+}
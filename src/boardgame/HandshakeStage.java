@@ -0,0 +1,210 @@
+/**
+ * Keeps logins from crowding out users who are already playing. The RSA and ticket work for
+ * logins is done on a small pool of its own with a bounded queue, each address can only start
+ * so many logins a second, and a login that takes too long is dropped.
+ * @file HandshakeStage.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The handshake stage, shared by every server mode.  A connection is admitted when it's
+ * accepted, if its address hasn't used up its logins for now.  The connection's own thread,
+ * or the event loop, reads what the client sends during the handshake, and only the work of
+ * checking its answer and encrypting the session key runs on a handshake worker, so a client
+ * that's slow to answer never holds a worker.  If the workers fall behind, new logins wait in
+ * the queue, and once the queue is full they're refused straight away instead of piling up.
+ */
+public class HandshakeStage {
+  /** Handshake workers used if no number is given: half the cores, so play keeps the rest. */
+  public static final int DEFAULT_THREADS =
+    Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+
+  /** Logins that can wait for a worker if no number is given. */
+  public static final int DEFAULT_QUEUE = 256;
+
+  /** Milliseconds a login gets from being accepted to finishing, if no time is given. */
+  public static final long DEFAULT_TIMEOUT = 5000;
+
+  /** Milliseconds a threaded connection gets to say who it is, once it's accepted. */
+  public static final int HELLO_TIMEOUT = 1000;
+
+  /** Most addresses we keep a rate for before forgetting the ones that have gone quiet. */
+  private static final int MAX_ADDRESSES = 10000;
+
+  /** Workers that do the handshakes. */
+  private ThreadPoolExecutor workers;
+
+  /** Thread that drops logins that have run out of time. */
+  private ScheduledExecutorService timer;
+
+  /** Milliseconds a login gets. */
+  private long timeout;
+
+  /** Logins each address can start per second, or 0 for no limit. */
+  private double rate;
+
+  /** Each address's allowance of logins. */
+  private ConcurrentHashMap< InetAddress, Allowance > allowances =
+    new ConcurrentHashMap< InetAddress, Allowance >();
+
+  /** Where refused and timed-out logins are counted. */
+  private Metrics metrics;
+
+  /**
+   * A token bucket for one address.  It holds up to a second's worth of logins, and fills
+   * back up at the login rate.
+   */
+  private static class Allowance {
+    // Logins the address can start right now.
+    private double tokens;
+
+    // When the tokens were last topped up.
+    private long last;
+
+    /**
+     * Makes a full allowance.
+     * @param rate Logins per second
+     * @param now The current time, from System.nanoTime()
+     */
+    Allowance( double rate, long now ) {
+      tokens = Math.max( 1, rate );
+      last = now;
+    }
+
+    /**
+     * Tops up the allowance for the time that's gone by, then uses one login if there is one.
+     * @param rate Logins per second
+     * @param now The current time, from System.nanoTime()
+     * @return True if the address can start a login
+     */
+    synchronized boolean take( double rate, long now ) {
+      tokens = Math.min( Math.max( 1, rate ), tokens + ( now - last ) * rate / 1e9 );
+      last = now;
+      if ( tokens < 1 )
+        return false;
+      tokens -= 1;
+      return true;
+    }
+
+    /**
+     * Checks whether the allowance would be full by now, so it can be forgotten.
+     * @param rate Logins per second
+     * @param now The current time, from System.nanoTime()
+     * @return True if the address hasn't logged in lately
+     */
+    synchronized boolean idle( double rate, long now ) {
+      return tokens + ( now - last ) * rate / 1e9 >= Math.max( 1, rate );
+    }
+  }
+
+  /**
+   * Makes the handshake stage and starts its workers.
+   * @param threads Number of handshake workers
+   * @param queue Most logins that can wait for a worker
+   * @param rate Logins each address can start per second, or 0 for no limit
+   * @param timeout Milliseconds a login gets from being accepted to finishing
+   * @param metrics Where to count what happens to logins
+   */
+  public HandshakeStage( int threads, int queue, double rate, long timeout, Metrics metrics ) {
+    this.rate = rate;
+    this.timeout = timeout;
+    this.metrics = metrics;
+
+    AtomicInteger count = new AtomicInteger();
+    workers = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue< Runnable >( queue ), r -> {
+                                          Thread t = new Thread( r, "handshake-"
+                                                                 + count.getAndIncrement() );
+                                          t.setDaemon( true );
+                                          return t;
+                                        } );
+    timer = Executors.newSingleThreadScheduledExecutor( r -> {
+        Thread t = new Thread( r, "handshake-timer" );
+        t.setDaemon( true );
+        return t;
+      } );
+  }
+
+  /**
+   * Decides whether to let a new connection try to log in, based on how many logins its
+   * address has started lately.
+   * @param address Where the connection came from
+   * @return True if it can go ahead, false if it should be closed
+   */
+  public boolean admit( InetAddress address ) {
+    if ( rate <= 0 )
+      return true;
+    long now = System.nanoTime();
+    if ( allowances.size() > MAX_ADDRESSES )
+      allowances.values().removeIf( a -> a.idle( rate, now ) );
+    Allowance allowance = allowances.computeIfAbsent( address, a -> new Allowance( rate, now ) );
+    if ( allowance.take( rate, now ) )
+      return true;
+    metrics.refusedLogins.increment();
+    return false;
+  }
+
+  /**
+   * Queues handshake work for a worker.
+   * @param task The work
+   * @return False if the queue is full, in which case the login should be refused
+   */
+  public boolean submit( Runnable task ) {
+    long queued = System.nanoTime();
+    try {
+      workers.execute( () -> {
+          metrics.handshakeWait.record( System.nanoTime() - queued );
+          task.run();
+        } );
+      return true;
+    } catch ( RejectedExecutionException e ) {
+      metrics.refusedLogins.increment();
+      return false;
+    }
+  }
+
+  /**
+   * Queues handshake work for a worker, for a thread that waits for the result.
+   * @param task The work
+   * @return The result, once the work is done, or null if the queue is full, in which case
+   *         the login should be refused
+   */
+  public < T > Future< T > submit( Callable< T > task ) {
+    FutureTask< T > future = new FutureTask< T >( task );
+    return submit( future ) ? future : null;
+  }
+
+  /**
+   * Arranges for a login to be dropped if it hasn't finished in time.  The caller cancels
+   * the returned future once the user has authenticated.
+   * @param expire What to do if time runs out, which should close the connection if it's
+   *               still logging in
+   * @return The timeout, for cancelling
+   */
+  public ScheduledFuture< ? > deadline( Runnable expire ) {
+    return timer.schedule( expire, timeout, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Reports how many logins are waiting for a worker.
+   * @return The length of the queue
+   */
+  public int queued() {
+    return workers.getQueue().size();
+  }
+}
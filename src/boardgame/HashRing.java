@@ -0,0 +1,89 @@
+/**
+ * Decides which backend server each game room lives on, when the router spreads rooms over
+ * several servers. Adding or taking away a server only moves the rooms that have to move.
+ * @file HashRing.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing.  Each backend is put on a ring of 64-bit hashes at many points, and a
+ * room belongs to the first backend point at or after the room's own hash, going round.  With
+ * many points for each backend, rooms are spread evenly, and when a backend joins or leaves,
+ * only the rooms between its points and the ones before them change hands.  A ring is never
+ * changed once it's made; the router makes a new one when the list of backends changes.
+ */
+public class HashRing {
+  /** Points on the ring for each backend. */
+  public static final int POINTS = 128;
+
+  /** Each thread's digest, since they're costly to look up. */
+  private static final ThreadLocal< MessageDigest > MD5 = ThreadLocal.withInitial( () -> {
+      try {
+        return MessageDigest.getInstance( "MD5" );
+      } catch ( GeneralSecurityException e ) {
+        throw new IllegalStateException( e );
+      }
+    } );
+
+  /** The backends, in the order they were given. */
+  private List< String > backends;
+
+  /** The backend at each point on the ring. */
+  private TreeMap< Long, String > ring = new TreeMap< Long, String >();
+
+  /**
+   * Makes a ring of backends.
+   * @param backends Addresses of the backends, as host:port
+   */
+  public HashRing( Collection< String > backends ) {
+    this.backends = Collections.unmodifiableList( new ArrayList< String >( backends ) );
+    for ( String b : this.backends )
+      for ( int i = 0; i < POINTS; i++ )
+        ring.put( hash( b + "#" + i ), b );
+  }
+
+  /**
+   * Lists the backends on the ring.
+   * @return Their addresses, in the order they were given
+   */
+  public List< String > backends() {
+    return backends;
+  }
+
+  /**
+   * Finds the backend a room belongs to.
+   * @param room Name of the room
+   * @return The backend's address, or null if the ring is empty
+   */
+  public String owner( String room ) {
+    if ( ring.isEmpty() )
+      return null;
+    Map.Entry< Long, String > point = ring.ceilingEntry( hash( room ) );
+    return point == null ? ring.firstEntry().getValue() : point.getValue();
+  }
+
+  /**
+   * Hashes a name onto the ring, with the first 8 bytes of its MD5, which spreads names that
+   * are alike, such as "room1" and "room2", well apart.
+   * @param name The name
+   * @return Its place on the ring
+   */
+  private static long hash( String name ) {
+    byte[] d = MD5.get().digest( name.getBytes( StandardCharsets.UTF_8 ) );
+    long h = 0;
+    for ( int i = 0; i < 8; i++ )
+      h = h << 8 | ( d[ i ] & 0xFF );
+    return h;
+  }
+}
@@ -0,0 +1,638 @@
+/**
+ * Keeps the game going through a crash. Every accepted placement is appended to a journal on
+ * disk, and every so often the journal is compacted into a snapshot, so when the server starts
+ * again it can put every room's board and scores back the way they were.
+ * @file Journal.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of placements, with snapshots.  Placements are handed to a single
+ * writer thread through a lock-free queue, after the board has let go of its own locks, so a
+ * placement never waits for the disk, or on anyone else handing one over.  The writer takes everything that has queued up since it last wrote, and
+ * writes it together; it only forces the journal to disk once per sync interval, so many
+ * placements share the cost of each fsync.  A crash loses at most the placements from the last
+ * interval.
+ *
+ * Every record is written as:
+ *
+ *   length(4) crc(4), then seq(8) row(4) col(4) letter(2) points(4),
+ *   room-length(2) room, user-length(2) user
+ *
+ * where the length and CRC cover everything after them, so a record that was only partly
+ * written when the server died is noticed and ignored.  A record with a letter of 0 and no
+ * user isn't a placement: it marks a room that was handed to another server, whose
+ * placements up to then are forgotten.  One with a letter of 0 and a user gives them points
+ * without a letter, for a score in a room moved here from a snapshot.  The journal is kept in
+ * segments named for the first record in them.
+ *
+ * Placements in the same cell are appended in the order the board took them, so the last
+ * letter journaled for a cell is the one in it.  The writer keeps what every room's
+ * placements add up to: the letter in each cell that has one, and each user's score.  After
+ * every so many records, it writes that image of every room to a snapshot through a
+ * memory-mapped file, then starts a new segment and deletes the old ones.  A snapshot is laid
+ * out as:
+ *
+ *   "BGSN" version(4) seq(8), users(4) then length(2) name for each user,
+ *   rooms(4) then for each room: length(2) name, cells(4) then row(4) col(4) letter(2) for
+ *   each cell, scores(4) then user(4) points(4) for each user who has scored
+ *
+ * so it grows with the boards and the players, not with the number of placements.  Recovery
+ * replays the snapshot, then any records in the segments that came after it.
+ */
+public class Journal {
+  /** Milliseconds between forcing the journal to disk, if no time is given. */
+  public static final long DEFAULT_SYNC_MILLIS = 50;
+
+  /** Records between snapshots, if no number is given. */
+  public static final int DEFAULT_SNAPSHOT_EVERY = 100000;
+
+  /** Marks the start of a snapshot, and the version of its layout. */
+  private static final int MAGIC = 0x4247534E, VERSION = 2;
+
+  /** Size of a record's length and CRC, and of the fixed part of the rest of it. */
+  private static final int RECORD_HEADER = 8, RECORD_FIXED = 26;
+
+  /** Most entries the writer takes at once, so a steady stream can't keep it from syncing. */
+  private static final int MAX_BATCH = 65536;
+
+  /** Names of the snapshot, and of the file it's written to before it takes its place. */
+  private static final String SNAPSHOT = "snapshot.bin", SNAPSHOT_TEMP = "snapshot.tmp";
+
+  /** Name of the file locked by the server using the directory. */
+  private static final String LOCK = "lock";
+
+  /** Start and end of each segment's name, with the first record's number in between. */
+  private static final String SEGMENT_PREFIX = "journal-", SEGMENT_SUFFIX = ".log";
+
+  /** Something to put placements back on the boards when recovering. */
+  interface Replay {
+    /**
+     * Puts a placement back.  From a snapshot, a letter comes back without its user, and a
+     * user's score comes back without a letter.
+     * @param room Name of the room it was in
+     * @param user Name of the user who placed it, or null
+     * @param let The letter, or 0 to put back just the points
+     * @param row The row it went in
+     * @param col The column it went in
+     * @param points The points it was worth
+     */
+    void place( String room, String user, char let, int row, int col, int points );
+
+    /**
+     * Forgets a room that was handed to another server, with everything placed in it.
+     * @param room Name of the room
+     */
+    void drop( String room );
+  }
+
+  /** A placement waiting to be written, or a request to force everything so far to disk. */
+  private static class Entry {
+    // Where the placement was, and who made it.
+    final String room, user;
+
+    // The letter, where it went, and what it was worth.
+    final char let;
+    final int row, col, points;
+
+    // Counted down once everything before it is on disk, if this is a request to flush.
+    final CountDownLatch flushed;
+
+    /**
+     * Makes an entry for a placement.
+     * @param room Name of the room
+     * @param user Name of the user
+     * @param let The letter
+     * @param row The row it went in
+     * @param col The column it went in
+     * @param points The points it was worth
+     */
+    Entry( String room, String user, char let, int row, int col, int points ) {
+      this.room = room;
+      this.user = user;
+      this.let = let;
+      this.row = row;
+      this.col = col;
+      this.points = points;
+      this.flushed = null;
+    }
+
+    /**
+     * Makes a request to flush the journal.
+     * @param flushed Counted down once everything before it is on disk
+     */
+    Entry( CountDownLatch flushed ) {
+      this.room = this.user = null;
+      this.let = 0;
+      this.row = this.col = this.points = 0;
+      this.flushed = flushed;
+    }
+  }
+
+  /** What one room's placements add up to, for the snapshot. */
+  private static class Image {
+    // The letter in each cell that has one, keyed by row and column.
+    Map< Long, Character > cells = new HashMap< Long, Character >();
+
+    // Each user's score, keyed by their number in the snapshot's list of users.
+    Map< Integer, Integer > scores = new HashMap< Integer, Integer >();
+
+    /**
+     * Adds a placement.
+     * @param row The row
+     * @param col The column
+     * @param let The letter, or 0 for just the points
+     * @param user Number of the user in the snapshot's list of users
+     * @param points The points
+     */
+    void add( int row, int col, char let, int user, int points ) {
+      if ( let != 0 )
+        cells.put( ( long ) row << 32 | col & 0xFFFFFFFFL, let );
+      if ( points != 0 )
+        scores.merge( user, points, Integer::sum );
+    }
+  }
+
+  /** Directory the journal and snapshot are kept in. */
+  private File dir;
+
+  /** Nanoseconds between forcing the journal to disk, or 0 to force after every write. */
+  private long syncNanos;
+
+  /** Records between snapshots. */
+  private int snapshotEvery;
+
+  /** Where writes and syncs are counted and timed. */
+  private Metrics metrics;
+
+  /** Placements waiting for the writer. */
+  private ConcurrentLinkedQueue< Entry > queue = new ConcurrentLinkedQueue< Entry >();
+
+  /** The writer thread, and whether it's about to park or parked, waiting for the queue. */
+  private Thread writer;
+  private volatile boolean waiting;
+
+  /** Open on the lock file for as long as the server runs, so nobody else uses the journal. */
+  private FileChannel lock;
+
+  /** The segment being written, and the number of the last record written. */
+  private FileChannel segment;
+  private long seq;
+
+  /** Records written since the last snapshot. */
+  private int sinceSnapshot;
+
+  /** Reused buffer for encoding records. */
+  private ByteBuffer buf = ByteBuffer.allocateDirect( 64 * 1024 );
+
+  /** Checksums records. */
+  private CRC32 crc = new CRC32();
+
+  /** Every user who has placed a letter, numbered for the snapshot. */
+  private Map< String, Integer > userNumbers = new HashMap< String, Integer >();
+  private List< String > userNames = new ArrayList< String >();
+
+  /** What the placements in each room add up to, in the order the rooms first had one. */
+  private Map< String, Image > rooms = new LinkedHashMap< String, Image >();
+
+  /**
+   * Makes a journal kept in the given directory.  Nothing is read or written until recover()
+   * is called.
+   * @param dir Directory for the journal and snapshot, made if it isn't there
+   * @param syncMillis Milliseconds between forcing the journal to disk, or 0 for every write
+   * @param snapshotEvery Records between snapshots
+   * @param metrics Where to count and time writes
+   */
+  public Journal( File dir, long syncMillis, int snapshotEvery, Metrics metrics ) {
+    this.dir = dir;
+    this.syncNanos = TimeUnit.MILLISECONDS.toNanos( syncMillis );
+    this.snapshotEvery = Math.max( 1, snapshotEvery );
+    this.metrics = metrics;
+  }
+
+  /**
+   * Puts back every placement from the snapshot and the journal, then compacts them into a
+   * new snapshot and starts writing.  This must be done before any placements are appended.
+   * @param replay Puts each placement back, in the order it was made
+   * @return The number of placements put back
+   */
+  public long recover( Replay replay ) throws IOException {
+    if ( !dir.isDirectory() && !dir.mkdirs() )
+      throw new IOException( "Can't make journal directory " + dir );
+
+    // Recovery rewrites the snapshot and deletes segments, so two servers can't share it.
+    lock = FileChannel.open( new File( dir, LOCK ).toPath(), StandardOpenOption.CREATE,
+                             StandardOpenOption.WRITE );
+    if ( lock.tryLock() == null )
+      throw new IOException( "Another server is using the journal in " + dir );
+
+    long count = 0;
+    File snapshot = new File( dir, SNAPSHOT );
+    if ( snapshot.exists() )
+      count += readSnapshot( snapshot, replay );
+
+    // Records the snapshot already has are skipped.
+    long covered = seq;
+    for ( File file : segments() )
+      count += readSegment( file, covered, replay );
+
+    writeSnapshot();
+    writer = new Thread( this::write, "journal" );
+    writer.setDaemon( true );
+    writer.start();
+    return count;
+  }
+
+  /**
+   * Queues a placement to be written.  This never waits for the disk.  Placements in the same
+   * cell have to be appended in the order the board took them.
+   * @param room Name of the room
+   * @param user Name of the user who placed it
+   * @param let The letter, or 0 to give the user just the points
+   * @param row The row it went in
+   * @param col The column it went in
+   * @param points The points it was worth
+   */
+  public void append( String room, String user, char let, int row, int col, int points ) {
+    hand( new Entry( room, user, let, row, col, points ) );
+  }
+
+  /**
+   * Queues a record that a room has been handed to another server, so its placements so far
+   * aren't put back when this one restarts.
+   * @param room Name of the room
+   */
+  public void drop( String room ) {
+    hand( new Entry( room, "", ( char ) 0, 0, 0, 0 ) );
+  }
+
+  /**
+   * Waits for everything appended so far to be forced to disk, for shutting down.
+   * @param millis Longest to wait
+   */
+  public void flush( long millis ) {
+    CountDownLatch flushed = new CountDownLatch( 1 );
+    hand( new Entry( flushed ) );
+    try {
+      flushed.await( millis, TimeUnit.MILLISECONDS );
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Hands an entry to the writer, waking it only if it's waiting.
+   * @param e The entry
+   */
+  private void hand( Entry e ) {
+    queue.add( e );
+    if ( waiting )
+      LockSupport.unpark( writer );
+  }
+
+  /**
+   * Takes the next entry, waiting for one if there isn't one yet.  The writer says it's
+   * waiting before it looks at the queue for the last time, so an entry handed over after
+   * that look always wakes it.
+   * @param nanos Longest to wait, or 0 to wait as long as it takes
+   * @return The entry, or null if none came in time
+   */
+  private Entry next( long nanos ) throws InterruptedException {
+    long until = System.nanoTime() + nanos;
+    while ( true ) {
+      Entry e = queue.poll();
+      if ( e != null )
+        return e;
+      waiting = true;
+      if ( queue.isEmpty() ) {
+        if ( nanos == 0 )
+          LockSupport.park( this );
+        else if ( until - System.nanoTime() > 0 )
+          LockSupport.parkNanos( this, until - System.nanoTime() );
+        else {
+          waiting = false;
+          return null;
+        }
+      }
+      waiting = false;
+      if ( Thread.interrupted() )
+        throw new InterruptedException();
+    }
+  }
+
+  /**
+   * Body of the writer thread.  It writes whatever has queued up, and forces the journal to
+   * disk once the sync interval has gone by since the last time, or straight away if asked
+   * to flush.
+   */
+  private void write() {
+    List< Entry > batch = new ArrayList< Entry >();
+    long lastSync = System.nanoTime();
+    boolean dirty = false;
+    while ( true ) {
+      try {
+        // With nothing unsynced, wait as long as it takes for something to write.
+        Entry first;
+        if ( dirty )
+          first = next( Math.max( 1, lastSync + syncNanos - System.nanoTime() ) );
+        else
+          first = next( 0 );
+
+        boolean flush = false;
+        if ( first != null ) {
+          batch.add( first );
+          for ( Entry e; batch.size() < MAX_BATCH && ( e = queue.poll() ) != null; )
+            batch.add( e );
+          for ( Entry e : batch ) {
+            if ( e.flushed != null )
+              flush = true;
+            else {
+              writeRecord( e );
+              dirty = true;
+            }
+          }
+          drain();
+        }
+
+        if ( dirty && ( flush || System.nanoTime() - lastSync >= syncNanos ) ) {
+          long begin = System.nanoTime();
+          segment.force( false );
+          metrics.journalSync.record( System.nanoTime() - begin );
+          lastSync = System.nanoTime();
+          dirty = false;
+        }
+        for ( Entry e : batch )
+          if ( e.flushed != null )
+            e.flushed.countDown();
+        batch.clear();
+
+        if ( sinceSnapshot >= snapshotEvery && !dirty )
+          writeSnapshot();
+      } catch ( InterruptedException e ) {
+        return;
+      } catch ( IOException e ) {
+        System.err.println( "Journal error: " + e );
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Encodes a placement into the buffer, writing the buffer out first if it's full, and adds
+   * it to the placements for the next snapshot.
+   * @param e The placement
+   */
+  private void writeRecord( Entry e ) throws IOException {
+    byte[] room = e.room.getBytes( StandardCharsets.UTF_8 );
+    byte[] user = e.user.getBytes( StandardCharsets.UTF_8 );
+    int len = RECORD_FIXED + room.length + user.length;
+    if ( buf.remaining() < RECORD_HEADER + len ) {
+      drain();
+      if ( buf.capacity() < RECORD_HEADER + len )
+        buf = ByteBuffer.allocateDirect( RECORD_HEADER + len );
+    }
+
+    int start = buf.position();
+    buf.putInt( len ).putInt( 0 );
+    buf.putLong( ++seq ).putInt( e.row ).putInt( e.col ).putChar( e.let ).putInt( e.points );
+    buf.putShort( ( short ) room.length ).put( room );
+    buf.putShort( ( short ) user.length ).put( user );
+    buf.putInt( start + 4, checksum( buf, start + RECORD_HEADER, len ) );
+
+    if ( e.let == 0 && e.user.isEmpty() )
+      rooms.remove( e.room );
+    else
+      remember( e.room, e.user, e.let, e.row, e.col, e.points );
+    metrics.journaled.increment();
+    sinceSnapshot++;
+  }
+
+  /**
+   * Writes out everything in the buffer.
+   */
+  private void drain() throws IOException {
+    buf.flip();
+    while ( buf.hasRemaining() )
+      segment.write( buf );
+    buf.clear();
+  }
+
+  /**
+   * Takes the CRC of part of a buffer.
+   * @param b The buffer
+   * @param off Where the part starts
+   * @param len How long it is
+   * @return The CRC
+   */
+  private int checksum( ByteBuffer b, int off, int len ) {
+    crc.reset();
+    crc.update( b.duplicate().limit( off + len ).position( off ) );
+    return ( int ) crc.getValue();
+  }
+
+  /**
+   * Adds a placement to the image of its room that the next snapshot will hold.
+   * @param room Name of the room
+   * @param user Name of the user
+   * @param let The letter, or 0 for just the points
+   * @param row The row
+   * @param col The column
+   * @param points The points
+   */
+  private void remember( String room, String user, char let, int row, int col, int points ) {
+    int number = -1;
+    if ( points != 0 )
+      number = userNumbers.computeIfAbsent( user, u -> {
+          userNames.add( u );
+          return userNames.size() - 1;
+        } );
+    rooms.computeIfAbsent( room, r -> new Image() ).add( row, col, let, number, points );
+  }
+
+  /**
+   * Lists the journal's segments, oldest first.
+   * @return The segment files
+   */
+  private File[] segments() {
+    File[] files = dir.listFiles( ( d, name ) -> name.startsWith( SEGMENT_PREFIX )
+                                  && name.endsWith( SEGMENT_SUFFIX ) );
+    if ( files == null )
+      return new File [ 0 ];
+    Arrays.sort( files );
+    return files;
+  }
+
+  /**
+   * Replays the records in a segment, stopping at the first one that wasn't written whole.
+   * @param file The segment
+   * @param covered Number of the last record the snapshot already has
+   * @param replay Puts each placement back
+   * @return The number of placements put back
+   */
+  private long readSegment( File file, long covered, Replay replay ) throws IOException {
+    ByteBuffer in = ByteBuffer.wrap( Files.readAllBytes( file.toPath() ) );
+    long count = 0;
+    while ( in.remaining() >= RECORD_HEADER ) {
+      int start = in.position();
+      int len = in.getInt();
+      int sum = in.getInt();
+      if ( len < RECORD_FIXED || len > in.remaining()
+           || checksum( in, start + RECORD_HEADER, len ) != sum )
+        break;
+
+      long n = in.getLong();
+      int row = in.getInt(), col = in.getInt();
+      char let = in.getChar();
+      int points = in.getInt();
+      String room = getString( in );
+      String user = getString( in );
+      in.position( start + RECORD_HEADER + len );
+      if ( n <= covered )
+        continue;
+
+      if ( let == 0 && user.isEmpty() ) {
+        replay.drop( room );
+        rooms.remove( room );
+      } else {
+        replay.place( room, user, let, row, col, points );
+        remember( room, user, let, row, col, points );
+        if ( let != 0 )
+          count++;
+      }
+      seq = n;
+    }
+    return count;
+  }
+
+  /**
+   * Replays the rooms in a snapshot: the letter in each cell, then each user's score.
+   * @param file The snapshot
+   * @param replay Puts each letter and score back
+   * @return The number of letters put back
+   */
+  private long readSnapshot( File file, Replay replay ) throws IOException {
+    MappedByteBuffer in;
+    try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+      in = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+    }
+    int version = in.remaining() < 20 || in.getInt() != MAGIC ? 0 : in.getInt();
+    if ( version != VERSION )
+      throw new IOException( file + " isn't a snapshot" );
+    seq = in.getLong();
+
+    String[] users = new String [ in.getInt() ];
+    for ( int i = 0; i < users.length; i++ )
+      users[ i ] = getString( in );
+
+    long count = 0;
+    int roomCount = in.getInt();
+    for ( int r = 0; r < roomCount; r++ ) {
+      String room = getString( in );
+      int cells = in.getInt();
+      for ( int i = 0; i < cells; i++ ) {
+        int row = in.getInt(), col = in.getInt();
+        char let = in.getChar();
+        replay.place( room, null, let, row, col, 0 );
+        remember( room, null, let, row, col, 0 );
+        count++;
+      }
+      int scores = in.getInt();
+      for ( int i = 0; i < scores; i++ ) {
+        String user = users[ in.getInt() ];
+        int points = in.getInt();
+        replay.place( room, user, ( char ) 0, 0, 0, points );
+        remember( room, user, ( char ) 0, 0, 0, points );
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Writes the image of every room to a new snapshot through a memory-mapped file, and moves
+   * it into place.  Then the old segments are deleted, and a new one is started.
+   */
+  private void writeSnapshot() throws IOException {
+    // Work out how big the snapshot will be, so the whole thing can be mapped at once.
+    List< byte[] > users = new ArrayList< byte[] >();
+    long size = 20;
+    for ( String name : userNames ) {
+      users.add( name.getBytes( StandardCharsets.UTF_8 ) );
+      size += 2 + users.get( users.size() - 1 ).length;
+    }
+    size += 4;
+    for ( Map.Entry< String, Image > room : rooms.entrySet() )
+      size += 10 + room.getKey().getBytes( StandardCharsets.UTF_8 ).length
+        + 10L * room.getValue().cells.size() + 8L * room.getValue().scores.size();
+
+    File temp = new File( dir, SNAPSHOT_TEMP );
+    Files.deleteIfExists( temp.toPath() );
+    try ( FileChannel channel = FileChannel.open( temp.toPath(), StandardOpenOption.CREATE_NEW,
+                                                  StandardOpenOption.READ,
+                                                  StandardOpenOption.WRITE ) ) {
+      MappedByteBuffer out = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+      out.putInt( MAGIC ).putInt( VERSION ).putLong( seq );
+      out.putInt( users.size() );
+      for ( byte[] name : users )
+        out.putShort( ( short ) name.length ).put( name );
+      out.putInt( rooms.size() );
+      for ( Map.Entry< String, Image > room : rooms.entrySet() ) {
+        byte[] name = room.getKey().getBytes( StandardCharsets.UTF_8 );
+        Image image = room.getValue();
+        out.putShort( ( short ) name.length ).put( name ).putInt( image.cells.size() );
+        for ( Map.Entry< Long, Character > cell : image.cells.entrySet() )
+          out.putInt( ( int ) ( cell.getKey() >> 32 ) ).putInt( ( int ) ( long ) cell.getKey() )
+            .putChar( cell.getValue() );
+        out.putInt( image.scores.size() );
+        for ( Map.Entry< Integer, Integer > score : image.scores.entrySet() )
+          out.putInt( score.getKey() ).putInt( score.getValue() );
+      }
+      out.force();
+    }
+    Files.move( temp.toPath(), new File( dir, SNAPSHOT ).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+    // Everything in the segments is in the snapshot now.
+    if ( segment != null )
+      segment.close();
+    for ( File file : segments() )
+      Files.delete( file.toPath() );
+    segment = FileChannel.open( new File( dir, String.format( "%s%019d%s", SEGMENT_PREFIX,
+                                                              seq + 1, SEGMENT_SUFFIX ) )
+                                .toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.APPEND );
+    sinceSnapshot = 0;
+  }
+
+  /**
+   * Reads a string written as its length then its bytes in UTF-8.
+   * @param in Buffer to read from
+   * @return The string
+   */
+  private static String getString( ByteBuffer in ) {
+    byte[] bytes = new byte [ in.getShort() & 0xFFFF ];
+    in.get( bytes );
+    return new String( bytes, StandardCharsets.UTF_8 );
+  }
+}
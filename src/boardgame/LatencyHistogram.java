@@ -0,0 +1,166 @@
+/**
+ * A histogram of latencies in the style of HdrHistogram. Values are counted in buckets whose
+ * width grows with the value, so percentiles come out within a fraction of a percent whether
+ * a latency is a few microseconds or several seconds, using a small fixed amount of memory.
+ * @file LatencyHistogram.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Log-linear histogram of nanosecond values.  Values below 2^SUB_BITS get a bucket each.
+ * Above that, every power of two is split into 2^(SUB_BITS - 1) equal buckets, so each
+ * bucket is less than 1% wide.  Recording is a single atomic increment, never allocates, and
+ * can be done from any number of threads at once.
+ */
+public class LatencyHistogram {
+  /** Bits of precision kept for each value. */
+  private static final int SUB_BITS = 8;
+
+  /** Buckets for each power of two above the linear range. */
+  private static final int HALF = 1 << ( SUB_BITS - 1 );
+
+  /** Enough buckets for any non-negative long. */
+  private static final int BUCKETS = ( 64 - SUB_BITS ) * HALF + 2 * HALF;
+
+  /** How many values fell in each bucket. */
+  private AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+
+  /** Largest value recorded. */
+  private LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+  /**
+   * Works out which bucket a value goes in.
+   * @param value The value, which must not be negative
+   * @return The bucket's index
+   */
+  private static int index( long value ) {
+    int msb = 63 - Long.numberOfLeadingZeros( value );
+    if ( msb < SUB_BITS )
+      return ( int ) value;
+    int shift = msb - SUB_BITS + 1;
+    return shift * HALF + ( int ) ( value >>> shift );
+  }
+
+  /**
+   * Works out the largest value that goes in a bucket.
+   * @param index The bucket's index
+   * @return The largest value counted in that bucket
+   */
+  private static long highest( int index ) {
+    if ( index < 2 * HALF )
+      return index;
+    int shift = index / HALF - 1;
+    long mantissa = index - shift * HALF;
+    return ( ( mantissa + 1 ) << shift ) - 1;
+  }
+
+  /**
+   * Counts one value.  Negative values are counted as zero.
+   * @param nanos The value, normally a latency in nanoseconds
+   */
+  public void record( long nanos ) {
+    if ( nanos < 0 )
+      nanos = 0;
+    counts.incrementAndGet( index( nanos ) );
+    max.accumulate( nanos );
+  }
+
+  /**
+   * Adds every value counted in another histogram to this one.
+   * @param other The histogram to add
+   */
+  public void add( LatencyHistogram other ) {
+    for ( int i = 0; i < BUCKETS; i++ ) {
+      long c = other.counts.get( i );
+      if ( c != 0 )
+        counts.addAndGet( i, c );
+    }
+    max.accumulate( other.max.get() );
+  }
+
+  /**
+   * Makes a copy of this histogram and empties it, for reporting one interval at a time.
+   * Values recorded while this runs end up in either the copy or this histogram, never both.
+   * @return A histogram holding what this one held
+   */
+  public LatencyHistogram takeInterval() {
+    LatencyHistogram interval = new LatencyHistogram();
+    for ( int i = 0; i < BUCKETS; i++ ) {
+      long c = counts.getAndSet( i, 0 );
+      if ( c != 0 )
+        interval.counts.set( i, c );
+    }
+    interval.max.accumulate( max.getThenReset() );
+    return interval;
+  }
+
+  /**
+   * Reports how many values have been counted.
+   * @return The number of values
+   */
+  public long count() {
+    long total = 0;
+    for ( int i = 0; i < BUCKETS; i++ )
+      total += counts.get( i );
+    return total;
+  }
+
+  /**
+   * Reports the largest value counted.
+   * @return The largest value, or 0 if there aren't any
+   */
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * Reports the mean of the values counted, taking each one as the middle of its bucket.
+   * @return The mean, or 0 if there aren't any values
+   */
+  public double mean() {
+    double sum = 0;
+    long total = 0;
+    for ( int i = 0; i < BUCKETS; i++ ) {
+      long c = counts.get( i );
+      if ( c != 0 ) {
+        long low = i == 0 ? 0 : highest( i - 1 ) + 1;
+        sum += c * ( low + highest( i ) ) / 2.0;
+        total += c;
+      }
+    }
+    return total == 0 ? 0 : sum / total;
+  }
+
+  /**
+   * Reports the value that a given percentage of the values are at or below.
+   * @param percent The percentile, from 0 to 100
+   * @return The largest value in the bucket holding that percentile, or 0 if there aren't any
+   */
+  public long percentile( double percent ) {
+    long total = count();
+    if ( total == 0 )
+      return 0;
+    long rank = Math.max( 1, ( long ) Math.ceil( percent / 100.0 * total ) );
+    long seen = 0;
+    for ( int i = 0; i < BUCKETS; i++ ) {
+      seen += counts.get( i );
+      if ( seen >= rank )
+        return Math.min( highest( i ), max.get() );
+    }
+    return max.get();
+  }
+
+  /**
+   * Summarizes the histogram on one line, in microseconds.
+   * @return The count, percentiles and maximum
+   */
+  public String summary() {
+    return String.format( "n=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                          count(), mean() / 1e3, percentile( 50 ) / 1e3, percentile( 99 ) / 1e3,
+                          percentile( 99.9 ) / 1e3, max() / 1e3 );
+  }
+}
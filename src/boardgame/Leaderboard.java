@@ -0,0 +1,333 @@
+/**
+ * Standings for a room, kept in order as letters are placed, so users can ask who's winning
+ * and where they stand without getting every player's score.
+ * @file Leaderboard.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Players in order of score, highest first, and by name among players with the same score.
+ * Only players who have scored are kept.  The order is kept in a treap where every node knows
+ * how many nodes are under it, so a player's rank and the top few players can be found in
+ * logarithmic time.  The treap is never changed once it's published; an update copies the
+ * nodes on the way to the player and publishes a new root, so queries never lock.
+ *
+ * Placements don't touch the treap.  They just mark the player as changed and schedule a
+ * catch-up on the workers shared by every room, as subscriptions do, so a busy room does one
+ * catch-up for many placements.  Queries catch up first, so they see every placement made
+ * before them.  Catching up is the only thing that takes the lock.
+ */
+public class Leaderboard {
+  /** A player's place in the standings. */
+  private static class Node {
+    // The player's score and name, which order the nodes.
+    final long score;
+    final String name;
+
+    // Heap order for the treap, taken from the name so it's fixed for each player.
+    final int priority;
+
+    // Players ahead of and behind this one, and how many nodes there are here and below.
+    final Node left, right;
+    final int size;
+
+    /**
+     * Makes a node.
+     * @param score The player's score
+     * @param name The player's name
+     * @param priority Heap order for the treap
+     * @param left Players ahead of this one
+     * @param right Players behind this one
+     */
+    Node( long score, String name, int priority, Node left, Node right ) {
+      this.score = score;
+      this.name = name;
+      this.priority = priority;
+      this.left = left;
+      this.right = right;
+      this.size = 1 + size( left ) + size( right );
+    }
+
+    /**
+     * Makes a copy of this node with other children.
+     * @param left Players ahead of this one
+     * @param right Players behind this one
+     * @return The copy
+     */
+    Node with( Node left, Node right ) {
+      return new Node( score, name, priority, left, right );
+    }
+  }
+
+  /** Something to do with each player in the standings. */
+  interface Visitor {
+    /**
+     * Visits one player.
+     * @param rank The player's rank, shared with everyone on the same score
+     * @param name The player's name
+     * @param score The player's score
+     */
+    void visit( int rank, String name, long score );
+  }
+
+  /** Reads a player's current score. */
+  private ToLongFunction< Server.UserRec > scores;
+
+  /** Workers to catch up on, shared by every room. */
+  private Executor workers;
+
+  /** The published standings, or null if nobody has scored. */
+  private volatile Node root;
+
+  /** Players whose score has changed since the last catch-up. */
+  private Set< Server.UserRec > changed = ConcurrentHashMap.newKeySet();
+
+  /** True while a catch-up is waiting for a worker. */
+  private AtomicBoolean scheduled = new AtomicBoolean();
+
+  /** Held while catching up, and guards the scores the standings were last built with. */
+  private ReentrantLock lock = new ReentrantLock();
+  private Map< Server.UserRec, Long > ranked = new HashMap< Server.UserRec, Long >();
+
+  /**
+   * Makes empty standings.
+   * @param scores Reads a player's current score
+   * @param workers Workers to catch up on
+   */
+  public Leaderboard( ToLongFunction< Server.UserRec > scores, Executor workers ) {
+    this.scores = scores;
+    this.workers = workers;
+  }
+
+  /**
+   * Lets the standings know a player's score has changed.  This is cheap, so it's fine to call
+   * on every placement.
+   * @param rec The player
+   */
+  public void changed( Server.UserRec rec ) {
+    changed.add( rec );
+    if ( scheduled.compareAndSet( false, true ) )
+      workers.execute( () -> {
+          scheduled.set( false );
+          catchUp();
+        } );
+  }
+
+  /**
+   * Moves every changed player to their place for their current score.
+   */
+  private void catchUp() {
+    // Players are only taken off the list under the lock, so if it's empty and nobody holds
+    // the lock, every change so far has been published.
+    if ( changed.isEmpty() && !lock.isLocked() )
+      return;
+    lock.lock();
+    try {
+      Node node = root;
+      for ( Iterator< Server.UserRec > it = changed.iterator(); it.hasNext(); ) {
+        // Take the player off the list before reading their score, so a placement that lands
+        // after we've read it puts them back on.
+        Server.UserRec rec = it.next();
+        it.remove();
+        long score = scores.applyAsLong( rec );
+        Long old = ranked.put( rec, score );
+        if ( old != null ) {
+          if ( old == score )
+            continue;
+          node = remove( node, old, rec.name );
+        }
+        node = insert( node, new Node( score, rec.name, priority( rec.name ), null, null ) );
+      }
+      root = node;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Forgets every score, for a new game.
+   */
+  public void reset() {
+    lock.lock();
+    try {
+      changed.clear();
+      ranked.clear();
+      root = null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reports how many players have scored.
+   * @return The number of players in the standings
+   */
+  public int size() {
+    catchUp();
+    return size( root );
+  }
+
+  /**
+   * Works out where a score would put a player.  Players on the same score share a rank.
+   * @param score The score
+   * @return One more than the number of players with a higher score
+   */
+  public int rank( long score ) {
+    catchUp();
+    int ahead = 0;
+    for ( Node node = root; node != null; ) {
+      if ( node.score > score ) {
+        ahead += size( node.left ) + 1;
+        node = node.right;
+      } else
+        node = node.left;
+    }
+    return ahead + 1;
+  }
+
+  /**
+   * Visits the players with the highest scores, highest first.
+   * @param k Most players to visit
+   * @param visitor What to do with each one
+   */
+  public void top( int k, Visitor visitor ) {
+    catchUp();
+    Deque< Node > path = new ArrayDeque< Node >();
+    Node node = root;
+    int n = 0, rank = 0;
+    long last = 0;
+    while ( n < k && ( node != null || !path.isEmpty() ) ) {
+      if ( node != null ) {
+        path.push( node );
+        node = node.left;
+        continue;
+      }
+
+      // A player's rank only moves on from the one before when the score drops.
+      node = path.pop();
+      n++;
+      if ( n == 1 || node.score != last )
+        rank = n;
+      last = node.score;
+      visitor.visit( rank, node.name, node.score );
+      node = node.right;
+    }
+  }
+
+  /**
+   * Reports the size of a subtree.
+   * @param node The subtree, or null
+   * @return The number of nodes in it
+   */
+  private static int size( Node node ) {
+    return node == null ? 0 : node.size;
+  }
+
+  /**
+   * Spreads the bits of a name's hash, for a treap priority.
+   * @param name The player's name
+   * @return The priority
+   */
+  private static int priority( String name ) {
+    int h = name.hashCode() * 0x9E3779B9;
+    return h ^ ( h >>> 16 );
+  }
+
+  /**
+   * Orders players by score, highest first, then by name.
+   * @param score One player's score
+   * @param name That player's name
+   * @param node The other player
+   * @return Less than zero if the first player comes first, more than zero if it comes after
+   */
+  private static int compare( long score, String name, Node node ) {
+    if ( score != node.score )
+      return score > node.score ? -1 : 1;
+    return name.compareTo( node.name );
+  }
+
+  /**
+   * Adds a node to a subtree, copying the nodes on the way to where it goes.
+   * @param node The subtree
+   * @param add The node to add, with no children
+   * @return The new subtree
+   */
+  private static Node insert( Node node, Node add ) {
+    if ( node == null )
+      return add;
+    if ( add.priority > node.priority ) {
+      Node[] parts = split( node, add.score, add.name );
+      return add.with( parts[ 0 ], parts[ 1 ] );
+    }
+    if ( compare( add.score, add.name, node ) < 0 )
+      return node.with( insert( node.left, add ), node.right );
+    return node.with( node.left, insert( node.right, add ) );
+  }
+
+  /**
+   * Splits a subtree into the players before a place in the order and the ones after it.
+   * @param node The subtree
+   * @param score Score of the place to split at
+   * @param name Name of the place to split at
+   * @return The players before the place, then the ones after it
+   */
+  private static Node[] split( Node node, long score, String name ) {
+    if ( node == null )
+      return new Node [ 2 ];
+    if ( compare( score, name, node ) < 0 ) {
+      Node[] parts = split( node.left, score, name );
+      parts[ 1 ] = node.with( parts[ 1 ], node.right );
+      return parts;
+    }
+    Node[] parts = split( node.right, score, name );
+    parts[ 0 ] = node.with( node.left, parts[ 0 ] );
+    return parts;
+  }
+
+  /**
+   * Takes a player out of a subtree, copying the nodes on the way to them.
+   * @param node The subtree
+   * @param score The player's score
+   * @param name The player's name
+   * @return The new subtree
+   */
+  private static Node remove( Node node, long score, String name ) {
+    if ( node == null )
+      return null;
+    int c = compare( score, name, node );
+    if ( c < 0 )
+      return node.with( remove( node.left, score, name ), node.right );
+    if ( c > 0 )
+      return node.with( node.left, remove( node.right, score, name ) );
+    return merge( node.left, node.right );
+  }
+
+  /**
+   * Joins two subtrees, where every player in the first comes before every one in the second.
+   * @param a The first subtree
+   * @param b The second subtree
+   * @return The joined subtree
+   */
+  private static Node merge( Node a, Node b ) {
+    if ( a == null )
+      return b;
+    if ( b == null )
+      return a;
+    if ( a.priority > b.priority )
+      return a.with( a.left, merge( a.right, b ) );
+    return b.with( merge( a, b.left ), b.right );
+  }
+}
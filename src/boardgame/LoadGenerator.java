@@ -0,0 +1,336 @@
+/**
+ * Drives a running server with many authenticated users at once, the way a busy game would,
+ * and reports how fast and how consistently it answers. It uses the same protocol code as the
+ * Client, and logs in with the users' keys from the input directory.
+ * @file LoadGenerator.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.File;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for sizing hardware for the server.  It has three modes:
+ *
+ *   steady  Logs in a number of sessions and has them send a mix of board and place commands
+ *           at a fixed total rate, then reports throughput and latency.
+ *   soak    The same as steady, but meant to run for hours, with a report for every interval
+ *           so slow drift in latency or errors shows up.
+ *   storm   Has a number of threads log in and out as fast as they can, and reports how many
+ *           logins the server can take and how long each handshake takes.
+ *
+ * Commands are sent on a fixed schedule, and latency is measured from when each command was
+ * due to be sent rather than when it actually went out.  If the server stalls, the commands
+ * that should have gone out during the stall are counted as waiting for all of it, instead
+ * of quietly not being sent.
+ */
+public class LoadGenerator {
+  /** Options for the command line, and what they're for. */
+  private static final String USAGE =
+    "Usage: LoadGenerator <steady|soak|storm> <host> [options]\n"
+    + "  -sessions <n>   sessions to log in, or threads logging in for storm (default 10)\n"
+    + "  -rate <n>       commands per second across all sessions (default 1000)\n"
+    + "  -seconds <n>    how long to run (default 30, or 3600 for soak)\n"
+    + "  -place <pct>    percentage of commands that are place commands (default 20)\n"
+    + "  -report <n>     seconds between interval reports (default 10 for soak, off otherwise)\n"
+    + "  -binary         use the binary protocol\n"
+    + "  -ecb            encrypt with AES-ECB instead of AES-GCM\n"
+    + "  -resume         storm with resumption tickets after each user's first login";
+
+  /** Settings from the command line. */
+  private String mode, host;
+  private int sessions = 10;
+  private double rate = 1000;
+  private int seconds = -1;
+  private int placePercent = 20;
+  private int reportSeconds = -1;
+  private boolean binary;
+  private boolean resume;
+  private boolean ecb;
+
+  /** Size of the board, for picking places to put letters. */
+  private int height, width;
+
+  /** Users we can log in as, with their private keys. */
+  private List< String > names = new ArrayList< String >();
+  private List< PrivateKey > keys = new ArrayList< PrivateKey >();
+
+  /** Latency of each kind of command, measured from when it was due. */
+  private LatencyHistogram boardLatency = new LatencyHistogram();
+  private LatencyHistogram placeLatency = new LatencyHistogram();
+
+  /** The same latencies, emptied at each interval report. */
+  private LatencyHistogram interval = new LatencyHistogram();
+
+  /** Commands that failed, and sessions that have been lost. */
+  private AtomicLong errors = new AtomicLong();
+  private AtomicLong lost = new AtomicLong();
+
+  /** Placements the server accepted. */
+  private AtomicLong accepted = new AtomicLong();
+
+  /** Storm logins that used a ticket instead of RSA. */
+  private AtomicLong resumed = new AtomicLong();
+
+  /**
+   * Runs the load generator.
+   * @param args The mode, the server's host, then any options
+   */
+  public static void main( String[] args ) throws Exception {
+    LoadGenerator gen = new LoadGenerator();
+    if ( !gen.parse( args ) ) {
+      System.out.println( USAGE );
+      System.exit( -1 );
+    }
+    gen.run();
+    System.exit( 0 );
+  }
+
+  /**
+   * Reads the command line.
+   * @param args The program arguments
+   * @return False if they don't make sense
+   */
+  private boolean parse( String[] args ) {
+    if ( args.length < 2 || !args[ 0 ].matches( "steady|soak|storm" ) )
+      return false;
+    mode = args[ 0 ];
+    host = args[ 1 ];
+
+    try {
+      for ( int i = 2; i < args.length; i++ ) {
+        if ( args[ i ].equals( "-binary" ) )
+          binary = true;
+        else if ( args[ i ].equals( "-resume" ) )
+          resume = true;
+        else if ( args[ i ].equals( "-ecb" ) )
+          ecb = true;
+        else if ( i + 1 >= args.length )
+          return false;
+        else if ( args[ i ].equals( "-sessions" ) )
+          sessions = Integer.parseInt( args[ ++i ] );
+        else if ( args[ i ].equals( "-rate" ) )
+          rate = Double.parseDouble( args[ ++i ] );
+        else if ( args[ i ].equals( "-seconds" ) )
+          seconds = Integer.parseInt( args[ ++i ] );
+        else if ( args[ i ].equals( "-place" ) )
+          placePercent = Integer.parseInt( args[ ++i ] );
+        else if ( args[ i ].equals( "-report" ) )
+          reportSeconds = Integer.parseInt( args[ ++i ] );
+        else
+          return false;
+      }
+    } catch ( NumberFormatException e ) {
+      return false;
+    }
+
+    if ( seconds < 0 )
+      seconds = mode.equals( "soak" ) ? 3600 : 30;
+    if ( reportSeconds < 0 && mode.equals( "soak" ) )
+      reportSeconds = 10;
+    return sessions > 0 && rate > 0 && seconds > 0;
+  }
+
+  /**
+   * Gets ready and runs the chosen mode.
+   */
+  private void run() throws Exception {
+    readBoardSize();
+    SessionBenchmark.readUsers( names, keys );
+    SessionBenchmark.dropFailingUsers( host, names, keys );
+    if ( names.isEmpty() ) {
+      System.out.println( "No users could log in" );
+      return;
+    }
+
+    if ( mode.equals( "storm" ) )
+      storm();
+    else
+      steady();
+  }
+
+  /**
+   * Reads the size of the board from the first line of the board file.
+   */
+  private void readBoardSize() throws Exception {
+    Scanner input = new Scanner( new File( "../input/board.txt" ) );
+    height = input.nextInt();
+    width = input.nextInt();
+    input.close();
+  }
+
+  /**
+   * Logs in the sessions and has each one send commands on its own share of the schedule
+   * until time is up, reporting along the way if asked to.
+   */
+  private void steady() throws Exception {
+    System.out.printf( "logging in %d sessions%n", sessions );
+    List< Client.Connection > conns = new ArrayList< Client.Connection >();
+    for ( int i = 0; i < sessions; i++ ) {
+      int u = i % names.size();
+      conns.add( new Client.Connection( host, Server.PORT_NUMBER, names.get( u ), keys.get( u ),
+                                        binary, !ecb ) );
+    }
+
+    // Each session sends a command every period, offset so they don't all go at once.
+    long period = ( long ) ( sessions * 1e9 / rate );
+    long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( 100 );
+    long end = start + TimeUnit.SECONDS.toNanos( seconds );
+    List< Thread > drivers = new ArrayList< Thread >();
+    for ( int i = 0; i < sessions; i++ ) {
+      Client.Connection conn = conns.get( i );
+      long first = start + period * i / sessions;
+      Thread t = new Thread( () -> drive( conn, first, period, end ), "session-" + i );
+      t.setDaemon( true );
+      t.start();
+      drivers.add( t );
+    }
+
+    report( start, end );
+    for ( Thread t : drivers )
+      t.join();
+    double elapsed = ( System.nanoTime() - start ) / 1e9;
+
+    LatencyHistogram all = new LatencyHistogram();
+    all.add( boardLatency );
+    all.add( placeLatency );
+    System.out.printf( "mode:            %s%s%s%n", mode, binary ? " (binary)" : "",
+                       ecb ? " (ecb)" : "" );
+    System.out.printf( "sessions:        %d, %d lost%n", sessions, lost.get() );
+    System.out.printf( "target rate:     %.0f commands/s%n", rate );
+    System.out.printf( "achieved rate:   %.0f commands/s%n", all.count() / elapsed );
+    System.out.printf( "errors:          %d%n", errors.get() );
+    System.out.printf( "placements:      %d accepted of %d%n", accepted.get(),
+                       placeLatency.count() );
+    System.out.printf( "all commands:    %s%n", all.summary() );
+    System.out.printf( "board:           %s%n", boardLatency.summary() );
+    System.out.printf( "place:           %s%n", placeLatency.summary() );
+
+    for ( Client.Connection conn : conns ) {
+      try {
+        conn.close();
+      } catch ( Exception e ) {
+      }
+    }
+  }
+
+  /**
+   * Sends commands on one session, one every period, until time is up.  If the server falls
+   * behind, commands go out back to back until the session has caught up with its schedule.
+   * @param conn The session
+   * @param first When the first command is due
+   * @param period Nanoseconds between commands
+   * @param end When to stop
+   */
+  private void drive( Client.Connection conn, long first, long period, long end ) {
+    ThreadLocalRandom rand = ThreadLocalRandom.current();
+    for ( long due = first; due < end; due += period ) {
+      long wait = due - System.nanoTime();
+      if ( wait > 0 )
+        LockSupport.parkNanos( wait );
+
+      boolean place = rand.nextInt( 100 ) < placePercent;
+      String request = place ? "place " + ( char ) ( 'a' + rand.nextInt( 26 ) ) + " "
+        + rand.nextInt( height ) + " " + rand.nextInt( width ) : "board";
+      try {
+        String reply = conn.request( request );
+        long latency = System.nanoTime() - due;
+        interval.record( latency );
+        if ( place ) {
+          placeLatency.record( latency );
+          if ( reply.endsWith( "points\n" ) )
+            accepted.incrementAndGet();
+        } else
+          boardLatency.record( latency );
+      } catch ( Exception e ) {
+        errors.incrementAndGet();
+        lost.incrementAndGet();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Prints a line for each interval until time is up, if interval reports were asked for.
+   * @param start When the run started
+   * @param end When the run ends
+   */
+  private void report( long start, long end ) throws InterruptedException {
+    if ( reportSeconds <= 0 )
+      return;
+    long next = start;
+    while ( ( next += TimeUnit.SECONDS.toNanos( reportSeconds ) ) <= end ) {
+      long wait = next - System.nanoTime();
+      if ( wait > 0 )
+        TimeUnit.NANOSECONDS.sleep( wait );
+      LatencyHistogram last = interval.takeInterval();
+      System.out.printf( "%6ds  %7.0f/s  errors=%d  %s%n",
+                         TimeUnit.NANOSECONDS.toSeconds( next - start ),
+                         last.count() / ( double ) reportSeconds, errors.get(), last.summary() );
+    }
+  }
+
+  /**
+   * Has each thread log in and straight back out again, as fast as it can, until time is up.
+   * When resuming, each thread logs in with RSA the first time it uses each user and keeps
+   * the ticket it gets, then uses that ticket from then on.
+   */
+  private void storm() throws Exception {
+    LatencyHistogram logins = new LatencyHistogram();
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos( seconds );
+    List< Thread > stormers = new ArrayList< Thread >();
+    for ( int i = 0; i < sessions; i++ ) {
+      int first = i;
+      Thread t = new Thread( () -> {
+          Client.Ticket[] tickets = new Client.Ticket [ names.size() ];
+          for ( int n = first; System.nanoTime() < end; n += sessions ) {
+            int u = n % names.size();
+            long begin = System.nanoTime();
+            try {
+              Client.Connection conn = tickets[ u ] == null
+                ? new Client.Connection( host, Server.PORT_NUMBER, names.get( u ), keys.get( u ),
+                                         binary, !ecb )
+                : new Client.Connection( host, Server.PORT_NUMBER, names.get( u ), tickets[ u ],
+                                         binary, !ecb );
+              long latency = System.nanoTime() - begin;
+              logins.record( latency );
+              interval.record( latency );
+              if ( tickets[ u ] != null )
+                resumed.incrementAndGet();
+              else if ( resume )
+                tickets[ u ] = conn.requestTicket();
+              conn.close();
+            } catch ( Exception e ) {
+              errors.incrementAndGet();
+            }
+          }
+        }, "storm-" + i );
+      t.setDaemon( true );
+      t.start();
+      stormers.add( t );
+    }
+
+    report( start, end );
+    for ( Thread t : stormers )
+      t.join();
+    double elapsed = ( System.nanoTime() - start ) / 1e9;
+
+    System.out.printf( "mode:            storm%s%s%s%n", binary ? " (binary)" : "",
+                       resume ? " (resume)" : "", ecb ? " (ecb)" : "" );
+    System.out.printf( "threads:         %d%n", sessions );
+    System.out.printf( "login rate:      %.0f sessions/s%n", logins.count() / elapsed );
+    if ( resume )
+      System.out.printf( "resumed:         %d of %d%n", resumed.get(), logins.count() );
+    System.out.printf( "failures:        %d%n", errors.get() );
+    System.out.printf( "handshake:       %s%n", logins.summary() );
+  }
+}
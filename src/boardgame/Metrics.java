@@ -0,0 +1,265 @@
+/**
+ * Keeps count of what the server is doing, so we can see how it's holding up while it runs:
+ * how long commands take, how long placements wait for locks, how long logins take and how
+ * the time splits between RSA and AES, how many users are on, and how much traffic they make.
+ * @file Metrics.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters and latency histograms for the server.  Everything here can be updated from any
+ * number of threads without locking or allocating, so it's cheap enough to leave on for every
+ * command.  Users can read it with the stats command, and it's registered as an MBean for JMX.
+ */
+public class Metrics implements MetricsMBean {
+  /** Kinds of command that get a latency histogram each. */
+  static final int BOARD = 0, BOARD_SINCE = 1, VIEWPORT = 2, PLACE = 3, BATCH = 4,
+    SUBSCRIBE = 5, UNSUBSCRIBE = 6, STATS = 7, TICKET = 8, JOIN = 9, ROOMS = 10, TOP = 11,
+    RANK = 12, MOVES = 13, HINT = 14, INVALID = 15;
+
+  /** Names of the kinds of command, for reports. */
+  private static final String[] COMMAND_NAMES = {
+    "board", "board since", "board view", "place", "batch", "subscribe", "unsubscribe", "stats",
+    "ticket", "join", "rooms", "top", "rank", "moves", "hint", "invalid"
+  };
+
+  /** Time to carry out each kind of command, not counting encryption or the network. */
+  private LatencyHistogram[] commands = new LatencyHistogram [ COMMAND_NAMES.length ];
+
+  /** Time from getting a username to sending the session key. */
+  final LatencyHistogram handshake = new LatencyHistogram();
+
+  /** Time spent in RSA during each handshake. */
+  final LatencyHistogram rsa = new LatencyHistogram();
+
+  /** Time spent in AES for each message encrypted or decrypted. */
+  final LatencyHistogram aes = new LatencyHistogram();
+
+  /** Waits for board locks that were already taken. */
+  final LatencyHistogram lockWait = new LatencyHistogram();
+
+  /** Board locks taken without waiting. */
+  final LongAdder lockFree = new LongAdder();
+
+  /** Traffic, in bytes. */
+  final LongAdder bytesIn = new LongAdder(), bytesOut = new LongAdder();
+
+  /** Logins, good and bad, and users on now. */
+  final LongAdder logins = new LongAdder(), failedLogins = new LongAdder(),
+    activeSessions = new LongAdder();
+
+  /** Logins that used a resumption ticket instead of the RSA challenge. */
+  final LongAdder resumptions = new LongAdder();
+
+  /** Logins refused for coming too fast or finding the queue full, and ones that ran late. */
+  final LongAdder refusedLogins = new LongAdder(), timedOutLogins = new LongAdder();
+
+  /** Time logins spend waiting for a handshake worker. */
+  final LatencyHistogram handshakeWait = new LatencyHistogram();
+
+  /** Reports how many logins are waiting for a handshake worker right now. */
+  volatile IntSupplier handshakeQueue = () -> 0;
+
+  /** Clients disconnected for falling behind on their messages or stalling a write. */
+  final LongAdder evicted = new LongAdder();
+
+  /** Placements accepted and refused. */
+  final LongAdder accepted = new LongAdder(), rejected = new LongAdder();
+
+  /** Placements written to the journal, and time taken forcing the journal to disk. */
+  final LongAdder journaled = new LongAdder();
+  final LatencyHistogram journalSync = new LatencyHistogram();
+
+  /**
+   * Makes a set of empty metrics.
+   */
+  public Metrics() {
+    for ( int i = 0; i < commands.length; i++ )
+      commands[ i ] = new LatencyHistogram();
+  }
+
+  /**
+   * Records a command that has just finished.
+   * @param kind Which kind of command it was
+   * @param begin System.nanoTime() from when it started
+   */
+  void command( int kind, long begin ) {
+    commands[ kind ].record( System.nanoTime() - begin );
+  }
+
+  /**
+   * Counts a placement as accepted or refused.
+   * @param points Points awarded for it, 0 if it was refused
+   */
+  void placed( int points ) {
+    if ( points > 0 )
+      accepted.increment();
+    else
+      rejected.increment();
+  }
+
+  /**
+   * Wraps a socket's input stream so the bytes read from it are counted.
+   * @param in The stream to count
+   * @return A stream that reads from it
+   */
+  InputStream countIn( InputStream in ) {
+    return new FilterInputStream( in ) {
+      public int read() throws IOException {
+        int b = super.read();
+        if ( b >= 0 )
+          bytesIn.increment();
+        return b;
+      }
+
+      public int read( byte[] buf, int off, int len ) throws IOException {
+        int n = super.read( buf, off, len );
+        if ( n > 0 )
+          bytesIn.add( n );
+        return n;
+      }
+    };
+  }
+
+  /**
+   * Wraps a socket's output stream so the bytes written to it are counted.
+   * @param out The stream to count
+   * @return A stream that writes to it
+   */
+  OutputStream countOut( OutputStream out ) {
+    return new FilterOutputStream( out ) {
+      public void write( int b ) throws IOException {
+        out.write( b );
+        bytesOut.increment();
+      }
+
+      public void write( byte[] buf, int off, int len ) throws IOException {
+        out.write( buf, off, len );
+        bytesOut.add( len );
+      }
+    };
+  }
+
+  public int getActiveSessions() {
+    return activeSessions.intValue();
+  }
+
+  public long getLogins() {
+    return logins.sum();
+  }
+
+  public long getFailedLogins() {
+    return failedLogins.sum();
+  }
+
+  public long getResumptions() {
+    return resumptions.sum();
+  }
+
+  public long getRefusedLogins() {
+    return refusedLogins.sum();
+  }
+
+  public long getTimedOutLogins() {
+    return timedOutLogins.sum();
+  }
+
+  public int getHandshakeQueue() {
+    return handshakeQueue.getAsInt();
+  }
+
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  public long getEvictedSessions() {
+    return evicted.sum();
+  }
+
+  public long getPlacementsAccepted() {
+    return accepted.sum();
+  }
+
+  public long getPlacementsRejected() {
+    return rejected.sum();
+  }
+
+  public long getJournaled() {
+    return journaled.sum();
+  }
+
+  public double getJournalSyncP99Micros() {
+    return journalSync.percentile( 99 ) / 1e3;
+  }
+
+  public long getCommands() {
+    return allCommands().count();
+  }
+
+  public double getCommandP99Micros() {
+    return allCommands().percentile( 99 ) / 1e3;
+  }
+
+  public double getHandshakeP99Micros() {
+    return handshake.percentile( 99 ) / 1e3;
+  }
+
+  public double getLockWaitP99Micros() {
+    return lockWait.percentile( 99 ) / 1e3;
+  }
+
+  public String[] getCommandLatencies() {
+    List< String > lines = new ArrayList< String >();
+    for ( int i = 0; i < commands.length; i++ )
+      if ( commands[ i ].count() > 0 )
+        lines.add( COMMAND_NAMES[ i ] + ": " + commands[ i ].summary() );
+    return lines.toArray( new String [ lines.size() ] );
+  }
+
+  /**
+   * Adds up the latencies of every kind of command.
+   * @return A histogram of all of them
+   */
+  private LatencyHistogram allCommands() {
+    LatencyHistogram all = new LatencyHistogram();
+    for ( LatencyHistogram h : commands )
+      all.add( h );
+    return all;
+  }
+
+  public String report() {
+    StringBuilder out = new StringBuilder();
+    out.append( "sessions: " + getActiveSessions() + " active, " + getLogins() + " logins, "
+                + getResumptions() + " resumed, " + getFailedLogins() + " failed\n" );
+    out.append( "bytes: " + getBytesIn() + " in, " + getBytesOut() + " out\n" );
+    out.append( "slow clients: " + getEvictedSessions() + " evicted\n" );
+    out.append( "placements: " + getPlacementsAccepted() + " accepted, "
+                + getPlacementsRejected() + " rejected\n" );
+    out.append( "journal: " + getJournaled() + " written, sync " + journalSync.summary() + "\n" );
+    out.append( "logins waiting: " + getHandshakeQueue() + " queued, " + getRefusedLogins()
+                + " refused, " + getTimedOutLogins() + " timed out\n" );
+    out.append( "handshake wait: " + handshakeWait.summary() + "\n" );
+    out.append( "handshake: " + handshake.summary() + "\n" );
+    out.append( "rsa: " + rsa.summary() + "\n" );
+    out.append( "aes: " + aes.summary() + "\n" );
+    out.append( "lock wait: " + lockFree.sum() + " without waiting, " + lockWait.summary() + "\n" );
+    for ( String line : getCommandLatencies() )
+      out.append( line + "\n" );
+    return out.toString();
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * The management interface for the server's metrics, so they can be watched with JConsole or
+ * any other JMX client while the server runs.
+ * @file MetricsMBean.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+/**
+ * Attributes and operations the server's Metrics show over JMX.  Latencies are in
+ * microseconds.
+ */
+public interface MetricsMBean {
+  /**
+   * @return Number of users logged in right now
+   */
+  int getActiveSessions();
+
+  /**
+   * @return Number of successful logins since the server started
+   */
+  long getLogins();
+
+  /**
+   * @return Number of logins that failed, for a bad user or a bad challenge
+   */
+  long getFailedLogins();
+
+  /**
+   * @return Number of logins that used a resumption ticket instead of the RSA challenge
+   */
+  long getResumptions();
+
+  /**
+   * @return Number of logins refused for coming too fast from one address, or for finding
+   *         the handshake queue full
+   */
+  long getRefusedLogins();
+
+  /**
+   * @return Number of logins dropped for taking too long
+   */
+  long getTimedOutLogins();
+
+  /**
+   * @return Number of logins waiting for a handshake worker
+   */
+  int getHandshakeQueue();
+
+  /**
+   * @return Bytes read from clients
+   */
+  long getBytesIn();
+
+  /**
+   * @return Bytes written to clients
+   */
+  long getBytesOut();
+
+  /**
+   * @return Clients disconnected for falling behind or stalling a write
+   */
+  long getEvictedSessions();
+
+  /**
+   * @return Letters placed on the board
+   */
+  long getPlacementsAccepted();
+
+  /**
+   * @return Placements that were refused
+   */
+  long getPlacementsRejected();
+
+  /**
+   * @return Placements written to the journal
+   */
+  long getJournaled();
+
+  /**
+   * @return 99th percentile time to force the journal to disk
+   */
+  double getJournalSyncP99Micros();
+
+  /**
+   * @return Number of commands carried out
+   */
+  long getCommands();
+
+  /**
+   * @return 99th percentile time to carry out a command
+   */
+  double getCommandP99Micros();
+
+  /**
+   * @return 99th percentile time for a whole login handshake
+   */
+  double getHandshakeP99Micros();
+
+  /**
+   * @return 99th percentile wait for a board lock that was already taken
+   */
+  double getLockWaitP99Micros();
+
+  /**
+   * @return One line for each kind of command that has been used, with its latencies
+   */
+  String[] getCommandLatencies();
+
+  /**
+   * Reports everything, in the same form as the stats command.
+   * @return The report
+   */
+  String report();
+}
@@ -0,0 +1,110 @@
+/**
+ * Keeps track of which cells a letter can go on right now, so checking a placement is a
+ * single bit test instead of a look at every neighbour, and users can be told where they can
+ * play.
+ * @file MoveIndex.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A bit for every cell of a board, set when a letter can be placed there.  The board sets
+ * and clears bits as letters land, so the index never has to be worked out again.  Each row
+ * starts a new word, so a row's bits can be walked a word at a time.  Bits are set and
+ * cleared atomically, since placements in neighbouring rows can change the same word at once.
+ */
+public class MoveIndex {
+  /** Atomic access to the words of the index. */
+  private static final VarHandle WORD = MethodHandles.arrayElementVarHandle( long[].class );
+
+  /** Something to do with each cell whose bit is set. */
+  interface Visitor {
+    /**
+     * Visits one cell.
+     * @param row The cell's row
+     * @param col The cell's column
+     */
+    void visit( int row, int col );
+  }
+
+  /** Number of words for each row. */
+  private int rowWords;
+
+  /** The bits, a row at a time. */
+  private long[] words;
+
+  /**
+   * Makes an index with no bits set.
+   * @param height Number of rows on the board
+   * @param width Number of columns on the board
+   */
+  public MoveIndex( int height, int width ) {
+    rowWords = ( width + 63 ) >>> 6;
+    words = new long [ height * rowWords ];
+  }
+
+  /**
+   * Reports whether a cell's bit is set.
+   * @param row The cell's row
+   * @param col The cell's column
+   * @return True if a letter can go there
+   */
+  public boolean get( int row, int col ) {
+    long word = ( long ) WORD.getAcquire( words, row * rowWords + ( col >>> 6 ) );
+    return ( word & ( 1L << col ) ) != 0;
+  }
+
+  /**
+   * Sets a cell's bit.
+   * @param row The cell's row
+   * @param col The cell's column
+   */
+  public void set( int row, int col ) {
+    WORD.getAndBitwiseOr( words, row * rowWords + ( col >>> 6 ), 1L << col );
+  }
+
+  /**
+   * Clears a cell's bit.
+   * @param row The cell's row
+   * @param col The cell's column
+   */
+  public void clear( int row, int col ) {
+    WORD.getAndBitwiseAnd( words, row * rowWords + ( col >>> 6 ), ~( 1L << col ) );
+  }
+
+  /**
+   * Clears every bit, for a new game.
+   */
+  public void clear() {
+    for ( int i = 0; i < words.length; i++ )
+      WORD.setVolatile( words, i, 0L );
+  }
+
+  /**
+   * Visits every cell in a rectangle whose bit is set, a row at a time from the top left.
+   * @param top The first row
+   * @param left The first column
+   * @param bottom The last row
+   * @param right The last column
+   * @param visitor What to do with each cell
+   */
+  public void forEach( int top, int left, int bottom, int right, Visitor visitor ) {
+    for ( int i = top; i <= bottom; i++ ) {
+      int base = i * rowWords;
+      for ( int w = left >>> 6; w <= right >>> 6; w++ ) {
+        long word = ( long ) WORD.getAcquire( words, base + w );
+
+        // Drop the bits outside the rectangle at either end of the row.
+        if ( w == left >>> 6 )
+          word &= -1L << left;
+        if ( w == right >>> 6 )
+          word &= -1L >>> ( 63 - ( right & 63 ) );
+        for ( ; word != 0; word &= word - 1 )
+          visitor.visit( i, ( w << 6 ) + Long.numberOfTrailingZeros( word ) );
+      }
+    }
+  }
+}
@@ -0,0 +1,256 @@
+/**
+ * Looks for the best placements on a board, for the hint command and for the server's bots.
+ * The board is split into regions that are searched in parallel, and a search that runs out
+ * of time gives back the best it found so far, so hints stay quick on a large map.
+ * @file MoveSearch.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Move search with fork/join.  A rectangle of the board is cut in half along its longer side
+ * until the pieces are small, and each piece is searched through the board's own index of the
+ * cells that can take a letter, so a search only looks at the cells a letter can go on.  Each
+ * piece keeps its best few moves, and the halves are merged on the way back up.
+ *
+ * A move is worth the points for the best letter on the score sheet, twice that on a ':'
+ * space, so the letter is the same for every move and the search is really a search for the
+ * best cells.  Moves worth the same are given from the top left.  The search has a time
+ * budget; pieces that haven't been started when it runs out are skipped, and the result says
+ * it's incomplete.
+ */
+public class MoveSearch {
+  /** Milliseconds a search gets if no budget is given. */
+  public static final long DEFAULT_BUDGET = 20;
+
+  /** Most moves a search can be asked for. */
+  public static final int MAX_MOVES = 100;
+
+  /** Pieces with no more cells than this are searched without splitting them again. */
+  private static final int LEAF_CELLS = 64 * 64;
+
+  /** A placement worth making. */
+  static class Move {
+    // The letter to place.
+    final char let;
+
+    // Where to place it.
+    final int row, col;
+
+    // Points it's worth.
+    final int points;
+
+    /**
+     * Makes a move.
+     * @param let The letter to place
+     * @param row The row to place it in
+     * @param col The column to place it in
+     * @param points Points it's worth
+     */
+    Move( char let, int row, int col, int points ) {
+      this.let = let;
+      this.row = row;
+      this.col = col;
+      this.points = points;
+    }
+
+    /**
+     * Reports whether this move should come before another: it's worth more, or the same
+     * and nearer the top left.
+     * @param other The other move
+     * @return True if this one is better
+     */
+    boolean beats( Move other ) {
+      if ( points != other.points )
+        return points > other.points;
+      if ( row != other.row )
+        return row < other.row;
+      return col < other.col;
+    }
+  }
+
+  /** What a search found. */
+  static class Result {
+    // The best moves, best first.
+    final Move[] moves;
+
+    // False if the search ran out of time before looking at every cell.
+    final boolean complete;
+
+    /**
+     * Makes a result.
+     * @param moves The best moves, best first
+     * @param complete False if part of the board wasn't searched
+     */
+    Result( Move[] moves, boolean complete ) {
+      this.moves = moves;
+      this.complete = complete;
+    }
+  }
+
+  /** Workers for the searches, shared by every room. */
+  private ForkJoinPool pool = new ForkJoinPool();
+
+  /** The letter worth the most, and what it's worth. */
+  private char bestLetter;
+  private int bestPoints;
+
+  /** Nanoseconds a search gets. */
+  private long budget;
+
+  /**
+   * Makes a move search.
+   * @param scoreSheet Points awarded for each letter
+   * @param budget Milliseconds each search gets
+   */
+  public MoveSearch( Map< Character, Integer > scoreSheet, long budget ) {
+    this.budget = budget * 1000000;
+    for ( char let = 'a'; let <= 'z'; let++ ) {
+      Integer points = scoreSheet.get( let );
+      if ( points != null && points > bestPoints ) {
+        bestLetter = let;
+        bestPoints = points;
+      }
+    }
+  }
+
+  /**
+   * Finds the best moves in a rectangle of a board.  The corners are part of the rectangle,
+   * and the caller makes sure they're on the board.
+   * @param board The board to search
+   * @param top The first row
+   * @param left The first column
+   * @param bottom The last row
+   * @param right The last column
+   * @param k How many moves to find, up to MAX_MOVES
+   * @return The best moves found, best first, which may be fewer than k
+   */
+  public Result search( GameBoard board, int top, int left, int bottom, int right, int k ) {
+    Search search = new Search( board, Math.min( k, MAX_MOVES ), System.nanoTime() + budget );
+    Move[] moves = pool.invoke( search.new Piece( top, left, bottom, right ) );
+    return new Result( moves, !search.ranOut );
+  }
+
+  /**
+   * Merges two lists of moves, each best first, keeping the best few.
+   * @param a One list
+   * @param b The other
+   * @param k Most moves to keep
+   * @return The merged list, best first
+   */
+  private static Move[] merge( Move[] a, Move[] b, int k ) {
+    Move[] out = new Move [ Math.min( k, a.length + b.length ) ];
+    int i = 0, j = 0;
+    for ( int n = 0; n < out.length; n++ )
+      out[ n ] = j == b.length || ( i < a.length && a[ i ].beats( b[ j ] ) ) ? a[ i++ ] : b[ j++ ];
+    return out;
+  }
+
+  /** One search, shared by all of its pieces. */
+  private class Search {
+    // The board being searched.
+    private GameBoard board;
+
+    // How many moves to keep.
+    private int k;
+
+    // System.nanoTime() when the search has to stop.
+    private long deadline;
+
+    // Set once a piece has been skipped for lack of time.
+    private volatile boolean ranOut;
+
+    /**
+     * Starts a search.
+     * @param board The board to search
+     * @param k How many moves to keep
+     * @param deadline System.nanoTime() when the search has to stop
+     */
+    Search( GameBoard board, int k, long deadline ) {
+      this.board = board;
+      this.k = k;
+      this.deadline = deadline;
+    }
+
+    /** A rectangle of the board, searched on its own or split in two. */
+    private class Piece extends RecursiveTask< Move[] > {
+      private static final long serialVersionUID = 1L;
+
+      // The corners of the rectangle.
+      private int top, left, bottom, right;
+
+      /**
+       * Makes a piece of the search.
+       * @param top The first row
+       * @param left The first column
+       * @param bottom The last row
+       * @param right The last column
+       */
+      Piece( int top, int left, int bottom, int right ) {
+        this.top = top;
+        this.left = left;
+        this.bottom = bottom;
+        this.right = right;
+      }
+
+      /**
+       * Searches the rectangle, splitting it in two if it's big.
+       * @return The best moves in it, best first
+       */
+      protected Move[] compute() {
+        if ( ranOut || System.nanoTime() - deadline > 0 ) {
+          ranOut = true;
+          return new Move [ 0 ];
+        }
+
+        int rows = bottom - top + 1, cols = right - left + 1;
+        if ( ( long ) rows * cols > LEAF_CELLS ) {
+          Piece first, second;
+          if ( rows >= cols ) {
+            int mid = top + rows / 2;
+            first = new Piece( top, left, mid - 1, right );
+            second = new Piece( mid, left, bottom, right );
+          } else {
+            int mid = left + cols / 2;
+            first = new Piece( top, left, bottom, mid - 1 );
+            second = new Piece( top, mid, bottom, right );
+          }
+          second.fork();
+          Move[] mine = first.compute();
+          return merge( mine, second.join(), k );
+        }
+        return searchLeaf();
+      }
+
+      /**
+       * Looks at every cell in the rectangle that can take a letter, keeping the best few,
+       * best first.  A new move goes in by insertion, and only if it beats the worst one kept.
+       * @return The best moves, best first
+       */
+      private Move[] searchLeaf() {
+        Move[] best = new Move [ k ];
+        int[] count = new int [ 1 ];
+        board.moves( top, left, bottom, right, ( row, col, cell ) -> {
+            Move move = new Move( bestLetter, row, col, cell == ':' ? bestPoints * 2 : bestPoints );
+            int n = count[ 0 ];
+            if ( n == k && !move.beats( best[ n - 1 ] ) )
+              return;
+            int i = n == k ? n - 1 : n;
+            for ( ; i > 0 && move.beats( best[ i - 1 ] ); i-- )
+              best[ i ] = best[ i - 1 ];
+            best[ i ] = move;
+            if ( n < k )
+              count[ 0 ]++;
+          } );
+
+        Move[] found = new Move [ count[ 0 ] ];
+        System.arraycopy( best, 0, found, 0, found.length );
+        return found;
+      }
+    }
+  }
+}
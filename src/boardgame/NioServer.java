@@ -0,0 +1,789 @@
+/**
+ * A non-blocking way of serving clients for the board game. Instead of a thread per user, a
+ * small, fixed pool of event loops multiplexes every connection over selectors, walking each
+ * one through the same handshake and command protocol that the threaded Server uses.
+ * @file NioServer.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+
+/**
+ * Selector-based server mode. One thread accepts connections and deals them out to the event
+ * loops, and each event loop owns its connections for their whole lifetime, so connection
+ * state is never touched by more than one thread.  The RSA work for logins is the exception:
+ * it's done on the server's handshake workers, which hand the result back to the loop, so a
+ * burst of logins doesn't hold up the commands of users who are already playing.
+ */
+public class NioServer {
+  /** Number of event loops used if none is given on the command line. */
+  public static final int DEFAULT_LOOPS = Runtime.getRuntime().availableProcessors();
+
+  /** Largest message we'll accept, so a bad length prefix can't make us allocate forever. */
+  private static final int MAX_MESSAGE = 64 * 1024;
+
+  /** Size of the buffers each connection starts out with. */
+  private static final int INITIAL_BUFFER = 1024;
+
+  /** The server that holds the users and the board, and carries out commands. */
+  private Server server;
+
+  /** The event loops that connections are spread across. */
+  private EventLoop[] loops;
+
+  /** Steps a connection goes through, from first contact to playing the game. */
+  private enum State {
+    // Waiting for the username, which the client sends with writeUTF().
+    USERNAME,
+
+    // Challenge sent, waiting for the client to send it back encrypted.
+    CHALLENGE,
+
+    // Answer received, waiting for a handshake worker to check it.
+    VERIFYING,
+
+    // Authenticated, exchanging encrypted commands and replies.
+    SESSION,
+
+    // Finished, the channel has been closed.
+    CLOSED
+  }
+
+  /**
+   * Makes a non-blocking front end for the given server.
+   * @param server The server that holds the game state
+   * @param loops How many event loop threads to run
+   */
+  public NioServer( Server server, int loops ) {
+    this.server = server;
+    this.loops = new EventLoop[ Math.max( 1, loops ) ];
+  }
+
+  /**
+   * Starts the event loops, then keeps accepting connections and handing them out to the
+   * loops in turn.  This only returns if the listening socket fails.
+   * @param port The port to listen on
+   */
+  public void run( int port ) throws IOException {
+    for ( int i = 0; i < loops.length; i++ ) {
+      loops[ i ] = new EventLoop();
+      Thread t = new Thread( loops[ i ], "event-loop-" + i );
+      t.start();
+    }
+
+    ServerSocketChannel listener = ServerSocketChannel.open();
+    listener.bind( new InetSocketAddress( port ), Server.ACCEPT_BACKLOG );
+
+    int next = 0;
+    while ( true ) {
+      try {
+        SocketChannel channel = listener.accept();
+        if ( !server.handshakes.admit( channel.socket().getInetAddress() ) ) {
+          channel.close();
+          continue;
+        }
+        channel.configureBlocking( false );
+        channel.setOption( StandardSocketOptions.TCP_NODELAY, true );
+
+        loops[ next ].add( channel );
+        next = ( next + 1 ) % loops.length;
+      } catch ( IOException e ) {
+        if ( !listener.isOpen() )
+          throw e;
+        System.err.println( "Failure accepting client " + e );
+      }
+    }
+  }
+
+  /**
+   * A thread that waits on a selector for any of its connections to become readable or
+   * writable, and advances whichever ones are ready.
+   */
+  private class EventLoop implements Runnable {
+    // The selector all of this loop's connections are registered with.
+    private Selector selector;
+
+    // Newly accepted channels, waiting to be registered by the loop thread.
+    private Queue< SocketChannel > incoming = new ConcurrentLinkedQueue< SocketChannel >();
+
+    // Work other threads need done on this loop's thread.
+    private Queue< Runnable > tasks = new ConcurrentLinkedQueue< Runnable >();
+
+    /**
+     * Makes a new event loop with its own selector.
+     */
+    public EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    /**
+     * Hands a newly accepted channel to this loop.  Registration has to happen on the loop's
+     * own thread, so we just queue the channel and wake the selector up.
+     * @param channel The new client connection
+     */
+    public void add( SocketChannel channel ) {
+      incoming.add( channel );
+      selector.wakeup();
+    }
+
+    /**
+     * Arranges for some work to be done on this loop's thread, which is the only thread
+     * allowed to touch its connections.
+     * @param task The work to do
+     */
+    public void execute( Runnable task ) {
+      tasks.add( task );
+      selector.wakeup();
+    }
+
+    /**
+     * Services ready connections until the program exits.
+     */
+    public void run() {
+      long lastSweep = System.nanoTime();
+      while ( true ) {
+        try {
+          selector.select( server.outbound.sweepEvery );
+
+          // Start watching any connections we've been given.
+          SocketChannel channel;
+          while ( ( channel = incoming.poll() ) != null ) {
+            Connection conn = new Connection( this, channel );
+            conn.key = channel.register( selector, SelectionKey.OP_READ, conn );
+            conn.deadline = server.handshakes.deadline( () -> execute( conn::expire ) );
+          }
+
+          // Do anything other threads have asked for.
+          Runnable task;
+          while ( ( task = tasks.poll() ) != null )
+            task.run();
+
+          Iterator< SelectionKey > it = selector.selectedKeys().iterator();
+          while ( it.hasNext() ) {
+            SelectionKey key = it.next();
+            it.remove();
+            service( ( Connection ) key.attachment(), key );
+          }
+
+          // Every so often, evict clients whose writes haven't moved for too long.
+          long now = System.nanoTime();
+          if ( now - lastSweep >= server.outbound.sweepEvery * 1000000 ) {
+            lastSweep = now;
+            for ( SelectionKey key : selector.keys() ) {
+              Connection conn = ( Connection ) key.attachment();
+              if ( key.isValid() && server.outbound.stalled( conn.stalledSince, now ) )
+                conn.evict();
+            }
+          }
+        } catch ( IOException e ) {
+          System.err.println( "Event loop error: " + e );
+        }
+      }
+    }
+
+    /**
+     * Moves a single ready connection along, closing it if anything goes wrong.
+     * @param conn The connection that's ready
+     * @param key The selection key for this connection
+     */
+    private void service( Connection conn, SelectionKey key ) {
+      try {
+        if ( key.isValid() && key.isWritable() )
+          conn.flush();
+        if ( key.isValid() && key.isReadable() )
+          conn.read();
+      } catch ( IOException e ) {
+        System.out.println( "IO Error: " + e );
+        conn.close();
+      } catch( GeneralSecurityException e ){
+        System.err.println( "Encryption error: " + e );
+        conn.close();
+      }
+    }
+  }
+
+  /** Something to do once the output has been written up to a certain point. */
+  private static class Marker {
+    // How many bytes the connection has to have written in total.
+    final long end;
+
+    // What to run once it has.
+    final Runnable done;
+
+    /**
+     * Makes a marker for the end of a message.
+     * @param end How many bytes the connection has to have written in total
+     * @param done What to run once it has
+     */
+    Marker( long end, Runnable done ) {
+      this.end = end;
+      this.done = done;
+    }
+  }
+
+  /**
+   * Everything we know about one client connection: where it is in the protocol, its
+   * partially read input, and replies that haven't been written yet.
+   */
+  private class Connection implements Subscriptions.Subscriber {
+    // The event loop this connection belongs to.
+    private EventLoop loop;
+
+    // The channel for talking to this client.
+    private SocketChannel channel;
+
+    // Our registration with the event loop's selector.
+    private SelectionKey key;
+
+    // Bytes read from the client that haven't made up a whole message yet.
+    private ByteBuffer in = ByteBuffer.allocate( INITIAL_BUFFER );
+
+    // Framed messages waiting to be written, in writing mode.  Replies are encrypted
+    // straight into it, so it's the only output buffer the connection needs.
+    private ByteBuffer out = ByteBuffer.allocate( INITIAL_BUFFER );
+
+    // Bytes ever added to the output buffer, and bytes ever written from it.
+    private long queued, written;
+
+    // Messages someone is waiting to hear have been written, in order.
+    private ArrayDeque< Marker > markers = new ArrayDeque< Marker >();
+
+    // System.nanoTime() since when output has been waiting without any of it being written,
+    // or 0 if nothing is waiting.
+    private long stalledSince;
+
+    // True if the client is using the binary protocol.
+    private boolean binary;
+
+    // True if the client asked for AES-GCM instead of AES-ECB.
+    private boolean gcm;
+
+    // Reused buffers for decrypted requests and binary replies.
+    private ByteBuffer plainIn, plainOut;
+
+    // Where this connection is in the protocol.
+    private State state = State.USERNAME;
+
+    // True while we're working through messages we've read, so replies to pipelined
+    // commands are written together once we're done instead of one at a time.
+    private boolean reading;
+
+    // True if we've stopped carrying out the commands we've read until the replies to the
+    // ones before them have been written.
+    private boolean held;
+
+    // True once the client has said it's leaving.  It gets the replies to the commands it
+    // sent before, then we hang up.
+    private boolean leaving;
+
+    // The user this client claims to be.
+    private Server.UserRec rec;
+
+    // True once the client has told us who they are, and when that was.
+    private boolean greeted;
+    private long greetedAt;
+
+    // The challenge we sent, to compare with what comes back.
+    private byte[] challenge;
+
+    // The secret from the client's resumption ticket, or null if it's logging in with RSA.
+    private byte[] secret;
+
+    // Session key, sent to the client once it has authenticated.
+    private byte[] sessionKey;
+
+    // Timeout for logging in, cancelled once the client has.
+    private ScheduledFuture< ? > deadline;
+
+    // AES cipher objects for the session.
+    private SessionCipher AESEncrypter, AESDecrypter;
+
+    /**
+     * Makes the state for a newly accepted client.
+     * @param loop The event loop that will look after this connection
+     * @param channel The channel connected to the client
+     */
+    public Connection( EventLoop loop, SocketChannel channel ) {
+      this.loop = loop;
+      this.channel = channel;
+    }
+
+    /**
+     * Reads whatever the client has sent and handles the complete messages in it.
+     */
+    public void read() throws IOException, GeneralSecurityException {
+      int n = channel.read( in );
+      if ( n < 0 ) {
+        close();
+        return;
+      }
+      server.metrics.bytesIn.add( n );
+      handleMessages();
+    }
+
+    /**
+     * Carries on with the commands read before, once the replies that held them up have been
+     * written.
+     */
+    private void resume() {
+      if ( state == State.CLOSED )
+        return;
+      try {
+        handleMessages();
+      } catch ( IOException e ) {
+        System.out.println( "IO Error: " + e );
+        close();
+      } catch( GeneralSecurityException e ){
+        System.err.println( "Encryption error: " + e );
+        close();
+      }
+    }
+
+    /**
+     * Handles every complete message in the input buffer, unless the replies back up past
+     * the high-water mark first.  Then the rest wait, and we stop reading, until the client
+     * has taken the replies, so a client that pipelines commands with big replies gets all of
+     * them without us holding more than the high-water mark of them.
+     */
+    private void handleMessages() throws IOException, GeneralSecurityException {
+      in.flip();
+      reading = true;
+      try {
+        while ( state != State.CLOSED && state != State.VERIFYING && !leaving && hasMessage() ) {
+          if ( out.position() > server.outbound.highWater ) {
+            held = true;
+            break;
+          }
+          if ( state == State.SESSION )
+            sessionMessage();
+          else
+            handle( nextMessage() );
+        }
+      } finally {
+        reading = false;
+      }
+      if ( state == State.CLOSED )
+        return;
+      in.compact();
+      flush();
+
+      // If the next message won't fit, make room for all of it.
+      int needed = neededForNext();
+      if ( needed > in.capacity() ) {
+        ByteBuffer bigger = ByteBuffer.allocate( needed );
+        in.flip();
+        bigger.put( in );
+        in = bigger;
+      }
+    }
+
+    /**
+     * Returns the size of the length prefix used in the current state.  The username comes
+     * from writeUTF(), which uses a two-byte length.  Everything else comes from putMessage().
+     * @return The number of bytes in the length prefix
+     */
+    private int headerSize() {
+      return state == State.USERNAME ? 2 : 4;
+    }
+
+    /**
+     * Reads the length prefix at the front of the buffer, without consuming it.
+     * @param buffer A buffer that holds at least a whole length prefix, ready for reading
+     * @return The length of the message that follows the prefix
+     */
+    private int peekLength( ByteBuffer buffer ) throws IOException {
+      int len;
+      if ( headerSize() == 2 )
+        len = buffer.getShort( buffer.position() ) & 0xFFFF;
+      else
+        len = buffer.getInt( buffer.position() );
+      if ( len < 0 || len > MAX_MESSAGE )
+        throw new IOException( "Bad message length " + len );
+      return len;
+    }
+
+    /**
+     * Checks whether there's a whole message at the front of the input buffer.
+     * @return True if there is
+     */
+    private boolean hasMessage() throws IOException {
+      int header = headerSize();
+      return in.remaining() >= header && in.remaining() >= header + peekLength( in );
+    }
+
+    /**
+     * Removes one whole message from the front of the input buffer, which must have one.  For
+     * the username, the message keeps its length prefix so it can be decoded with readUTF().
+     * @return The message
+     */
+    private byte[] nextMessage() throws IOException {
+      int header = headerSize();
+      int len = peekLength( in );
+
+      if ( state != State.USERNAME )
+        in.position( in.position() + header );
+      else
+        len += header;
+      byte[] msg = new byte [ len ];
+      in.get( msg );
+      return msg;
+    }
+
+    /**
+     * Works out how big the input buffer has to be to hold the next message.  The buffer
+     * must be in writing mode, as left by compact().
+     * @return The number of bytes needed for the next message, or 0 if we don't know yet
+     */
+    private int neededForNext() throws IOException {
+      if ( in.position() < headerSize() )
+        return 0;
+      ByteBuffer view = in.duplicate();
+      view.flip();
+      return headerSize() + peekLength( view );
+    }
+
+    /**
+     * Handles one message according to where we are in the protocol.
+     * @param msg The message the client sent
+     */
+    private void handle( byte[] msg ) throws IOException, GeneralSecurityException {
+      switch ( state ) {
+        case USERNAME:
+          startHandshake( new DataInputStream( new ByteArrayInputStream( msg ) ).readUTF()
+                          .split( " " ) );
+          break;
+        case CHALLENGE:
+          finishHandshake( msg );
+          break;
+        default:
+          break;
+      }
+    }
+
+    /**
+     * Looks up the user and sends them a challenge, just like Server.handshake() does.
+     * @param hello The username the client logged in with, followed by any options
+     */
+    private void startHandshake( String[] hello ) throws IOException {
+      greeted = true;
+      greetedAt = System.nanoTime();
+      binary = Server.hasOption( hello, BinaryProtocol.OPTION );
+      gcm = Server.hasOption( hello, SessionCipher.GCM_OPTION );
+      rec = server.findUser( hello[ 0 ] );
+      if ( rec == null ) {
+        close();
+        return;
+      }
+
+      // A returning user can skip the RSA challenge with a ticket, if it's a good one.
+      String ticket = Server.optionValue( hello, Tickets.OPTION );
+      if ( ticket != null && ( secret = server.tickets.open( ticket, hello[ 0 ] ) ) == null ) {
+        close();
+        return;
+      }
+
+      // Make a random challenge, and the session key we'll use if they pass it.
+      Random rand = new Random();
+      challenge = new byte [ 16 ];
+      rand.nextBytes( challenge );
+      sessionKey = new byte [ 16 ];
+      rand.nextBytes( sessionKey );
+
+      send( challenge );
+      state = State.CHALLENGE;
+    }
+
+    /**
+     * Hands the client's answer to the challenge to a handshake worker to check.  The loop
+     * carries on with other connections meanwhile, and hears back through execute().
+     * @param encryptedChallenge The challenge, encrypted with the user's private key, or the
+     *                           proof of the ticket's secret if the client is resuming
+     */
+    private void finishHandshake( byte[] encryptedChallenge ) {
+      state = State.VERIFYING;
+      boolean queued = server.handshakes.submit( () -> {
+          byte[] reply = null;
+          try {
+            reply = server.verify( rec, secret, challenge, sessionKey, encryptedChallenge );
+          } catch( GeneralSecurityException e ){
+            System.err.println( "Encryption error: " + e );
+          }
+          byte[] encryptedSessionKey = reply;
+          loop.execute( () -> verified( encryptedSessionKey ) );
+        } );
+      // If the workers are swamped, the login is counted as refused rather than failed.
+      if ( !queued ) {
+        state = State.CLOSED;
+        close();
+      }
+    }
+
+    /**
+     * Back on the loop, sends the session key if the client passed and starts the session.
+     * @param encryptedSessionKey The encrypted session key, or null if the client failed
+     */
+    private void verified( byte[] encryptedSessionKey ) {
+      // The login may have timed out or been dropped while the worker was busy.
+      if ( state == State.CLOSED )
+        return;
+      if ( encryptedSessionKey == null || !deadline.cancel( false ) ) {
+        close();
+        return;
+      }
+
+      try {
+        AESEncrypter = new SessionCipher( Cipher.ENCRYPT_MODE, sessionKey, gcm,
+                                          SessionCipher.FROM_SERVER );
+        AESDecrypter = new SessionCipher( Cipher.DECRYPT_MODE, sessionKey, gcm,
+                                          SessionCipher.FROM_CLIENT );
+        plainIn = ByteBuffer.allocate( INITIAL_BUFFER );
+        if ( binary )
+          plainOut = ByteBuffer.allocate( INITIAL_BUFFER );
+        send( encryptedSessionKey );
+      } catch ( IOException e ) {
+        System.out.println( "IO Error: " + e );
+        close();
+        return;
+      } catch( GeneralSecurityException e ){
+        System.err.println( "Encryption error: " + e );
+        close();
+        return;
+      }
+      server.metrics.handshake.record( System.nanoTime() - greetedAt );
+      server.metrics.logins.increment();
+      server.metrics.activeSessions.increment();
+      state = State.SESSION;
+    }
+
+    /**
+     * Drops the connection if it still hasn't logged in, once its time is up.
+     */
+    private void expire() {
+      if ( state == State.SESSION || state == State.CLOSED )
+        return;
+      server.metrics.timedOutLogins.increment();
+      state = State.CLOSED;
+      close();
+    }
+
+    /**
+     * Carries out a command from an authenticated client and queues up the encrypted reply.
+     * @param request The decrypted command
+     */
+    private void command( String request ) throws IOException, GeneralSecurityException {
+      if ( request.equals( "exit" ) ) {
+        leaving = true;
+        return;
+      }
+
+      seal( ByteBuffer.wrap( server.execute( request, rec, this ) ), null );
+    }
+
+    /**
+     * Carries out a command from an authenticated client.  The request is decrypted straight
+     * out of the input buffer into a plain-text buffer that's kept for the whole connection,
+     * and the reply is encrypted straight into the output buffer.
+     */
+    private void sessionMessage() throws IOException, GeneralSecurityException {
+      int len = in.getInt();
+      int limit = in.limit();
+      in.limit( in.position() + len );
+      plainIn.clear();
+      plainIn = BinaryProtocol.ensure( plainIn, AESDecrypter.getOutputSize( len ) );
+      try {
+        server.aes( AESDecrypter, in, plainIn );
+      } finally {
+        in.limit( limit );
+      }
+      plainIn.flip();
+
+      if ( !binary ) {
+        command( new String( plainIn.array(), 0, plainIn.limit() ) );
+        return;
+      }
+      if ( plainIn.hasRemaining() && plainIn.get( 0 ) == BinaryProtocol.EXIT ) {
+        leaving = true;
+        return;
+      }
+
+      plainOut = server.executeBinary( plainIn, plainOut, rec, this );
+      seal( plainOut, null );
+    }
+
+    /**
+     * Sends a board change event to this client.  This can be called from any thread, so the
+     * encrypting and sending is handed to the event loop.
+     * @param event The text of the event
+     * @param done To be run once the event has been written, or the connection has failed
+     */
+    public void push( byte[] event, Runnable done ) {
+      loop.execute( () -> {
+          if ( state == State.CLOSED ) {
+            done.run();
+            return;
+          }
+          try {
+            // Binary clients get events as text messages.
+            if ( binary ) {
+              plainOut.clear();
+              plainOut = BinaryProtocol.ensure( plainOut, 1 + event.length );
+              plainOut.put( BinaryProtocol.TEXT ).put( event ).flip();
+              seal( plainOut, done );
+            } else
+              seal( ByteBuffer.wrap( event ), done );
+
+            // Under the evict policy, a client that leaves more than the high-water mark
+            // unwritten once it has an event has fallen behind.
+            if ( server.outbound.evict && out.position() > server.outbound.highWater )
+              evict();
+          } catch ( IOException e ) {
+            System.out.println( "IO Error: " + e );
+            close();
+          } catch( GeneralSecurityException e ){
+            System.err.println( "Encryption error: " + e );
+            close();
+          }
+        } );
+    }
+
+    /**
+     * Queues a message, with its length prefix, and writes as much as the socket will take.
+     * @param msg The message to send
+     */
+    private void send( byte[] msg ) throws IOException {
+      send( msg, null );
+    }
+
+    /**
+     * Queues a message, with its length prefix, and writes as much as the socket will take.
+     * @param msg The message to send
+     * @param done To be run once the message has been written, or null
+     */
+    private void send( byte[] msg, Runnable done ) throws IOException {
+      out = BinaryProtocol.ensure( out, 4 + msg.length );
+      out.putInt( msg.length );
+      out.put( msg );
+      queued( 4 + msg.length, done );
+    }
+
+    /**
+     * Encrypts a message straight into the output buffer, with its length prefix, and writes
+     * as much as the socket will take.
+     * @param plain The message to send, ready for reading
+     * @param done To be run once the message has been written, or null
+     */
+    private void seal( ByteBuffer plain, Runnable done ) throws IOException, GeneralSecurityException {
+      out = BinaryProtocol.ensure( out, 4 + AESEncrypter.getOutputSize( plain.remaining() ) );
+      int start = out.position();
+      out.position( start + 4 );
+      int len = server.aes( AESEncrypter, plain, out );
+      out.putInt( start, len );
+      queued( 4 + len, done );
+    }
+
+    /**
+     * Notes that a message has been added to the output buffer, and sends it unless we're in
+     * the middle of reading.
+     * @param len Size of the message, with its length prefix
+     * @param done To be run once the message has been written, or null
+     */
+    private void queued( int len, Runnable done ) throws IOException {
+      queued += len;
+      if ( done != null )
+        markers.add( new Marker( queued, done ) );
+      if ( !reading )
+        flush();
+    }
+
+    /**
+     * Writes queued messages until we run out or the socket buffer fills up.  While replies
+     * are backed up we stop reading, so a client that never reads can't make us queue
+     * replies without limit.  Once they're all written, any commands that were held up are
+     * carried out.
+     */
+    public void flush() throws IOException {
+      int n;
+      out.flip();
+      try {
+        n = channel.write( out );
+        written += n;
+        server.metrics.bytesOut.add( n );
+      } finally {
+        out.compact();
+      }
+
+      // Let anyone know whose messages are on their way.
+      while ( !markers.isEmpty() && markers.peek().end <= written )
+        markers.poll().done.run();
+
+      // If the socket didn't take everything, wait until it can take more.
+      if ( out.position() > 0 ) {
+        if ( n > 0 || stalledSince == 0 )
+          stalledSince = System.nanoTime();
+        key.interestOps( SelectionKey.OP_WRITE );
+      } else {
+        stalledSince = 0;
+        if ( leaving )
+          close();
+        else if ( state != State.CLOSED ) {
+          key.interestOps( SelectionKey.OP_READ );
+          if ( held ) {
+            held = false;
+            loop.execute( this::resume );
+          }
+        }
+      }
+    }
+    /**
+     * Disconnects a client that has fallen behind or stopped reading.
+     */
+    private void evict() {
+      if ( state == State.CLOSED )
+        return;
+      server.metrics.evicted.increment();
+      close();
+    }
+
+    /**
+     * Closes the connection and forgets about it.
+     */
+    public void close() {
+      if ( state == State.SESSION )
+        server.metrics.activeSessions.decrement();
+      else if ( greeted && state != State.CLOSED )
+        server.metrics.failedLogins.increment();
+      state = State.CLOSED;
+      server.leave( this );
+      if ( deadline != null )
+        deadline.cancel( false );
+      if ( key != null )
+        key.cancel();
+      try {
+        channel.close();
+      } catch ( Exception e ) {
+      }
+
+      // Anyone waiting on a message we'll never send shouldn't wait forever.
+      for ( Marker m : markers )
+        m.done.run();
+      markers.clear();
+      out.clear();
+    }
+  }
+}
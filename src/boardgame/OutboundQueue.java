@@ -0,0 +1,368 @@
+/**
+ * Messages waiting to go out to one threaded client. Replies and events are encrypted into
+ * the queue and written to the socket by a writer of their own, so the thread that carried
+ * out a command never waits on the network, and a client that stops reading only holds up
+ * itself until it's evicted.
+ * @file OutboundQueue.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue of framed, encrypted messages.  Messages are encrypted straight into one
+ * buffer while the writer writes out another, and the writer swaps them when it's done, so a
+ * steady stream of messages needs no new memory.  Only one writer runs for a queue at a time,
+ * and it's only running while there's something to write.
+ *
+ * Once more than the high-water mark is waiting, anything left for later is written out, and
+ * a reply waits for the queue to drain, which only holds up the user's own commands.  A
+ * client that pipelines its commands gets its replies as fast as it takes them, so it's
+ * never behind on those.  An event doesn't wait.  Under the block policy it still goes in,
+ * since a subscriber never has more than one event on its way, and under the evict policy,
+ * if what's already been given to the writer leaves no room for it, the client has fallen
+ * behind and is disconnected.  Either way, a write that makes no progress for the write
+ * timeout gets the client evicted.
+ */
+public class OutboundQueue {
+  /** Bytes that can wait to go out to a client if no number is given. */
+  public static final int DEFAULT_HIGH_WATER = 256 * 1024;
+
+  /** Milliseconds a write can take before the client is evicted, if no time is given. */
+  public static final long DEFAULT_WRITE_TIMEOUT = 10000;
+
+  /** Names of the policies for clients that fall behind, as given to -slowclients. */
+  public static final String POLICIES = "evict|block";
+
+  /** Encrypts a message straight into the queue. */
+  interface Sealer {
+    /**
+     * Encrypts a message from one buffer into another.
+     * @param cipher The session's cipher
+     * @param msg The message, ready for reading
+     * @param out Where to put the result, with enough room for it
+     * @return The number of bytes put in the result
+     */
+    int seal( SessionCipher cipher, ByteBuffer msg, ByteBuffer out )
+      throws GeneralSecurityException;
+  }
+
+  /**
+   * How queues are run, shared by every queue on a server: the limits, the threads that
+   * write, and a watchdog that evicts clients whose writes have stalled.
+   */
+  static class Limits {
+    // Bytes that can wait before a client has fallen behind.
+    final int highWater;
+
+    // Nanoseconds a write can take, and milliseconds between looks for stalled writes.
+    final long writeTimeout, sweepEvery;
+
+    // True to evict clients that fall behind, false to let their events go in anyway.
+    final boolean evict;
+
+    // Threads that drain the queues.
+    private Executor writers;
+
+    // Encrypts messages.
+    private Sealer sealer;
+
+    // Queues that are open, for the watchdog.
+    private Set< OutboundQueue > open = ConcurrentHashMap.newKeySet();
+
+    // Where evictions are counted.
+    private Metrics metrics;
+
+    /**
+     * Sets up the limits, and starts the watchdog.
+     * @param highWater Bytes that can wait before a client has fallen behind
+     * @param writeTimeout Milliseconds a write can take
+     * @param evict True to evict clients that fall behind, false to let their events go in anyway
+     * @param writers Threads to drain the queues on
+     * @param sealer Encrypts messages
+     * @param metrics Where to count evictions
+     */
+    Limits( int highWater, long writeTimeout, boolean evict, Executor writers, Sealer sealer,
+            Metrics metrics ) {
+      this.highWater = highWater;
+      this.writeTimeout = TimeUnit.MILLISECONDS.toNanos( writeTimeout );
+      this.evict = evict;
+      this.writers = writers;
+      this.sealer = sealer;
+      this.metrics = metrics;
+
+      ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor( r -> {
+          Thread t = new Thread( r, "write-watchdog" );
+          t.setDaemon( true );
+          return t;
+        } );
+      sweepEvery = Math.max( 10, writeTimeout / 4 );
+      watchdog.scheduleWithFixedDelay( this::sweep, sweepEvery, sweepEvery,
+                                       TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Reports whether a connection has been stalled for too long.
+     * @param since System.nanoTime() from when it stopped making progress, or 0 if it hasn't
+     * @param now The current time, from System.nanoTime()
+     * @return True if it should be evicted
+     */
+    boolean stalled( long since, long now ) {
+      return since != 0 && now - since > writeTimeout;
+    }
+
+    /**
+     * Evicts every client whose write has been going for longer than the write timeout.
+     */
+    private void sweep() {
+      long now = System.nanoTime();
+      for ( OutboundQueue q : open )
+        if ( stalled( q.writeStarted, now ) )
+          q.evict();
+    }
+  }
+
+  /** Something to do once the output has been written up to a certain point. */
+  private static class Marker {
+    // How many bytes the queue has to have written in total.
+    final long end;
+
+    // What to run once it has.
+    final Runnable done;
+
+    /**
+     * Makes a marker for the end of a message.
+     * @param end How many bytes the queue has to have written in total
+     * @param done What to run once it has
+     */
+    Marker( long end, Runnable done ) {
+      this.end = end;
+      this.done = done;
+    }
+  }
+
+  /** How the queue is run. */
+  private Limits limits;
+
+  /** The connection's output stream. */
+  private OutputStream out;
+
+  /** Cipher for encrypting with the session key, only used while holding the queue. */
+  private SessionCipher cipher;
+
+  /** Closes the connection, when the client is evicted. */
+  private Runnable onEvict;
+
+  /** Messages being added, and messages being written, both in filling mode. */
+  private ByteBuffer pending = ByteBuffer.allocate( 1024 ), writing = ByteBuffer.allocate( 1024 );
+
+  /** Bytes ever added to the queue, bytes ever given to a writer, and bytes ever written. */
+  private long queued, handed, written;
+
+  /** Messages someone is waiting to hear have been written, in order. */
+  private ArrayDeque< Marker > markers = new ArrayDeque< Marker >();
+
+  /** True while a writer is running for this queue. */
+  private boolean draining;
+
+  /** True once the queue has been closed, or the client evicted. */
+  private boolean closed;
+
+  /** System.nanoTime() when the current write started, or 0 if nothing is being written. */
+  private volatile long writeStarted;
+
+  /**
+   * Makes a queue for a client who has just logged in.
+   * @param out The connection's output stream
+   * @param cipher Cipher for encrypting with the session key
+   * @param limits How the queue is run
+   * @param onEvict Closes the connection, if the client is evicted
+   */
+  public OutboundQueue( OutputStream out, SessionCipher cipher, Limits limits,
+                        Runnable onEvict ) {
+    this.out = out;
+    this.cipher = cipher;
+    this.limits = limits;
+    this.onEvict = onEvict;
+    limits.open.add( this );
+  }
+
+  /**
+   * Encrypts a message into the queue, with its length prefix.  If the queue is full, a reply
+   * waits for room, and an event goes in anyway, unless the client has fallen behind under
+   * the evict policy, when it's evicted.
+   * @param msg The message, ready for reading
+   * @param reply True for a reply, which can wait for room, false for an event
+   * @param start True to start writing now, false to leave the message for the next one
+   * @param done To be run once the message has been written, or the client is gone, or null
+   */
+  public void send( ByteBuffer msg, boolean reply, boolean start, Runnable done )
+    throws IOException, GeneralSecurityException {
+    boolean behind = false;
+    GeneralSecurityException failed = null;
+    synchronized ( this ) {
+      int size = cipher.getOutputSize( msg.remaining() );
+
+      // A message bigger than the high-water mark can still go out on its own.
+      while ( !closed && queued > written && queued - written + 4 + size > limits.highWater ) {
+        // Only what a writer has already been given counts against the client.  Messages
+        // left for later haven't been offered to it yet, so they're not a sign it's slow.
+        if ( !reply && limits.evict && handed > written
+             && handed - written + 4 + size > limits.highWater ) {
+          behind = true;
+          break;
+        }
+
+        // Messages left for later have to go now, or we'd wait for nothing.
+        if ( !draining ) {
+          draining = true;
+          limits.writers.execute( this::drain );
+        }
+        if ( !reply )
+          break;
+        try {
+          wait();
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          throw new IOException( "Interrupted waiting to send" );
+        }
+      }
+
+      if ( !closed && !behind ) {
+        pending = BinaryProtocol.ensure( pending, 4 + size );
+        int at = pending.position();
+        pending.position( at + 4 );
+        try {
+          int len = limits.sealer.seal( cipher, msg, pending );
+          pending.putInt( at, len );
+          queued += 4 + len;
+          if ( done != null )
+            markers.add( new Marker( queued, done ) );
+          if ( start && !draining ) {
+            draining = true;
+            limits.writers.execute( this::drain );
+          }
+          return;
+        } catch ( GeneralSecurityException e ) {
+          pending.position( at );
+          failed = e;
+        }
+      }
+    }
+
+    // The message isn't going out, so nobody should wait for it.
+    if ( behind )
+      evict();
+    if ( done != null )
+      done.run();
+    if ( failed != null )
+      throw failed;
+    throw new IOException( behind ? "Client fell behind" : "Connection closed" );
+  }
+
+  /**
+   * Runs on a writer.  Writes out everything in the queue, swapping buffers each time so
+   * new messages can go in while the last lot is written, until there's nothing left.
+   */
+  private void drain() {
+    while ( true ) {
+      synchronized ( this ) {
+        if ( closed || pending.position() == 0 ) {
+          draining = false;
+          return;
+        }
+        ByteBuffer full = pending;
+        pending = writing;
+        writing = full;
+        handed = queued;
+      }
+
+      writeStarted = System.nanoTime();
+      try {
+        out.write( writing.array(), 0, writing.position() );
+        out.flush();
+      } catch ( IOException e ) {
+        writeStarted = 0;
+        close();
+        return;
+      }
+      writeStarted = 0;
+
+      ArrayDeque< Runnable > finished = new ArrayDeque< Runnable >();
+      synchronized ( this ) {
+        written += writing.position();
+        writing.clear();
+        while ( !markers.isEmpty() && markers.peek().end <= written )
+          finished.add( markers.poll().done );
+        notifyAll();
+      }
+
+      // Let anyone know whose messages are on their way, without holding the queue.
+      for ( Runnable done : finished )
+        done.run();
+    }
+  }
+
+  /**
+   * Writes out everything left in the queue, then closes it.  This is for a client that's
+   * leaving, so replies to the commands it sent before it left still reach it.  A client
+   * that won't take them is evicted by the watchdog as usual.
+   */
+  public void finish() {
+    synchronized ( this ) {
+      if ( !closed && !draining && pending.position() > 0 ) {
+        draining = true;
+        limits.writers.execute( this::drain );
+      }
+      try {
+        while ( !closed && written < queued )
+          wait();
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    close();
+  }
+
+  /**
+   * Disconnects a client that has fallen behind or stopped reading.
+   */
+  private void evict() {
+    if ( close() ) {
+      limits.metrics.evicted.increment();
+      onEvict.run();
+    }
+  }
+
+  /**
+   * Closes the queue.  Messages that haven't been written are dropped, and anyone waiting on
+   * them is let go.
+   * @return False if the queue was already closed
+   */
+  public boolean close() {
+    ArrayDeque< Marker > dropped;
+    synchronized ( this ) {
+      if ( closed )
+        return false;
+      closed = true;
+      dropped = new ArrayDeque< Marker >( markers );
+      markers.clear();
+      notifyAll();
+    }
+    limits.open.remove( this );
+    for ( Marker m : dropped )
+      m.done.run();
+    return true;
+  }
+}
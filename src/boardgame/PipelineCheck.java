@@ -0,0 +1,138 @@
+/**
+ * Checks that a client pipelining large replies gets every one of them, even from a server
+ * that evicts clients who fall behind.
+ * @file PipelineCheck.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Starts a server with -slowclients evict on a large copy of the map, then sends it a burst
+ * of board commands, a place command and an exit without waiting for any replies, as
+ * Client -script does.  The replies to the board commands alone are more than the send queue
+ * holds, so the server has to write them out as the client takes them rather than treat the
+ * client as slow.  The check passes if every reply arrives before the server hangs up.
+ */
+public class PipelineCheck {
+  /**
+   * Checks run when none is given, as the size of the board, the number of board commands,
+   * then any server options.  On the biggest board a handful of replies passes the
+   * high-water mark, which the event-loop server has to hold its commands back for.
+   */
+  private static final String[][] CHECKS = { { "300", "40" }, { "1000", "20", "-nio" } };
+
+  /**
+   * Runs the check, exiting with 1 if any reply is lost.
+   * @param args The size of the board, the number of board commands, then any server
+   *             options, or nothing for every check in CHECKS
+   */
+  public static void main( String[] args ) throws Exception {
+    if ( args.length == 0 )
+      System.exit( runAll() ? 0 : 1 );
+
+    int size = Integer.parseInt( args[ 0 ] );
+    int boards = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 40;
+
+    // Tile the usual map out to the size we want.
+    File map = File.createTempFile( "pipeline", ".txt" );
+    map.deleteOnExit();
+    writeBoard( map, size );
+
+    List< String > serverArgs = new ArrayList< String >();
+    serverArgs.add( "-board" );
+    serverArgs.add( map.getPath() );
+    serverArgs.add( "-slowclients" );
+    serverArgs.add( "evict" );
+    for ( int i = 2; i < args.length; i++ )
+      serverArgs.add( args[ i ] );
+    String[] runArgs = serverArgs.toArray( new String [ 0 ] );
+    Thread serverThread = new Thread( () -> new Server().run( runArgs ), "server" );
+    serverThread.setDaemon( true );
+    serverThread.start();
+    SessionBenchmark.waitForServer();
+
+    List< String > names = new ArrayList< String >();
+    List< PrivateKey > keys = new ArrayList< PrivateKey >();
+    SessionBenchmark.readUsers( names, keys );
+    SessionBenchmark.dropFailingUsers( "localhost", names, keys );
+    if ( names.isEmpty() ) {
+      System.out.println( "No users could log in" );
+      System.exit( 1 );
+    }
+
+    // Send the whole script at once, then read until the server hangs up.
+    Client.Connection conn = new Client.Connection( "localhost", Server.PORT_NUMBER,
+                                                    names.get( 0 ), keys.get( 0 ) );
+    for ( int i = 0; i < boards; i++ )
+      conn.send( "board", false );
+    conn.send( "place q 0 5", false );
+    conn.send( "exit", true );
+
+    int replies = 0;
+    long bytes = 0;
+    try {
+      while ( true ) {
+        bytes += conn.receive().length();
+        replies++;
+      }
+    } catch ( IOException e ) {
+      // The server hangs up after the exit, or when it gives up on us.
+    }
+
+    System.out.printf( "board:           %d by %d%n", size, size );
+    System.out.printf( "replies:         %d of %d, %d bytes%n", replies, boards + 1, bytes );
+    System.out.println( replies == boards + 1 ? "PASS" : "FAIL" );
+    System.exit( replies == boards + 1 ? 0 : 1 );
+  }
+
+  /**
+   * Runs each of the usual checks in a process of its own, since each needs a server of its
+   * own on the usual port.
+   * @return True if they all passed
+   */
+  private static boolean runAll() throws IOException, InterruptedException {
+    boolean passed = true;
+    for ( String[] check : CHECKS ) {
+      List< String > command = new ArrayList< String >();
+      command.add( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" )
+                   .getPath() );
+      command.add( "-cp" );
+      command.add( System.getProperty( "java.class.path" ) );
+      command.add( PipelineCheck.class.getName() );
+      command.addAll( Arrays.asList( check ) );
+      System.out.println( "PipelineCheck " + String.join( " ", check ) );
+      Process process = new ProcessBuilder( command ).inheritIO().start();
+      passed &= process.waitFor() == 0;
+    }
+    return passed;
+  }
+
+  /**
+   * Writes a square map made by repeating the rows and columns of input/board.txt.
+   * @param file Where to write it
+   * @param size The number of rows and columns
+   */
+  private static void writeBoard( File file, int size ) throws IOException {
+    List< String > lines = Files.readAllLines( new File( "../input/board.txt" ).toPath() );
+    List< String > rows = lines.subList( 1, lines.size() );
+    try ( PrintWriter out = new PrintWriter( file ) ) {
+      out.println( size + " " + size );
+      for ( int r = 0; r < size; r++ ) {
+        String row = rows.get( r % rows.size() );
+        StringBuilder line = new StringBuilder();
+        while ( line.length() < size )
+          line.append( row );
+        out.println( line.substring( 0, size ) );
+      }
+    }
+  }
+}
@@ -0,0 +1,582 @@
+/**
+ * A game room. Each room has a board of its own, made from the server's board template, with
+ * its own history, scores and subscribers, so one server can host any number of games at once
+ * without them getting in each other's way.
+ * @file Room.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One game.  The board does its own locking, so placements in one room never wait on another
+ * room's locks, and each room's renderings are only made again when its own board changes.
+ * Every user starts in the main room, where all the users play and keep their scores in their
+ * records, just as they did before there were rooms.  In any other room, a user gets a score
+ * the first time they join it, and only then shows up on its board.
+ *
+ * On a backend in a cluster, a room also keeps a list of its placements, so it can be frozen
+ * and handed to another backend when the router moves it.
+ */
+public class Room {
+  /** Name of the room everyone starts in. */
+  public static final String MAIN = "main";
+
+  /** Number of locks the cells are shared out between, for placing and awarding letters. */
+  private static final int CELL_LOCKS = 64;
+
+  /** Name of the room. */
+  final String name;
+
+  /** The room's board, which does its own locking. */
+  final GameBoard board;
+
+  /** Versions of the board, with recent changes. */
+  final BoardHistory history;
+
+  /** Sessions that want this room's board changes pushed to them. */
+  final Subscriptions subscriptions;
+
+  /** Players in order of score. */
+  final Leaderboard leaderboard;
+
+  /** Latest renderings of the board, for the text and binary protocols. */
+  private BoardHistory.Cache textBoard, binaryBoard;
+
+  /** Number of rows and columns on the board. */
+  private int height, width;
+
+  /** Every user, if this is the main room, or null. */
+  private UserDirectory everyone;
+
+  /** Scores of the users who've joined, if this isn't the main room. */
+  private ConcurrentHashMap< Server.UserRec, LongAdder > scores =
+    new ConcurrentHashMap< Server.UserRec, LongAdder >();
+
+  /** Where placements are written so they survive a restart, or null if they aren't. */
+  private Journal journal;
+
+  /** Placements since the game started, if the room may have to be handed on, or null. */
+  private Placements log;
+
+  /** Set once the room is being handed to another server, so nothing more can be placed. */
+  private volatile boolean frozen;
+
+  /** Placements that have got past the check for a frozen room and aren't finished. */
+  private LongAdder placing = new LongAdder();
+
+  /**
+   * Held while a letter is placed and awarded, one for each group of cells, or null if
+   * nothing keeps the room's placements in order.
+   */
+  private ReentrantLock[] cellLocks;
+
+  /** Users who've joined, in the order they joined, and how many there are. */
+  private volatile Server.UserRec[] players = new Server.UserRec [ 4 ];
+  private volatile int playerCount;
+
+  /** Every placement in a room, in order, so the room can be handed on. */
+  private static class Placements {
+    // Row, column, letter and points for each placement.
+    int[] data = new int [ 64 ];
+
+    // The user who made each placement, or null if they're no longer a user.
+    Server.UserRec[] recs = new Server.UserRec [ 16 ];
+
+    // Number of placements.
+    int size;
+
+    /**
+     * Adds a placement.
+     * @param rec The user who made it, or null
+     * @param let The letter
+     * @param row The row
+     * @param col The column
+     * @param points The points
+     */
+    synchronized void add( Server.UserRec rec, char let, int row, int col, int points ) {
+      if ( size == recs.length ) {
+        recs = Arrays.copyOf( recs, size * 2 );
+        data = Arrays.copyOf( data, size * 8 );
+      }
+      recs[ size ] = rec;
+      int i = size++ * 4;
+      data[ i ] = row;
+      data[ i + 1 ] = col;
+      data[ i + 2 ] = let;
+      data[ i + 3 ] = points;
+    }
+
+    /**
+     * Forgets every placement.
+     */
+    synchronized void clear() {
+      Arrays.fill( recs, 0, size, null );
+      size = 0;
+    }
+
+    /**
+     * Writes out every placement, a line each, as the user's name ("-" if they're no longer
+     * a user), the letter ("-" for points put back without one), row, column and points.
+     * @param out Where to write them
+     */
+    synchronized void write( StringBuilder out ) {
+      for ( int p = 0; p < size; p++ ) {
+        int i = p * 4;
+        out.append( recs[ p ] == null ? "-" : recs[ p ].name ).append( ' ' )
+          .append( data[ i + 2 ] == 0 ? '-' : ( char ) data[ i + 2 ] ).append( ' ' )
+          .append( data[ i ] ).append( ' ' )
+          .append( data[ i + 1 ] ).append( ' ' ).append( data[ i + 3 ] ).append( '\n' );
+      }
+    }
+  }
+
+  /**
+   * Makes a room with a new game.
+   * @param name Name of the room
+   * @param board The room's board, in its initial state
+   * @param template The template the board was made from
+   * @param everyone Every user, for the main room, or null for any other
+   * @param workers Workers shared by all the rooms, for pushing board changes to subscribers
+   * @param journal Where to write placements, or null to keep them only in memory
+   */
+  public Room( String name, GameBoard board, BoardTemplate template, UserDirectory everyone,
+               Executor workers, Journal journal ) {
+    this.name = name;
+    this.board = board;
+    this.everyone = everyone;
+    this.journal = journal;
+    height = template.height();
+    width = template.width();
+    history = new BoardHistory( ( long ) height * width );
+    textBoard = history.cache();
+    binaryBoard = history.cache();
+    subscriptions = new Subscriptions( history, ( since, now ) ->
+        ( "event " + changes( since, now ) ).getBytes(), workers );
+    leaderboard = new Leaderboard( rec -> score( rec ).sum(), workers );
+    if ( journal != null )
+      orderPlacements();
+  }
+
+  /**
+   * Reports the number of rows on the board.
+   * @return The height of the board
+   */
+  public int height() {
+    return height;
+  }
+
+  /**
+   * Reports the number of columns on the board.
+   * @return The width of the board
+   */
+  public int width() {
+    return width;
+  }
+
+  /**
+   * Gets a user's score in this room, making them a player here if they aren't already.
+   * @param rec The user
+   * @return The user's score
+   */
+  public LongAdder score( Server.UserRec rec ) {
+    if ( everyone != null )
+      return rec.score;
+    LongAdder score = scores.get( rec );
+    if ( score != null )
+      return score;
+    synchronized ( this ) {
+      score = scores.get( rec );
+      if ( score == null ) {
+        Server.UserRec[] list = players;
+        if ( playerCount == list.length ) {
+          list = new Server.UserRec [ playerCount * 2 ];
+          System.arraycopy( players, 0, list, 0, playerCount );
+          players = list;
+        }
+        list[ playerCount ] = rec;
+        score = new LongAdder();
+        scores.put( rec, score );
+        playerCount++;
+      }
+      return score;
+    }
+  }
+
+  /**
+   * Reports whether a user plays in this room, without making them a player.
+   * @param rec The user
+   * @return True if they're a player here
+   */
+  public boolean playing( Server.UserRec rec ) {
+    return everyone != null || scores.containsKey( rec );
+  }
+
+  /**
+   * Reports how many users play in this room.
+   * @return The number of players
+   */
+  public int players() {
+    return everyone != null ? everyone.size() : playerCount;
+  }
+
+  /**
+   * Gets one of the room's players.
+   * @param i Which one, less than players()
+   * @return The player's record
+   */
+  public Server.UserRec player( int i ) {
+    return everyone != null ? everyone.get( i ) : players[ i ];
+  }
+
+  /**
+   * Starts keeping a list of the room's placements, so it can be exported.  This is done
+   * before anything is placed.
+   */
+  public void keepPlacements() {
+    log = new Placements();
+    if ( cellLocks == null )
+      orderPlacements();
+  }
+
+  /**
+   * Makes the cell locks, once the journal or the list of placements needs each cell's
+   * letters in the order the board took them.
+   */
+  private void orderPlacements() {
+    cellLocks = new ReentrantLock [ CELL_LOCKS ];
+    for ( int i = 0; i < CELL_LOCKS; i++ )
+      cellLocks[ i ] = new ReentrantLock();
+  }
+
+  /**
+   * Places a letter and gives the user its points, unless the room is frozen.  With a
+   * journal or a list of placements, the letter is placed and awarded while holding the lock
+   * for its cell, so when a cell takes more than one letter, as a cell with an 'o' in it can,
+   * they have its letters in the order the board took them.  Without either, nothing is
+   * locked beyond what the board does itself.
+   * @param rec The user placing the letter
+   * @param let The letter
+   * @param row The row
+   * @param col The column
+   * @return The points awarded for the letter, or 0 if it wasn't placed
+   */
+  public int place( Server.UserRec rec, char let, int row, int col ) {
+    if ( !startPlacing() )
+      return 0;
+    ReentrantLock lock = cellLocks == null ? null : cellLocks[ cellLock( row, col ) ];
+    if ( lock != null )
+      lock.lock();
+    try {
+      int points = board.place( let, row, col );
+      if ( points > 0 )
+        award( rec, let, row, col, points );
+      return points;
+    } finally {
+      if ( lock != null )
+        lock.unlock();
+      donePlacing();
+    }
+  }
+
+  /**
+   * Places a group of letters as one transaction, as GameBoard.placeAll() does, and gives the
+   * user the points for each one that went down, unless the room is frozen.  If place() would
+   * lock their cells, the locks for all of them are held throughout, taken in order so two
+   * groups can't wait on each other.
+   * @param rec The user placing the letters
+   * @param lets The letters
+   * @param rows The rows
+   * @param cols The columns
+   * @param count How many letters there are
+   * @param points Where to store the points for each letter, 0 if it wasn't placed
+   * @return True if any letter was placed
+   */
+  public boolean placeAll( Server.UserRec rec, char[] lets, int[] rows, int[] cols, int count,
+                           int[] points ) {
+    if ( !startPlacing() )
+      return false;
+    boolean[] held = null;
+    if ( cellLocks != null ) {
+      held = new boolean [ CELL_LOCKS ];
+      for ( int i = 0; i < count; i++ )
+        held[ cellLock( rows[ i ], cols[ i ] ) ] = true;
+      for ( int i = 0; i < CELL_LOCKS; i++ )
+        if ( held[ i ] )
+          cellLocks[ i ].lock();
+    }
+
+    boolean changed = false;
+    try {
+      board.placeAll( lets, rows, cols, count, points );
+      for ( int i = 0; i < count; i++ )
+        if ( points[ i ] > 0 ) {
+          award( rec, lets[ i ], rows[ i ], cols[ i ], points[ i ] );
+          changed = true;
+        }
+    } finally {
+      for ( int i = CELL_LOCKS - 1; held != null && i >= 0; i-- )
+        if ( held[ i ] )
+          cellLocks[ i ].unlock();
+      donePlacing();
+    }
+    return changed;
+  }
+
+  /**
+   * Finds the lock for a cell, which may be off the board.
+   * @param row The cell's row
+   * @param col The cell's column
+   * @return Its place in cellLocks
+   */
+  private static int cellLock( int row, int col ) {
+    return Math.floorMod( row * 31 + col, CELL_LOCKS );
+  }
+
+  /**
+   * Lets a placement go ahead, unless the room is frozen.  Every call that returns true is
+   * followed by a call to donePlacing(), once the placement has been awarded, or refused by
+   * the board.
+   * @return False if nothing can be placed in the room
+   */
+  private boolean startPlacing() {
+    placing.increment();
+    if ( frozen ) {
+      placing.decrement();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Finishes a placement that startPlacing() let go ahead.
+   */
+  private void donePlacing() {
+    placing.decrement();
+  }
+
+  /**
+   * Freezes the room so nothing more can be placed in it, waits for any placements already
+   * under way, and lists every placement since the game started, as for Placements.write().
+   * The room stays frozen until it's reset.
+   * @return The placements, a line each
+   */
+  public String export() {
+    frozen = true;
+    while ( placing.sum() != 0 )
+      Thread.yield();
+    StringBuilder out = new StringBuilder();
+    if ( log != null )
+      log.write( out );
+    return out.toString();
+  }
+
+  /**
+   * Gives a user the points for a letter that's been placed, then gives the board a new
+   * version now that the letter and points are both in.  The placement is handed to the
+   * journal last, after the board's own locks have been let go.  That never blocks, and
+   * nobody waits for it to reach the disk.
+   * @param rec The user who placed the letter
+   * @param let The letter
+   * @param row The row it went in
+   * @param col The column it went in
+   * @param points The points it was worth
+   */
+  private void award( Server.UserRec rec, char let, int row, int col, int points ) {
+    score( rec ).add( points );
+    history.record( row, col, let, rec );
+    leaderboard.changed( rec );
+    if ( log != null )
+      log.add( rec, let, row, col, points );
+    if ( journal != null )
+      journal.append( name, rec.name, let, row, col, points );
+  }
+
+  /**
+   * Puts back a letter placed before the server stopped, with its points, without writing
+   * it to the journal again.  A snapshot keeps just the letter in each cell and each user's
+   * score, so a letter can come back without a user, and points without a letter.
+   * @param rec The user who placed the letter, or null if they're no longer a user
+   * @param let The letter, or 0 to put back just the points
+   * @param row The row it went in
+   * @param col The column it went in
+   * @param points The points it was worth
+   */
+  public void restore( Server.UserRec rec, char let, int row, int col, int points ) {
+    if ( let != 0 ) {
+      board.restore( let, row, col );
+      history.record( row, col, let, rec );
+    }
+    if ( rec != null ) {
+      score( rec ).add( points );
+      leaderboard.changed( rec );
+    }
+    if ( log != null )
+      log.add( rec, let, row, col, points );
+  }
+
+  /**
+   * Set the game back to its initial state, letting letters be placed again if it was frozen.
+   */
+  public void reset() {
+    board.reset();
+    for ( int i = 0; i < players(); i++ )
+      score( player( i ) ).reset();
+    leaderboard.reset();
+    if ( log != null )
+      log.clear();
+    frozen = false;
+  }
+
+  /**
+   * Gets a rendering of the whole board and every player's score, made again only if a
+   * placement has changed the board.
+   * @return The text of the rendering
+   */
+  public byte[] render() {
+    return textBoard.get( this::renderBoard );
+  }
+
+  /**
+   * Gets a rendering of the whole board and every player's score for the binary protocol.
+   * @return The BOARD reply
+   */
+  public byte[] renderBinary() {
+    return binaryBoard.get( this::renderBinaryBoard );
+  }
+
+  /**
+   * Renders the whole board, followed by every player's score.
+   * @param version The version of the board being rendered
+   * @return The text of the rendering
+   */
+  private byte[] renderBoard( long version ) {
+    StringBuilder reply = new StringBuilder();
+
+    // Output board then scores
+    board.render( reply );
+    for( int i = 0; i < players(); i++ ) {
+        Server.UserRec rec = player( i );
+        reply.append( rec.name + ": " + score( rec ).sum() );
+        reply.append( "\n" );
+    }
+    return reply.toString().getBytes();
+  }
+
+  /**
+   * Renders the whole board and every player's score for the binary protocol.
+   * @param version The version of the board being rendered
+   * @return The BOARD reply
+   */
+  private byte[] renderBinaryBoard( long version ) {
+    StringBuilder rows = new StringBuilder();
+    board.render( rows );
+
+    int count = players();
+    String[] names = new String [ count ];
+    long[] points = new long [ count ];
+    for( int i = 0; i < count; i++ ) {
+      Server.UserRec rec = player( i );
+      names[ i ] = rec.name;
+      points[ i ] = score( rec ).sum();
+    }
+    return BinaryProtocol.encodeBoard( version, rows, names, points );
+  }
+
+  /**
+   * Renders a rectangle of the board, starting with a line giving its corners and the
+   * version of the board, and ending with one user's score.
+   * @param rec The user looking at the board
+   * @param top The first row, on the board
+   * @param left The first column, on the board
+   * @param bottom The last row, on the board
+   * @param right The last column, on the board
+   * @return The text of the rendering
+   */
+  public String view( Server.UserRec rec, int top, int left, int bottom, int right ) {
+    // Take the version first, so any placement that lands while we render is newer than it.
+    StringBuilder reply = new StringBuilder();
+    reply.append( "view " + top + " " + left + " " + bottom + " " + right
+                  + " version " + history.version() + "\n" );
+    board.render( reply, top, left, bottom, right );
+    reply.append( rec.name + ": " + score( rec ).sum() + "\n" );
+    return reply.toString();
+  }
+
+  /**
+   * Lists the cells in a rectangle of the board that a letter can be placed on, after a line
+   * giving its corners and the version of the board.
+   * @param top The first row, on the board
+   * @param left The first column, on the board
+   * @param bottom The last row, on the board
+   * @param right The last column, on the board
+   * @return The text of the list
+   */
+  public String moves( int top, int left, int bottom, int right ) {
+    StringBuilder reply = new StringBuilder();
+    reply.append( "moves " + top + " " + left + " " + bottom + " " + right
+                  + " version " + history.version() + "\n" );
+    board.moves( top, left, bottom, right, ( row, col, cell ) ->
+        reply.append( row ).append( ' ' ).append( col ).append( ' ' ).append( cell )
+          .append( '\n' ) );
+    return reply.toString();
+  }
+
+  /**
+   * Lists the best placements on the board, after a line giving the version of the board,
+   * and "partial" if the search ran out of time before it looked at the whole board.
+   * @param search The move search to use
+   * @param k How many placements to list
+   * @return The text of the list
+   */
+  public String hints( MoveSearch search, int k ) {
+    long version = history.version();
+    MoveSearch.Result found = search.search( board, 0, 0, height - 1, width - 1, k );
+    StringBuilder reply = new StringBuilder();
+    reply.append( "hints version " + version + ( found.complete ? "" : " partial" ) + "\n" );
+    for ( MoveSearch.Move m : found.moves )
+      reply.append( m.row ).append( ' ' ).append( m.col ).append( ' ' ).append( m.let )
+        .append( ' ' ).append( m.points ).append( '\n' );
+    return reply.toString();
+  }
+
+  /**
+   * Renders what's changed between two versions of the board.  The text starts with the
+   * newer version.  Then there's a line for each letter placed in between, giving its row,
+   * column and letter, and the current score of each user who placed one.  If the older
+   * version is too old for us to remember everything since then, the text has "full" and the
+   * whole board instead.
+   * @param since Version the user already has
+   * @param now Version to bring them up to
+   * @return The text describing the changes
+   */
+  public String changes( long since, long now ) {
+    StringBuilder reply = new StringBuilder();
+    reply.append( "version " + now + "\n" );
+
+    StringBuilder cells = new StringBuilder();
+    Set< Server.UserRec > scorers = new LinkedHashSet< Server.UserRec >();
+    boolean known = history.changesSince( since, now, c -> {
+        cells.append( c.row + " " + c.col + " " + c.let + "\n" );
+        if ( c.rec != null )
+          scorers.add( c.rec );
+      } );
+
+    if( known ) {
+      reply.append( cells );
+      for( Server.UserRec u : scorers )
+        reply.append( u.name + ": " + score( u ).sum() + "\n" );
+    } else {
+      reply.append( "full\n" );
+      reply.append( new String( render() ) );
+    }
+    return reply.toString();
+  }
+}
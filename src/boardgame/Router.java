@@ -0,0 +1,788 @@
+/**
+ * The front of a cluster. Clients log in to the router just as they would to a single server,
+ * and the router spreads the game rooms over several backend servers, passing each user's
+ * commands on to the backend holding their room, so adding backends adds room for more games.
+ * @file Router.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A router.  The server logs users in, with its own handshake, tickets and outbound queues,
+ * then hands each one to the router, which opens a link for them to the backend that owns
+ * their room on a HashRing, and relays everything they send, as they sent it.  A pump thread
+ * for each link relays what comes back.  The router carries out join, rooms, ticket and exit
+ * itself; a join to a room on another backend opens a link there, joins the room, moves any
+ * subscription, and closes the old link.
+ *
+ * The backends are listed in a file, one host:port a line, which the router reads every
+ * second.  When the list changes, every room that now belongs to another backend is frozen
+ * and exported from the one that has it, imported by its new owner, and dropped by the old
+ * one, and the users in it are moved over with it.  Nobody joins a room or logs in while the
+ * router switches to the new list, so no user can end up on a backend that's about to lose
+ * their room, but the rooms are copied before that, and the users moved after it.
+ *
+ * Every link gives up on a backend that doesn't answer within Cluster.CALL_TIMEOUT, so a
+ * backend that has hung only holds up its own users.
+ */
+public class Router {
+  /** Milliseconds between looks at the list of backends. */
+  static final long WATCH_EVERY = 1000;
+
+  /** The receiving and sending sides of a client's connection, from the server. */
+  interface Client {
+    /**
+     * Reads and decrypts the next message from the client.
+     * @return The message, ready for reading, which is only good until the next call
+     */
+    ByteBuffer receive() throws IOException, GeneralSecurityException;
+
+    /**
+     * Encrypts a message into the client's outbound queue.
+     * @param msg The message, ready for reading
+     * @param reply True for a reply, false for an event
+     */
+    void send( ByteBuffer msg, boolean reply ) throws IOException, GeneralSecurityException;
+
+    /**
+     * Disconnects the client.
+     */
+    void close();
+  }
+
+  /** The server that logs users in. */
+  private Server server;
+
+  /** The cluster key, which the backends make us prove we have. */
+  private byte[] key;
+
+  /** File listing the backends, and what it held the last time it was read. */
+  private File backendsFile;
+  private String backendsText;
+
+  /** Which backend owns each room. */
+  private volatile HashRing ring;
+
+  /**
+   * Held while a user's backend is looked up, and held exclusively while the rooms are moved
+   * for the last time before the ring changes, so nobody is routed by a ring on its way out.
+   */
+  private ReentrantReadWriteLock routing = new ReentrantReadWriteLock();
+
+  /** Every user being relayed. */
+  private Set< Relay > relays = ConcurrentHashMap.newKeySet();
+
+  /** The router's own link to each backend, made when it's first needed. */
+  private Map< String, Cluster.Link > controls = new ConcurrentHashMap< String, Cluster.Link >();
+
+  /** Threads that relay what the backends send. */
+  private ExecutorService pumps = Executors.newCachedThreadPool( r -> {
+      Thread t = new Thread( r, "pump" );
+      t.setDaemon( true );
+      return t;
+    } );
+
+  /**
+   * One user's connection to the backend holding their room.  Requests go out from the
+   * user's own thread, and replies and events come back on the link's pump, which passes
+   * them on while holding the relay, so nothing the router sends the client itself can get
+   * between them.  The router counts the replies it's waiting for, and only answers a command
+   * itself, or moves the user to another link, once there are none.
+   */
+  private class Relay {
+    // The user.
+    private Server.UserRec rec;
+
+    // True if the user is using the binary protocol.
+    private boolean binary;
+
+    // The user's connection.
+    private Client client;
+
+    // The link to the backend holding the user's room.
+    private Cluster.Link link;
+
+    // The room the user is in.
+    private String room = Room.MAIN;
+
+    // True if the user has subscribed to board changes.
+    private boolean subscribed;
+
+    // Requests sent on the link that haven't been answered.
+    private int outstanding;
+
+    // System.nanoTime() when the backend last answered, or when we started waiting on it.
+    private long answered;
+
+    // True while the user is being moved to another room or backend.
+    private boolean moving;
+
+    // The room being joined on the same backend, until the reply comes back, or null.
+    private String joining;
+
+    /**
+     * Makes a relay for a user who has just logged in.
+     * @param rec The user
+     * @param binary True if the user is using the binary protocol
+     * @param client The user's connection
+     */
+    Relay( Server.UserRec rec, boolean binary, Client client ) {
+      this.rec = rec;
+      this.binary = binary;
+      this.client = client;
+    }
+
+    /**
+     * Makes the hello for a link for this user.
+     * @return The user's name, and the binary option if they use it
+     */
+    private String hello() {
+      return binary ? rec.name + " " + BinaryProtocol.OPTION : rec.name;
+    }
+
+    /**
+     * Makes a reply or request in the user's protocol: as it is for text, or as a TEXT
+     * message for binary.
+     * @param text The text
+     * @return The message, ready for reading
+     */
+    private ByteBuffer message( String text ) {
+      byte[] bytes = text.getBytes();
+      if ( !binary )
+        return ByteBuffer.wrap( bytes );
+      return ByteBuffer.allocate( 1 + bytes.length ).put( BinaryProtocol.TEXT ).put( bytes ).flip();
+    }
+
+    /**
+     * Reads the text of a reply, in the user's protocol.
+     * @param msg The reply
+     * @param off Where it starts in the array
+     * @return The text, or null if it isn't a text reply
+     */
+    private String text( byte[] msg, int off ) {
+      if ( !binary )
+        return new String( msg, off, msg.length - off );
+      if ( msg.length > off && msg[ off ] == BinaryProtocol.TEXT )
+        return new String( msg, off + 1, msg.length - off - 1 );
+      return null;
+    }
+
+    /**
+     * Checks whether a reply says a join worked.
+     * @param msg The reply
+     * @param off Where it starts in the array
+     * @return True if the user is in the room they asked for
+     */
+    private boolean joined( byte[] msg, int off ) {
+      String text = text( msg, off );
+      return text != null && text.startsWith( "Joined " );
+    }
+
+    /**
+     * Waits, holding the relay, until the user isn't being moved, and if asked, until every
+     * request has been answered.
+     * @param idle True to wait for every request to be answered too
+     */
+    private void await( boolean idle ) throws IOException {
+      try {
+        while ( moving || ( idle && outstanding > 0 ) )
+          wait();
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new IOException( "Interrupted waiting for backend" );
+      }
+    }
+
+    /**
+     * Stops anything else being sent for the user, and waits for every request to be
+     * answered, so the user can be moved.  Every call is followed by a call to moved().
+     * @return The link the user is on
+     */
+    private synchronized Cluster.Link hold() throws IOException {
+      await( false );
+      moving = true;
+      long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( Cluster.CALL_TIMEOUT );
+      try {
+        while ( outstanding > 0 ) {
+          long left = end - System.nanoTime();
+          if ( left <= 0 ) {
+            moved();
+            throw new IOException( "No reply from backend" );
+          }
+          TimeUnit.NANOSECONDS.timedWait( this, left );
+        }
+      } catch ( InterruptedException e ) {
+        moved();
+        Thread.currentThread().interrupt();
+        throw new IOException( "Interrupted waiting for backend" );
+      }
+      return link;
+    }
+
+    /**
+     * Counts a request that's about to be sent, while holding the relay.
+     */
+    private void sending() {
+      if ( outstanding++ == 0 )
+        answered = System.nanoTime();
+    }
+
+    /**
+     * Lets requests go out again once the user has been moved, or hasn't been.
+     */
+    private synchronized void moved() {
+      moving = false;
+      notifyAll();
+    }
+
+    /**
+     * Opens the user's first link, to the backend that owns the main room.
+     * @param backend The backend
+     */
+    void start( String backend ) throws IOException, GeneralSecurityException {
+      link = new Cluster.Link( backend, key, hello() );
+      pump( link );
+    }
+
+    /**
+     * Relays the user's commands until they exit.
+     */
+    void run() throws IOException, GeneralSecurityException {
+      while ( true ) {
+        ByteBuffer msg = client.receive();
+        String text;
+        if ( binary ) {
+          if ( msg.hasRemaining() && msg.get( 0 ) == BinaryProtocol.EXIT )
+            return;
+          text = msg.hasRemaining() && msg.get( 0 ) == BinaryProtocol.TEXT
+            ? StandardCharsets.UTF_8.decode( msg.duplicate().position( 1 ) ).toString() : null;
+        } else {
+          text = new String( msg.array(), 0, msg.limit() );
+          if ( text.equals( "exit" ) )
+            return;
+        }
+
+        if ( text != null && text.startsWith( "join " ) && text.split( " " ).length == 2
+             && text.substring( 5 ).matches( Server.ROOM_NAME ) )
+          join( text.substring( 5 ) );
+        else if ( "rooms".equals( text ) ) {
+          // The list has to show any room the user joined just before asking.
+          synchronized ( this ) {
+            await( true );
+          }
+          answer( rooms( this ) );
+        }
+        else if ( "ticket".equals( text ) )
+          answer( server.ticket( rec ) );
+        else
+          forward( msg, text );
+      }
+    }
+
+    /**
+     * Passes a request on to the backend.
+     * @param msg The request, as the user sent it
+     * @param text The text of the request, or null if it's binary
+     */
+    private void forward( ByteBuffer msg, String text ) throws IOException {
+      Cluster.Link l;
+      synchronized ( this ) {
+        await( false );
+        sending();
+        if ( "subscribe".equals( text ) )
+          subscribed = true;
+        else if ( "unsubscribe".equals( text ) )
+          subscribed = false;
+        l = link;
+      }
+      l.send( msg );
+    }
+
+    /**
+     * Answers a command the router carries out itself, after the replies to everything the
+     * user sent before it.
+     * @param text The reply
+     */
+    private void answer( String text ) throws IOException, GeneralSecurityException {
+      ByteBuffer reply = message( text );
+      synchronized ( this ) {
+        await( true );
+        client.send( reply, true );
+      }
+    }
+
+    /**
+     * Moves the user to another room.  On the same backend, the join is just passed on.
+     * Otherwise the user is moved to a link to the room's backend, or stays put if that
+     * backend can't be reached.  The routing lock is only held to find the room's backend,
+     * not while waiting on backends, so if the rooms are rebalanced in the meantime, the
+     * user follows their room afterwards.
+     * @param name Name of the room
+     */
+    private void join( String name ) throws IOException, GeneralSecurityException {
+      HashRing r = route();
+      String owner = r.owner( name );
+      Cluster.Link current = hold();
+      try {
+        if ( owner.equals( current.backend ) ) {
+          synchronized ( this ) {
+            joining = name;
+            sending();
+          }
+          current.send( message( "join " + name ) );
+        } else {
+          try {
+            move( owner, name, true );
+          } catch ( IOException e ) {
+            System.err.println( "Can't reach backend " + owner + ": " + e );
+            synchronized ( this ) {
+              client.send( message( "Room unavailable\n" ), true );
+            }
+          }
+        }
+      } finally {
+        moved();
+      }
+      if ( ring != r )
+        follow( ring );
+    }
+
+    /**
+     * Moves the user to a room on another backend, while they're held.  A new link is
+     * opened, the room joined and the user subscribed again if they were, then the new link
+     * takes over and the old one is closed.  If the backend won't let the user join, they
+     * stay where they are.
+     * @param backend The backend
+     * @param name Name of the room
+     * @param tell True to pass the reply to the join on to the user
+     */
+    private void move( String backend, String name, boolean tell )
+      throws IOException, GeneralSecurityException {
+      Cluster.Link next = new Cluster.Link( backend, key, hello() );
+      byte[] reply;
+      try {
+        next.send( message( "join " + name ) );
+        reply = next.reply();
+        if ( joined( reply, 0 ) && subscribed ) {
+          next.send( message( "subscribe" ) );
+          next.reply();
+        }
+      } catch ( IOException e ) {
+        next.close();
+        throw e;
+      }
+
+      Cluster.Link old = null;
+      synchronized ( this ) {
+        if ( joined( reply, 0 ) ) {
+          old = link;
+          link = next;
+          room = name;
+        }
+        if ( tell )
+          client.send( ByteBuffer.wrap( reply ), true );
+      }
+      if ( old == null ) {
+        next.close();
+        return;
+      }
+      pump( next );
+      old.close();
+    }
+
+    /**
+     * Moves the user to the backend that owns their room on a ring, if they aren't on it.
+     * @param ring The ring
+     */
+    void follow( HashRing ring ) {
+      try {
+        Cluster.Link current = hold();
+        try {
+          String name, owner;
+          synchronized ( this ) {
+            name = room;
+          }
+          owner = ring.owner( name );
+
+          // A user who has just left has no link.
+          if ( current != null && !owner.equals( current.backend ) )
+            move( owner, name, false );
+        } finally {
+          moved();
+        }
+      } catch ( IOException | GeneralSecurityException e ) {
+        System.err.println( "Can't move " + rec.name + ": " + e );
+        client.close();
+      }
+    }
+
+    /**
+     * Reports the room the user is in.
+     * @return Its name
+     */
+    synchronized String room() {
+      return room;
+    }
+
+    /**
+     * Starts relaying what comes back on a link, until it's closed.  Anything that comes
+     * back on a link after the user has moved off it is dropped.  If the link the user is on
+     * fails, or a reply is overdue, or the user's connection fails, the user is disconnected.
+     * @param l The link
+     */
+    private void pump( Cluster.Link l ) {
+      pumps.execute( () -> {
+          try {
+            while ( true ) {
+              // A link can be quiet for as long as we aren't waiting on it.
+              if ( !l.await() ) {
+                synchronized ( this ) {
+                  if ( l == link && outstanding > 0 && System.nanoTime() - answered
+                       > TimeUnit.MILLISECONDS.toNanos( Cluster.CALL_TIMEOUT ) )
+                    throw new SocketTimeoutException( "No reply from backend " + l.backend );
+                }
+                continue;
+              }
+              byte[] msg = l.receive();
+              synchronized ( this ) {
+                if ( l != link )
+                  continue;
+                ByteBuffer body = ByteBuffer.wrap( msg, 1, msg.length - 1 );
+                if ( msg[ 0 ] == Cluster.REPLY ) {
+                  outstanding--;
+                  answered = System.nanoTime();
+                  notifyAll();
+                  if ( joining != null ) {
+                    if ( joined( msg, 1 ) )
+                      room = joining;
+                    joining = null;
+                  }
+                  client.send( body, true );
+                } else
+                  client.send( body, false );
+              }
+            }
+          } catch ( IOException | GeneralSecurityException e ) {
+            // Nothing more is coming back, so nobody should wait for it.
+            synchronized ( this ) {
+              if ( l != link )
+                return;
+              outstanding = 0;
+              joining = null;
+              notifyAll();
+            }
+            client.close();
+          }
+        } );
+    }
+
+    /**
+     * Closes the user's link, once they've gone.
+     */
+    void close() {
+      Cluster.Link l;
+      synchronized ( this ) {
+        l = link;
+        link = null;
+      }
+      if ( l != null )
+        l.close();
+    }
+  }
+
+  /**
+   * Makes a router, and starts watching the list of backends for changes.
+   * @param server The server that logs users in
+   * @param key The cluster key
+   * @param backendsFile File listing the backends, one host:port a line
+   */
+  public Router( Server server, byte[] key, File backendsFile ) throws IOException {
+    this.server = server;
+    this.key = key;
+    this.backendsFile = backendsFile;
+    backendsText = Files.readString( backendsFile.toPath() );
+    List< String > backends = parse( backendsText );
+    if ( backends.isEmpty() )
+      throw new IOException( "No backends in " + backendsFile );
+    ring = new HashRing( backends );
+
+    ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor( r -> {
+        Thread t = new Thread( r, "rebalance" );
+        t.setDaemon( true );
+        return t;
+      } );
+    watcher.scheduleWithFixedDelay( this::watch, WATCH_EVERY, WATCH_EVERY, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Reads a list of backends, one host:port a line.  Blank lines and lines starting with '#'
+   * are skipped, and so is a backend listed twice.
+   * @param text The text of the list
+   * @return The backends, in order
+   */
+  private static List< String > parse( String text ) {
+    Set< String > backends = new LinkedHashSet< String >();
+    for ( String line : text.split( "\n" ) ) {
+      line = line.trim();
+      if ( !line.isEmpty() && !line.startsWith( "#" ) )
+        backends.add( line );
+    }
+    return new ArrayList< String >( backends );
+  }
+
+  /**
+   * Relays a user who has logged in, until they exit or their connection or backend fails.
+   * @param rec The user
+   * @param binary True if the user is using the binary protocol
+   * @param client The user's connection
+   */
+  void serve( Server.UserRec rec, boolean binary, Client client )
+    throws IOException, GeneralSecurityException {
+    Relay relay = new Relay( rec, binary, client );
+    HashRing r = route();
+    relay.start( r.owner( Room.MAIN ) );
+    relays.add( relay );
+    try {
+      // If the rooms were rebalanced while the link was opened, the rebalance may have
+      // missed this user.
+      if ( ring != r )
+        relay.follow( ring );
+      relay.run();
+    } finally {
+      relays.remove( relay );
+      relay.close();
+    }
+  }
+
+  /**
+   * Finds the ring to route a user by.  The routing lock is held only while reading it, so
+   * a user never waits on a rebalance that's moving rooms, nor holds one up while waiting
+   * on a backend.  Anyone routed by a ring that's been replaced by the time they're done
+   * has to follow their room to the new one.
+   * @return The ring
+   */
+  private HashRing route() {
+    routing.readLock().lock();
+    try {
+      return ring;
+    } finally {
+      routing.readLock().unlock();
+    }
+  }
+
+  /**
+   * Sends a request on the router's own link to a backend, opening the link if it isn't
+   * open.  A link that fails is closed, and if it had been open from before, which it may
+   * have outlived the backend, the request is tried once more on a new one, unless the
+   * backend is there but didn't answer in time.
+   * @param backend The backend
+   * @param request The request
+   * @return The text of the reply
+   */
+  private String call( String backend, String request ) throws IOException {
+    for ( int attempt = 0; ; attempt++ ) {
+      Cluster.Link l = controls.get( backend );
+      boolean fresh = l == null;
+      try {
+        if ( fresh ) {
+          l = new Cluster.Link( backend, key, Cluster.CONTROL );
+          Cluster.Link had = controls.putIfAbsent( backend, l );
+          if ( had != null ) {
+            l.close();
+            l = had;
+          }
+        }
+        return l.call( request );
+      } catch ( IOException | GeneralSecurityException e ) {
+        if ( l != null && controls.remove( backend, l ) )
+          l.close();
+        if ( fresh || attempt > 0 || e instanceof SocketTimeoutException )
+          throw new IOException( "Backend " + backend + " failed: " + e, e );
+      }
+    }
+  }
+
+  /**
+   * Lists the rooms on every backend, as Server.listRooms() does for one server.  Each
+   * backend has a main room, so only the rooms a backend owns are listed for it.
+   * @param relay The user asking, whose room is marked with a "*"
+   * @return The reply, with a line for each room
+   */
+  private String rooms( Relay relay ) {
+    TreeMap< String, String > lines = new TreeMap< String, String >();
+    HashRing r = route();
+    for ( String backend : r.backends() ) {
+      String table;
+      try {
+        table = call( backend, "rooms" );
+      } catch ( IOException e ) {
+        System.err.println( e.getMessage() );
+        continue;
+      }
+      for ( String line : table.split( "\n" ) ) {
+        String[] f = line.split( " " );
+        if ( f.length == 3 && backend.equals( r.owner( f[ 0 ] ) ) )
+          lines.put( f[ 0 ], f[ 1 ] + " players, version " + f[ 2 ] );
+      }
+    }
+
+    String current = relay.room();
+    StringBuilder reply = new StringBuilder();
+    for ( Map.Entry< String, String > e : lines.entrySet() )
+      reply.append( ( e.getKey().equals( current ) ? "* " : "  " ) + e.getKey() + ": "
+                    + e.getValue() + "\n" );
+    return reply.toString();
+  }
+
+  /**
+   * Runs every second on the rebalance thread.  Reads the list of backends, and rebalances
+   * the rooms if it has changed.
+   */
+  private void watch() {
+    try {
+      String text = Files.readString( backendsFile.toPath() );
+      if ( text.equals( backendsText ) )
+        return;
+      backendsText = text;
+      List< String > backends = parse( text );
+      if ( backends.isEmpty() )
+        System.err.println( "No backends in " + backendsFile + ", keeping " + ring.backends() );
+      else if ( !backends.equals( ring.backends() ) )
+        rebalance( new HashRing( backends ) );
+    } catch ( IOException e ) {
+      System.err.println( "Can't read " + backendsFile + ": " + e );
+    } catch ( RuntimeException e ) {
+      System.err.println( "Rebalance failed: " + e );
+    }
+  }
+
+  /**
+   * Moves every room that belongs to another backend on a new ring, with its users.  Each
+   * room that has players or has had letters placed in it is exported from the backend that
+   * has it, which freezes it there, and imported by its new owner, while users carry on.
+   * Then, with nobody being routed, the backends are asked once more for rooms that were
+   * opened or played in meanwhile, and the router switches to the new ring.  After that,
+   * every user is moved to the backend that owns their room, and the rooms are dropped by
+   * their old backends.  A backend that fails or doesn't answer in time keeps its rooms, and
+   * isn't asked again during the rebalance, so while nobody is routed, each backend can hold
+   * things up for one call timeout at most.
+   * @param next The new ring
+   */
+  private void rebalance( HashRing next ) {
+    long begin = System.nanoTime();
+    Set< String > all = new LinkedHashSet< String >( ring.backends() );
+    all.addAll( next.backends() );
+
+    // Rooms that were moved, and the backend each one was moved from, and backends that have
+    // failed.
+    Map< String, String > moved = new LinkedHashMap< String, String >();
+    Set< String > down = new HashSet< String >();
+    for ( String from : all )
+      moveRooms( from, next, moved, down );
+
+    routing.writeLock().lock();
+    try {
+      for ( String from : all )
+        moveRooms( from, next, moved, down );
+      ring = next;
+    } finally {
+      routing.writeLock().unlock();
+    }
+
+    // Users go where their rooms are now, including rooms nothing has been placed in.
+    for ( Relay relay : relays )
+      relay.follow( next );
+
+    for ( Map.Entry< String, String > room : moved.entrySet() ) {
+      try {
+        call( room.getValue(), "drop " + room.getKey() );
+      } catch ( IOException e ) {
+        System.err.println( "Can't drop room " + room.getKey() + ": " + e.getMessage() );
+      }
+    }
+
+    // Forget links to backends that have gone.
+    for ( String backend : all )
+      if ( !next.backends().contains( backend ) ) {
+        Cluster.Link l = controls.remove( backend );
+        if ( l != null )
+          l.close();
+      }
+    System.out.println( "Backends now " + next.backends() + ": moved " + moved.size()
+                        + " rooms in " + ( System.nanoTime() - begin ) / 1000000 + " ms" );
+  }
+
+  /**
+   * Moves the rooms on one backend that belong to another on a new ring, leaving out rooms
+   * nobody is in or has played in, and rooms that have already been moved.  A room with
+   * players is moved even if nothing has been placed in it, so it's frozen before they're
+   * moved, and nothing they place in the meantime is left behind.  Backends that have
+   * failed aren't called, and a backend that fails now is added to them.
+   * @param from The backend
+   * @param next The new ring
+   * @param moved Rooms that have been moved, and where from, which this adds to
+   * @param down Backends that have failed
+   */
+  private void moveRooms( String from, HashRing next, Map< String, String > moved,
+                          Set< String > down ) {
+    if ( down.contains( from ) )
+      return;
+    String table;
+    try {
+      table = call( from, "rooms" );
+    } catch ( IOException e ) {
+      System.err.println( e.getMessage() + ", its rooms can't be moved" );
+      down.add( from );
+      return;
+    }
+    for ( String line : table.split( "\n" ) ) {
+      String[] f = line.split( " " );
+      // Every backend has a main room with every user in it, but only one has played in it.
+      boolean idle = f.length == 3 && f[ 2 ].equals( "0" )
+        && ( f[ 1 ].equals( "0" ) || f[ 0 ].equals( Room.MAIN ) );
+      if ( f.length != 3 || idle || moved.containsKey( f[ 0 ] ) )
+        continue;
+      String to = next.owner( f[ 0 ] );
+      if ( from.equals( to ) || down.contains( to ) )
+        continue;
+
+      String placements;
+      try {
+        placements = call( from, "export " + f[ 0 ] );
+      } catch ( IOException e ) {
+        System.err.println( "Can't move room " + f[ 0 ] + ": " + e.getMessage() );
+        down.add( from );
+        return;
+      }
+      try {
+        call( to, "import " + f[ 0 ] + "\n" + placements );
+        moved.put( f[ 0 ], from );
+      } catch ( IOException e ) {
+        System.err.println( "Can't move room " + f[ 0 ] + ": " + e.getMessage() );
+        down.add( to );
+      }
+    }
+  }
+}
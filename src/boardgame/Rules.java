@@ -0,0 +1,70 @@
+/**
+ * The rules of the game, apart from the server that lets users play it. A board made here
+ * checks where letters can go, and scores them with the score sheet, without any sockets,
+ * users or encryption, so the game can also be played in-process by the simulator.
+ * @file Rules.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Where the score sheet and boards come from.  The boards themselves hold the rules for
+ * placing a letter and resetting the game, so anything that has a board from here plays by
+ * the same rules the server does.
+ */
+public class Rules {
+  /** Names of the board engines, as given to -engine. */
+  public static final String ENGINES = "striped|atomic|chunked";
+
+  /**
+   * Makes the score sheet, giving the points each letter is worth.
+   * @return A map of all letters mapped with the score associated with them
+   */
+  public static Map< Character, Integer > scoreSheet() {
+    Map< Character, Integer > scoreSheet = new HashMap< Character, Integer >();
+    char itr = 'a';
+    int score = 0;
+    for( ; itr <= 'z'; itr++ ) {
+        // 1 point
+        if( itr == 'a' || itr == 'e' || itr == 'i' || itr == 'o' || itr == 'u' ||
+            itr == 'n' || itr == 'r' || itr == 's' || itr == 't' || itr == 'l' )
+            score = 1;
+        else if( itr == 'd' || itr == 'g' )
+            score = 2;
+        else if( itr == 'b' || itr == 'c' || itr == 'm' || itr == 'p' )
+            score = 3;
+        else if( itr == 'f' || itr == 'h' || itr == 'v' || itr == 'w' || itr == 'y' )
+            score = 4;
+        else if( itr == 'k' )
+            score = 5;
+        else if( itr == 'j' || itr == 'x' )
+            score = 8;
+        else if( itr == 'q' || itr == 'z' )
+            score = 10;
+
+        scoreSheet.put( itr, score );
+    }
+    return scoreSheet;
+  }
+
+  /**
+   * Makes a new board from a template, with one of the engines.
+   * @param engine "striped", "atomic" or "chunked"
+   * @param template Initial contents of the board
+   * @param scoreSheet Points awarded for each letter
+   * @param metrics Where the striped board records waits for locks, or null
+   * @return The board, in its initial state
+   */
+  public static GameBoard newBoard( String engine, BoardTemplate template,
+                                    Map< Character, Integer > scoreSheet, Metrics metrics ) {
+    // Only the chunked board keeps the template as it's read; the others need every cell.
+    if ( engine.equals( "chunked" ) )
+      return new ChunkedBoard( template, scoreSheet );
+    if ( engine.equals( "atomic" ) )
+      return new AtomicBoard( template.toArray(), template.width(), scoreSheet );
+    return new StripedBoard( template.toArray(), template.width(), scoreSheet, metrics );
+  }
+}
@@ -0,0 +1,1675 @@
+/**
+ * This program acts as a Server in the board game. The Client logs in as a user, who is
+ * authenticated via an RSA public/private key pair, and begins entering commands that are
+ * recognized and handled by this Server program.
+ * @file Server.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.Map;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.net.Socket;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Key;
+import java.security.PublicKey;
+import java.security.KeyFactory;
+import java.security.spec.X509EncodedKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.lang.reflect.Method;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+
+/** 
+ * A server that keeps up with a public key for every user, along
+ * with a board for placing letters, like scrabble. 
+ */
+public class Server {
+  /** Port number used by the server */
+  public static final int PORT_NUMBER = 26114;
+
+  /** Each thread's RSA ciphers, for encrypting and for decrypting. */
+  private static final ThreadLocal< Cipher[] > RSA_CIPHERS =
+    ThreadLocal.withInitial( () -> new Cipher [ 2 ] );
+
+  /** How many not-yet-accepted connections we let queue up, so a burst of logins isn't refused. */
+  static final int ACCEPT_BACKLOG = 1024;
+
+  /** Most rooms users can open if no number is given. */
+  static final int DEFAULT_MAX_ROOMS = 10000;
+
+  /** What a room's name can be: letters, digits, '-' and '_'. */
+  static final String ROOM_NAME = "[A-Za-z0-9_-]{1,32}";
+
+  /** Original state of the board, for starting the game in each room. */
+  private BoardTemplate template;
+
+  /** The room everyone starts in, which is only replaced when a backend hands it on. */
+  private volatile Room mainRoom;
+
+  /** Every room, by name. */
+  private ConcurrentHashMap< String, Room > rooms = new ConcurrentHashMap< String, Room >();
+
+  /** The room each session has joined, for sessions that have left the main room. */
+  private ConcurrentHashMap< Subscriptions.Subscriber, Room > seats =
+    new ConcurrentHashMap< Subscriptions.Subscriber, Room >();
+
+  /** Most rooms users can open. */
+  private int maxRooms = DEFAULT_MAX_ROOMS;
+
+  /** Workers shared by every room, for pushing board changes to subscribers. */
+  private ExecutorService roomWorkers = Executors.newFixedThreadPool(
+    Runtime.getRuntime().availableProcessors(), r -> {
+      Thread t = new Thread( r, "room-worker" );
+      t.setDaemon( true );
+      return t;
+    } );
+
+  /**
+   * Threads that write queued messages out to threaded sessions, since those writes block.
+   * With -virtual they're virtual threads, so a user who stops reading doesn't hold a
+   * platform thread while their write waits.
+   */
+  private ExecutorService writers;
+
+  /** Limits on the messages waiting to go out to each session. */
+  OutboundQueue.Limits outbound;
+
+  /** Issues resumption tickets and checks the ones users come back with. */
+  Tickets tickets = new Tickets();
+
+  /** What the server is doing, for the stats command and JMX. */
+  final Metrics metrics = new Metrics();
+
+  /** Workers that log users in, kept apart from the threads that play the game. */
+  HandshakeStage handshakes;
+
+  /** Where placements are written so the game survives a restart, or null if it isn't. */
+  private Journal journal;
+
+  /** Finds the best placements, for hints and bots. */
+  private MoveSearch moveSearch;
+
+  /** Passes users on to the backends, if this server is the router for a cluster, or null. */
+  private Router router;
+
+  /** True if this server is a backend in a cluster, whose rooms can be moved to another. */
+  private boolean backend;
+
+  /** Which board to use, as given to -engine: "striped", "atomic" or "chunked". */
+  private String engine = "striped";
+
+  /** A map of all characters mapped with the score associated with them. */
+  private Map< Character, Integer > scoreSheet = Rules.scoreSheet();
+
+  /** Record for an individual user. */
+  static class UserRec {
+    // Name of this user.
+    String name;
+
+    // This user's public key in X.509 form, and the key itself once someone has needed it.
+    private byte[] encodedKey;
+    private volatile PublicKey publicKey;
+
+    // Current score for this users.  A user's placements on different parts of the board
+    // don't share a lock, so this is a counter that can be added to without contention.
+    LongAdder score = new LongAdder();
+
+    /**
+     * Makes a record for a user.
+     * @param name The user's name
+     * @param encodedKey The user's public key in X.509 form
+     */
+    UserRec( String name, byte[] encodedKey ) {
+      this.name = name;
+      this.encodedKey = encodedKey;
+    }
+
+    /**
+     * Gets this user's public key, turning it into a key the first time it's needed.  Two
+     * threads might both do that for the same user, but they'd get the same key.
+     * @return The user's public key
+     */
+    PublicKey publicKey() throws GeneralSecurityException {
+      PublicKey key = publicKey;
+      if ( key == null ) {
+        KeyFactory keyFactory = KeyFactory.getInstance( "RSA" );
+        publicKey = key = keyFactory.generatePublic( new X509EncodedKeySpec( encodedKey ) );
+      }
+      return key;
+    }
+  }
+
+  /**
+   * A Thread that represents a User of the board game that will run all of their instructions.
+   */
+  private class UserThread extends Thread {
+    // The socket connection for the thread
+    private Socket sock;
+
+    // The login's timeout, which closes the socket if the user hasn't logged in by then.
+    private ScheduledFuture< ? > deadline;
+    
+    /**
+     * Constructor for the UserThread, creates a new User thread given a socket connection
+     * @param sock The socket connection for the thread
+     * @param deadline The login's timeout
+     */
+    public UserThread( Socket sock, ScheduledFuture< ? > deadline ) {
+      this.sock = sock;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Starts up the UserThread by logging the user in on its socket connection, then taking
+     * in their commands
+     */
+    public void run() {
+      authenticate( this.sock, this.deadline );
+    }
+  }
+
+  /**
+   * A user who has just authenticated, on their way from the handshake to the loop that
+   * carries out their commands.  It's also the receiving side of their connection.
+   */
+  private class Login {
+    // The user who logged in.
+    private UserRec rec;
+
+    // The input stream for the connection.
+    private DataInputStream input;
+
+    // AES cipher object for decrypting with the session key.
+    private SessionCipher AESDecrypter;
+
+    // The sending side of the connection.
+    private ClientSession session;
+
+    // Reused buffers for each message as it arrives, and once it's decrypted.
+    private ByteBuffer encrypted = ByteBuffer.allocate( 256 );
+    private ByteBuffer request = ByteBuffer.allocate( 256 );
+
+    /**
+     * Reads the next message from the client and decrypts it.  The message is read straight
+     * into one reused buffer and decrypted into another.
+     * @return The decrypted message, ready for reading, which is only good until the next
+     *         call
+     */
+    private ByteBuffer receive() throws IOException, GeneralSecurityException {
+      int len = input.readInt();
+      if ( len < 0 )
+        throw new IOException( "Bad message length " + len );
+      if ( encrypted.capacity() < len )
+        encrypted = ByteBuffer.allocate( len );
+      input.readFully( encrypted.array(), 0, len );
+      encrypted.clear().limit( len );
+
+      request.clear();
+      request = BinaryProtocol.ensure( request, AESDecrypter.getOutputSize( len ) );
+      aes( AESDecrypter, encrypted, request );
+      return request.flip();
+    }
+
+    /**
+     * Reads the next command from a client using the text protocol.
+     * @return The text of the command
+     */
+    private String receiveText() throws IOException, GeneralSecurityException {
+      ByteBuffer msg = receive();
+      return new String( msg.array(), 0, msg.limit() );
+    }
+  }
+
+  /**
+   * The sending side of a threaded user's connection.  Replies come from the user's own
+   * thread and events from the subscription dispatcher, and both are encrypted into the
+   * session's outbound queue, which keeps messages whole and in order, and writes them out on
+   * a writer of its own.
+   */
+  private class ClientSession implements Subscriptions.Subscriber {
+    // Messages waiting to go out to the client.
+    private OutboundQueue queue;
+
+    // True if the client is using the binary protocol.
+    private boolean binary;
+
+    /**
+     * Makes the sending side for a user who has just logged in.
+     * @param queue The queue for messages to the client
+     * @param binary True if the client is using the binary protocol
+     */
+    public ClientSession( OutboundQueue queue, boolean binary ) {
+      this.queue = queue;
+      this.binary = binary;
+    }
+
+    /**
+     * Encrypts a message and sends it to the client.
+     * @param msg The message to send
+     */
+    public void send( byte[] msg ) throws IOException, GeneralSecurityException {
+      send( msg, true );
+    }
+
+    /**
+     * Encrypts a message and sends it to the client, leaving it buffered if asked to.
+     * @param msg The message to send
+     * @param flush True if the message should go out right away
+     */
+    public void send( byte[] msg, boolean flush ) throws IOException, GeneralSecurityException {
+      send( ByteBuffer.wrap( msg ), flush );
+    }
+
+    /**
+     * Encrypts a message into the outbound queue, leaving it for the next one if asked to.
+     * If the queue is full, this waits for the client to take some of it.
+     * @param msg The message to send, ready for reading
+     * @param flush True if the message should go out right away
+     */
+    public void send( ByteBuffer msg, boolean flush )
+      throws IOException, GeneralSecurityException {
+      queue.send( msg, true, flush, null );
+    }
+
+    /**
+     * Queues a board change event.  Events never wait for room, since a subscriber only has
+     * one on its way at a time, so the dispatcher is never held up by a slow client.
+     * @param event The text of the event
+     * @param done To be run once the event has been written, or the connection has failed
+     */
+    public void push( byte[] event, Runnable done ) {
+      try {
+        // Binary clients get events as text messages.
+        if ( binary )
+          queue.send( ByteBuffer.allocate( 1 + event.length ).put( BinaryProtocol.TEXT )
+                      .put( event ).flip(), false, true, done );
+        else
+          queue.send( ByteBuffer.wrap( event ), false, true, done );
+      } catch ( Exception e ) {
+        unsubscribe( this );
+      }
+    }
+  }
+
+  /** All the user records, indexed by name. */
+  private UserDirectory users;
+
+  /** Compiled user directory to map instead of reading passwd.txt, or null. */
+  private File compiledUsers;
+
+  /** The map every room's board is made from. */
+  private File boardFile = new File( "../input/board.txt" );
+
+  /**
+   * Set the game board back to its initial state.
+   */
+  private void reset() {
+    mainRoom.reset();
+  }
+
+  /**
+   * Makes a new board from the template, with whichever engine the server was asked to use.
+   * @return The board, in its initial state
+   */
+  private GameBoard newBoard() {
+    return Rules.newBoard( engine, template, scoreSheet, metrics );
+  }
+
+  /** 
+   * Read the initial board and all the users, done at program start-up. 
+   */
+  private void readConfig() throws Exception {
+    // First, read in the initial state of the board.
+    template = BoardTemplate.read( boardFile );
+
+    // Read in all the users, or map the compiled directory if we have one.  Either way,
+    // keys aren't decoded until users log in.
+    if ( compiledUsers != null )
+      users = UserDirectory.map( compiledUsers );
+    else
+      users = UserDirectory.readText( new File( "../input/passwd.txt" ) );
+
+    // Make the main room, where everyone starts out.
+    openMain();
+
+    // Reset the state ofthe game.
+    reset();
+  }
+
+  /** 
+   * Utility function to read a length then a byte array from the
+   * given stream.  TCP doesn't respect message boundaraies, but this
+   * is essientially a technique for marking the start and end of
+   * each message in the byte stream.  This can also be used by the
+   * client.
+   * @param input The Data stream that we will receive data from the Client
+   */
+  public static byte[] getMessage( DataInputStream input ) throws IOException {
+    int len = input.readInt();
+    byte[] msg = new byte [ len ];
+    input.readFully( msg );
+    return msg;
+  }
+
+  /** 
+   * Function analogous to the previous one, for sending messages.
+   * @param output The output data stream with which to send data to the Client 
+   * @param msg The message to give to the client
+   */
+  public static void putMessage( DataOutputStream output, byte[] msg ) throws IOException {
+    putMessage( output, msg, true );
+  }
+
+  /**
+   * Sends a message, but only pushes it out to the network if asked to.  When more messages
+   * are about to follow, leaving them in the stream's buffer lets them go out together.
+   * @param output The output data stream with which to send data to the Client
+   * @param msg The message to give to the client
+   * @param flush True if the message should be sent right away
+   */
+  public static void putMessage( DataOutputStream output, byte[] msg, boolean flush )
+    throws IOException {
+    // Write the length of the given message, followed by its contents.
+    output.writeInt( msg.length );
+    output.write( msg, 0, msg.length );
+    if ( flush )
+      output.flush();
+  }
+
+  /**
+   * Gets an RSA cipher object for checking a user's challenge or sending them a session key.
+   * Looking up a cipher is costly, so each thread keeps one for encrypting and one for
+   * decrypting, and just sets it up with the key it's asked for.  The cipher is only good
+   * until the same thread asks for another one in the same mode.
+   * @param mode Either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+   * @param key The user's public key
+   * @return A cipher ready for use
+   */
+  static Cipher rsaCipher( int mode, Key key ) throws GeneralSecurityException {
+    Cipher[] ciphers = RSA_CIPHERS.get();
+    int slot = mode == Cipher.ENCRYPT_MODE ? 0 : 1;
+    if ( ciphers[ slot ] == null )
+      ciphers[ slot ] = Cipher.getInstance( "RSA" );
+    ciphers[ slot ].init( mode, key );
+    return ciphers[ slot ];
+  }
+
+  /**
+   * Makes an AES cipher object for encrypting or decrypting messages with a session key.
+   * @param mode Either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+   * @param sessionKey The raw bytes of the session key
+   * @return A cipher ready for use
+   */
+  static Cipher aesCipher( int mode, byte[] sessionKey ) throws GeneralSecurityException {
+    SecretKey aesKey = new SecretKeySpec( sessionKey, 0, sessionKey.length, "AES" );
+    Cipher cipher = Cipher.getInstance( "AES/ECB/PKCS5Padding" );
+    cipher.init( mode, aesKey );
+    return cipher;
+  }
+
+  /**
+   * Encrypts or decrypts a message from one buffer into another with a session key, timing it
+   * for the metrics.
+   * @param cipher The AES cipher to use
+   * @param msg The message, ready for reading
+   * @param out Where to put the result, with enough room for it
+   * @return The number of bytes put in the result
+   */
+  int aes( SessionCipher cipher, ByteBuffer msg, ByteBuffer out ) throws GeneralSecurityException {
+    long begin = System.nanoTime();
+    int len = cipher.doFinal( msg, out );
+    metrics.aes.record( System.nanoTime() - begin );
+    return len;
+  }
+
+  /**
+   * Decides what to do with a newly accepted connection.  If its address isn't logging in
+   * too fast, it gets a thread of its own to log in on, and a deadline to finish by.
+   * Otherwise it's closed straight away.
+   * @param sock The socket connection for the Client
+   * @param sessions Executor to run the user on, or null for a thread of their own
+   */
+  private void admit( Socket sock, ExecutorService sessions ) {
+    if ( !handshakes.admit( sock.getInetAddress() ) ) {
+      close( sock );
+      return;
+    }
+    ScheduledFuture< ? > deadline = handshakes.deadline( () -> {
+        metrics.timedOutLogins.increment();
+        close( sock );
+      } );
+    if ( sessions != null )
+      sessions.execute( () -> authenticate( sock, deadline ) );
+    else
+      new UserThread( sock, deadline ).start();
+  }
+
+  /**
+   * Runs on the user's own thread.  Logs the client in and, if that works before the
+   * deadline, goes on to play the game.
+   * @param sock The socket connection for the Client
+   * @param deadline The login's timeout, which closes the socket if it runs first
+   */
+  private void authenticate( Socket sock, ScheduledFuture< ? > deadline ) {
+    Login login = null;
+    try {
+      login = handshake( sock, deadline );
+    } catch ( IOException e ) {
+      // If the login timed out, we closed the socket ourselves.
+      if ( !deadline.isDone() )
+        System.out.println( "IO Error: " + e );
+    } catch( GeneralSecurityException e ){
+      System.err.println( "Encryption error: " + e );
+    }
+
+    // If the timeout has already run, it closed the socket and counted the login.
+    boolean inTime = deadline.cancel( false );
+    if ( login == null || !inTime ) {
+      close( sock );
+      return;
+    }
+
+    metrics.logins.increment();
+    metrics.activeSessions.increment();
+    play( sock, login );
+  }
+
+  /**
+   * Carries out the challenge and response with a client and sends it the session key.  The
+   * reads from the client happen here, on the user's own thread; only the ticket or RSA work
+   * goes to a handshake worker, so a client that's slow to answer never holds one up.
+   * @param sock The socket connection for the Client
+   * @param deadline The login's timeout, so a login that ran out of time isn't also counted
+   *                 as failing
+   * @return The user who logged in, or null if they couldn't
+   */
+  private Login handshake( Socket sock, ScheduledFuture< ? > deadline )
+    throws IOException, GeneralSecurityException {
+    // True once the client has told us who they are, and if the login was refused because
+    // the handshake workers were swamped.
+    boolean greeted = false;
+    boolean refused = false;
+    Login login = null;
+
+    try {
+      // Get formatted input/output streams for this thread.  These can read and write
+      // strings, arrays of bytes, ints, lots of things.
+      // Output is buffered so each message goes out in one piece when putMessage() flushes.
+      DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream( metrics.countOut( sock.getOutputStream() ) ) );
+      DataInputStream input = new DataInputStream(
+        new BufferedInputStream( metrics.countIn( sock.getInputStream() ) ) );
+      
+      // Get the username, followed by any options the client is asking for.  Anyone can
+      // connect, so they only get a short time to say who they are.
+      sock.setSoTimeout( HandshakeStage.HELLO_TIMEOUT );
+      String hello[] = input.readUTF().split( " " );
+      sock.setSoTimeout( 0 );
+      long begin = System.nanoTime();
+      greeted = true;
+      String username = hello[ 0 ];
+      boolean binary = hasOption( hello, BinaryProtocol.OPTION );
+      boolean gcm = hasOption( hello, SessionCipher.GCM_OPTION );
+
+      // Find this user.
+      UserRec rec = findUser( username );
+      if ( rec == null )
+        return null;
+
+      // A returning user can skip the RSA challenge with a ticket, if it's a good one.
+      String ticket = optionValue( hello, Tickets.OPTION );
+      byte[] secret = ticket == null ? null : tickets.open( ticket, username );
+      if ( ticket != null && secret == null )
+        return null;
+
+      // Make a random sequence of bytes to use as a challenge string.
+      Random rand = new Random();
+      byte[] challenge = new byte [ 16 ];
+      rand.nextBytes( challenge );
+
+      // Make a session key for communiating over AES.  We use it later, if the
+      // client successfully authenticates.
+      byte[] sessionKey = new byte [ 16 ];
+      rand.nextBytes( sessionKey );
+
+      // Send the client the challenge, and get back their answer: the challenge encrypted
+      // with their private key, or proof that they have the ticket's secret.
+      putMessage( output, challenge );
+      byte[] answer = getMessage( input );
+
+      // Have a handshake worker check the answer and encrypt the session key.
+      Future< byte[] > verified = handshakes.submit(
+        () -> verify( rec, secret, challenge, sessionKey, answer ) );
+      if ( verified == null ) {
+        refused = true;
+        return null;
+      }
+      byte[] encryptedSessionKey;
+      try {
+        encryptedSessionKey = verified.get( deadline.getDelay( TimeUnit.MILLISECONDS ),
+                                            TimeUnit.MILLISECONDS );
+      } catch ( TimeoutException e ) {
+        verified.cancel( false );
+        return null;
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch ( ExecutionException e ) {
+        if ( e.getCause() instanceof GeneralSecurityException )
+          throw ( GeneralSecurityException ) e.getCause();
+        throw new IOException( e.getCause() );
+      }
+      if ( encryptedSessionKey == null )
+        return null;
+      putMessage( output, encryptedSessionKey );
+
+      // Make AES cipher objects to encrypt and decrypt with
+      // the session key, in whichever mode the client asked for.
+      login = new Login();
+      login.rec = rec;
+      login.input = input;
+      login.AESDecrypter = new SessionCipher( Cipher.DECRYPT_MODE, sessionKey, gcm,
+                                              SessionCipher.FROM_CLIENT );
+      login.session = new ClientSession(
+        new OutboundQueue( output, new SessionCipher( Cipher.ENCRYPT_MODE, sessionKey, gcm,
+                                                      SessionCipher.FROM_SERVER ),
+                           outbound, () -> close( sock ) ),
+        binary );
+      metrics.handshake.record( System.nanoTime() - begin );
+      return login;
+    } finally {
+      if ( login == null && greeted && !refused && !deadline.isDone() )
+        metrics.failedLogins.increment();
+    }
+  }
+
+  /**
+   * Runs on a handshake worker.  Checks a client's answer to the challenge and, if it's
+   * right, encrypts the session key for it.
+   * @param rec The user logging in
+   * @param secret The secret from their ticket, or null if they're logging in with RSA
+   * @param challenge The challenge they were sent
+   * @param sessionKey The session key to send them if they pass
+   * @param answer Their answer: the challenge encrypted with their private key, or the proof
+   *               of the ticket's secret
+   * @return The encrypted session key, or null if the answer was wrong
+   */
+  byte[] verify( UserRec rec, byte[] secret, byte[] challenge, byte[] sessionKey,
+                 byte[] answer ) throws GeneralSecurityException {
+    if ( secret != null ) {
+      if ( !Tickets.check( secret, challenge, answer ) )
+        return null;
+      metrics.resumptions.increment();
+      return Tickets.wrapKey( secret, sessionKey );
+    }
+
+    long rsaBegin = System.nanoTime();
+    Cipher RSADecrypter = rsaCipher( Cipher.DECRYPT_MODE, rec.publicKey() );
+    byte[] decryptedChallenge = RSADecrypter.doFinal( answer );
+    if ( !Arrays.equals( decryptedChallenge, challenge ) )
+      return null;
+
+    // Encrypt the session key with the client's public key.
+    Cipher RSAEncrypter = rsaCipher( Cipher.ENCRYPT_MODE, rec.publicKey() );
+    byte[] encryptedSessionKey = RSAEncrypter.doFinal( sessionKey );
+    metrics.rsa.record( System.nanoTime() - rsaBegin );
+    return encryptedSessionKey;
+  }
+
+  /** 
+   * Function to handle interaction with a client once they've logged in.  For a
+   * multi-threaded server, this should be done in a separate thread.
+   * @param sock The socket connection for the Client 
+   * @param login The user who logged in on that connection
+   */
+  private void play( Socket sock, Login login ) {
+    UserRec rec = login.rec;
+    DataInputStream input = login.input;
+    ClientSession session = login.session;
+
+    try {
+      // A router passes everything on to the backends.
+      if ( router != null ) {
+        router.serve( rec, session.binary, new Router.Client() {
+            public ByteBuffer receive() throws IOException, GeneralSecurityException {
+              return login.receive();
+            }
+
+            public void send( ByteBuffer msg, boolean reply )
+              throws IOException, GeneralSecurityException {
+              session.queue.send( msg, reply, true, null );
+            }
+
+            public void close() {
+              Server.close( sock );
+            }
+          } );
+        return;
+      }
+
+      // Binary clients get a loop of their own.
+      if ( session.binary ) {
+        binarySession( login );
+        return;
+      }
+        
+      // Get the first client command
+      String request = login.receiveText();
+
+      // Until the client asks us to exit.
+      while ( ! request.equals( "exit" ) ) {
+
+        // The board does its own locking, so nothing is held while we encrypt the
+        // reply or wait for the socket to take it.
+        byte[] replyBytes = execute( request, rec, session );
+
+        // Send the reply back to our client.  If the client has already sent its next
+        // command, hold the reply so it can go out with the next one.
+        session.send( replyBytes, input.available() == 0 );
+
+        // Get the next command.
+        request = login.receiveText();
+      }
+    } catch ( IOException e ) {
+      System.out.println( "IO Error: " + e );
+    } catch( GeneralSecurityException e ){
+      System.err.println( "Encryption error: " + e );
+    } finally {
+      leave( session );
+      session.queue.finish();
+      metrics.activeSessions.decrement();
+      close( sock );
+    }
+  }
+
+  /**
+   * Closes a client's socket, ignoring any trouble doing it.
+   * @param sock The socket to close
+   */
+  private static void close( Socket sock ) {
+    try {
+      sock.close();
+    } catch ( Exception e ) {
+    }
+  }
+
+  /**
+   * Find the record for the user with the given name.  The directory does its own locking.
+   * @param username The name the client logged in with
+   * @return The record for this user, or null if there is no such user
+   */
+  UserRec findUser( String username ) {
+    return users.find( username );
+  }
+
+  /**
+   * Checks whether a client asked for an option when it logged in.
+   * @param hello The words the client sent when it logged in, starting with the username
+   * @param option The option to look for
+   * @return True if the client asked for the option
+   */
+  static boolean hasOption( String[] hello, String option ) {
+    for ( int i = 1; i < hello.length; i++ )
+      if ( hello[ i ].equals( option ) )
+        return true;
+    return false;
+  }
+
+  /**
+   * Finds the value of an option a client gave when it logged in.
+   * @param hello The words the client sent when it logged in, starting with the username
+   * @param prefix The start of the option, up to its value
+   * @return The rest of the option, or null if the client didn't give it
+   */
+  static String optionValue( String[] hello, String prefix ) {
+    for ( int i = 1; i < hello.length; i++ )
+      if ( hello[ i ].startsWith( prefix ) )
+        return hello[ i ].substring( prefix.length() );
+    return null;
+  }
+
+  /**
+   * Handles commands from a client using the binary protocol, until it exits.  Each message
+   * is read, decrypted, carried out and answered using buffers that are kept for the whole
+   * session, so a command doesn't need any new memory unless it's bigger than any before it.
+   * @param login The user and the receiving side of their connection
+   */
+  private void binarySession( Login login ) throws IOException, GeneralSecurityException {
+    ByteBuffer reply = ByteBuffer.allocate( 1024 );
+
+    while ( true ) {
+      ByteBuffer request = login.receive();
+      if ( request.hasRemaining() && request.get( 0 ) == BinaryProtocol.EXIT )
+        return;
+
+      reply = executeBinary( request, reply, login.rec, login.session );
+      login.session.send( reply, login.input.available() == 0 );
+    }
+  }
+
+  /**
+   * Carries out a command sent with the binary protocol and builds the reply in the given
+   * buffer.  Only a rendering of the board, made once per version, needs new memory.
+   * @param request The decrypted request, ready for reading
+   * @param reply Buffer to build the reply in
+   * @param rec The record for the user making the request
+   * @param session Where to push board changes if the user subscribes to them
+   * @return The buffer holding the reply, ready for reading, which may be a bigger one
+   */
+  ByteBuffer executeBinary( ByteBuffer request, ByteBuffer reply, UserRec rec,
+                            Subscriptions.Subscriber session ) {
+    long begin = System.nanoTime();
+    Room room = room( session );
+    int kind = Metrics.INVALID;
+    reply.clear();
+    try {
+      switch ( request.get() ) {
+        case BinaryProtocol.BOARD: {
+          kind = Metrics.BOARD;
+          byte[] image = room.renderBinary();
+          reply = BinaryProtocol.ensure( reply, image.length );
+          reply.put( image );
+          break;
+        }
+        case BinaryProtocol.PLACE: {
+          kind = Metrics.PLACE;
+          char let = ( char ) ( request.get() & 0xFF );
+          int row = request.getInt();
+          int col = request.getInt();
+          int points = room.place( rec, let, row, col );
+          metrics.placed( points );
+          if ( points > 0 )
+            room.subscriptions.changed();
+          reply.put( BinaryProtocol.PLACE ).putInt( points );
+          break;
+        }
+        case BinaryProtocol.BATCH: {
+          kind = Metrics.BATCH;
+          int count = request.getInt();
+          if ( count < 0 || count > request.remaining() / BinaryProtocol.MOVE_SIZE )
+            throw new BufferUnderflowException();
+          char[] lets = new char [ count ];
+          int[] rows = new int [ count ], cols = new int [ count ], points = new int [ count ];
+          for ( int i = 0; i < count; i++ ) {
+            lets[ i ] = ( char ) ( request.get() & 0xFF );
+            rows[ i ] = request.getInt();
+            cols[ i ] = request.getInt();
+          }
+          boolean changed = room.placeAll( rec, lets, rows, cols, count, points );
+
+          reply = BinaryProtocol.ensure( reply, 5 + 4 * count );
+          reply.put( BinaryProtocol.BATCH ).putInt( count );
+          for ( int i = 0; i < count; i++ ) {
+            metrics.placed( points[ i ] );
+            reply.putInt( points[ i ] );
+          }
+          if ( changed )
+            room.subscriptions.changed();
+          break;
+        }
+        case BinaryProtocol.TEXT: {
+          // Text commands are timed by execute().
+          kind = -1;
+          byte[] text = execute( StandardCharsets.UTF_8.decode( request ).toString(), rec, session );
+          reply = BinaryProtocol.ensure( reply, 1 + text.length );
+          reply.put( BinaryProtocol.TEXT ).put( text );
+          break;
+        }
+        default:
+          reply.put( BinaryProtocol.INVALID );
+          break;
+      }
+    } catch ( BufferUnderflowException e ) {
+      // The request was cut short.
+      reply.clear();
+      reply.put( BinaryProtocol.INVALID );
+    }
+    reply.flip();
+    if ( kind >= 0 )
+      metrics.command( kind, begin );
+    return reply;
+  }
+
+  /**
+   * Finds the room a session is in.
+   * @param session The session
+   * @return The room it has joined, or the main room if it hasn't joined one
+   */
+  private Room room( Subscriptions.Subscriber session ) {
+    Room room = seats.get( session );
+    return room == null ? mainRoom : room;
+  }
+
+  /**
+   * Stops pushing board changes to a session, if it was subscribed.
+   * @param session The session that no longer wants them
+   */
+  void unsubscribe( Subscriptions.Subscriber session ) {
+    room( session ).subscriptions.unsubscribe( session );
+  }
+
+  /**
+   * Forgets about a session that's going away: it's unsubscribed, and gives up its seat.
+   * @param session The session that's going away
+   */
+  void leave( Subscriptions.Subscriber session ) {
+    unsubscribe( session );
+    seats.remove( session );
+  }
+
+  /**
+   * Carries out a single command from an authenticated user and builds the reply to send
+   * back.  This is safe to call from any number of threads at once.
+   * @param request The decrypted request string the user has made
+   * @param rec The record for the user making the request
+   * @param session Where to push board changes if the user subscribes to them
+   * @return The reply for the client, which the caller must not modify
+   */
+  byte[] execute( String request, UserRec rec, Subscriptions.Subscriber session ) {
+    long begin = System.nanoTime();
+    Room room = room( session );
+
+    // The board is only rendered again if a placement has changed it.
+    if( request.equals( "board" ) ) {
+      byte[] image = room.render();
+      metrics.command( Metrics.BOARD, begin );
+      return image;
+    }
+
+    StringBuilder reply = new StringBuilder();
+    int kind;
+
+    if( request.startsWith( "board since " ) ) {
+
+      kind = Metrics.BOARD_SINCE;
+      reply.append( boardSince( request, room ) );
+
+    } else if( request.startsWith( "board " ) ) {
+
+      kind = Metrics.VIEWPORT;
+      reply.append( viewport( request, rec, room ) );
+
+    } else if( request.equals( "subscribe" ) ) {
+
+      kind = Metrics.SUBSCRIBE;
+      long v = room.subscriptions.subscribe( session );
+      reply.append( "Subscribed at version " + v + "\n" );
+
+    } else if( request.equals( "unsubscribe" ) ) {
+
+      kind = Metrics.UNSUBSCRIBE;
+      room.subscriptions.unsubscribe( session );
+      reply.append( "Unsubscribed\n" );
+
+    } else if( request.startsWith( "join " ) ) {
+
+      kind = Metrics.JOIN;
+      reply.append( join( request, rec, session, room ) );
+
+    } else if( request.equals( "rooms" ) ) {
+
+      kind = Metrics.ROOMS;
+      reply.append( listRooms( room ) );
+
+    } else if( request.equals( "moves" ) || request.startsWith( "moves " ) ) {
+
+      kind = Metrics.MOVES;
+      reply.append( moves( request, room ) );
+
+    } else if( request.startsWith( "top " ) ) {
+
+      kind = Metrics.TOP;
+      reply.append( top( request, room ) );
+
+    } else if( request.equals( "rank" ) || request.startsWith( "rank " ) ) {
+
+      kind = Metrics.RANK;
+      reply.append( rank( request, rec, room ) );
+
+    } else if( request.equals( "hint" ) || request.startsWith( "hint " ) ) {
+
+      kind = Metrics.HINT;
+      reply.append( hint( request, room ) );
+
+    } else if( request.equals( "ticket" ) ) {
+
+      kind = Metrics.TICKET;
+      reply.append( ticket( rec ) );
+
+    } else if( request.equals( "stats" ) ) {
+
+      kind = Metrics.STATS;
+      reply.append( metrics.report() );
+
+    } else if( request.startsWith( "batch\n" ) ) {
+
+      kind = Metrics.BATCH;
+      reply.append( batch( request, rec, room ) );
+
+    } else if( request.contains( "place" ) ) {
+
+      kind = Metrics.PLACE;
+      reply.append( place( request, rec, room ) );
+
+    } else { 
+      kind = Metrics.INVALID;
+      reply.append( "Invalid Command\n" );
+    }
+
+    byte[] replyBytes = reply.toString().getBytes();
+    metrics.command( kind, begin );
+    return replyBytes;
+  }
+
+  /**
+   * Renders a rectangle of the board, given by its top left and bottom right corners, so a
+   * user of a large map only gets the part they're looking at.  The rectangle is cut down to
+   * fit the board.  The reply starts with "view", the corners that were rendered and the
+   * version of the board, so the user can follow changes with "board since".  The rows come
+   * next, then the user's own score.
+   * @param request The request string the user has made
+   * @param rec The record for the user making the request
+   * @param room The room the user is in
+   * @return The text of the reply
+   */
+  private String viewport( String request, UserRec rec, Room room ) {
+    int[] corners = rectangle( request.split( " " ), room );
+    if( corners == null )
+      return "Invalid Command\n";
+    return room.view( rec, corners[ 0 ], corners[ 1 ], corners[ 2 ], corners[ 3 ] );
+  }
+
+  /**
+   * Reads the corners of a rectangle from a request, and cuts it down to fit the board.
+   * @param requestSplit The words of the request, with the command first and the top, left,
+   *                     bottom and right after it
+   * @param room The room the user is in
+   * @return The top, left, bottom and right, or null if they aren't numbers or leave nothing
+   *         on the board
+   */
+  private int[] rectangle( String[] requestSplit, Room room ) {
+    if( requestSplit.length != 5 )
+      return null;
+
+    int top, left, bottom, right;
+    try {
+      top = Math.max( Integer.parseInt( requestSplit[ 1 ] ), 0 );
+      left = Math.max( Integer.parseInt( requestSplit[ 2 ] ), 0 );
+      bottom = Math.min( Integer.parseInt( requestSplit[ 3 ] ), room.height() - 1 );
+      right = Math.min( Integer.parseInt( requestSplit[ 4 ] ), room.width() - 1 );
+    } catch( NumberFormatException e ) {
+      return null;
+    }
+    if( top > bottom || left > right )
+      return null;
+    return new int[] { top, left, bottom, right };
+  }
+
+  /**
+   * Lists the cells a letter can be placed on, on the whole board or in a rectangle of it
+   * given as for a viewport.  The reply starts with "moves", the corners that were looked at
+   * and the version of the board.  Then each cell follows on a line of its own, as its row,
+   * column and what's in it: 'o', '.', or ':' for a space that scores double.
+   * @param request The request string the user has made
+   * @param room The room the user is in
+   * @return The text of the reply
+   */
+  private String moves( String request, Room room ) {
+    if( request.equals( "moves" ) ) {
+      if( room.height() == 0 || room.width() == 0 )
+        return "Invalid Command\n";
+      return room.moves( 0, 0, room.height() - 1, room.width() - 1 );
+    }
+
+    int[] corners = rectangle( request.split( " " ), room );
+    if( corners == null )
+      return "Invalid Command\n";
+    return room.moves( corners[ 0 ], corners[ 1 ], corners[ 2 ], corners[ 3 ] );
+  }
+
+  /**
+   * Lists the best placements on the board in the user's room, found by the move search, so
+   * a user or an automated player doesn't have to try cells until one works.  The request
+   * can give how many to list, 5 if it doesn't.  The reply starts with "hints" and the
+   * version of the board, followed by "partial" if the search ran out of time before it
+   * looked at the whole board.  Each placement follows on a line of its own, as its row,
+   * column, letter and the points it's worth, best first.
+   * @param request The request string the user has made
+   * @param room The room the user is in
+   * @return The text of the reply
+   */
+  private String hint( String request, Room room ) {
+    String requestSplit[] = request.split( " " );
+    int k;
+    try {
+      k = requestSplit.length == 1 ? 5
+        : requestSplit.length == 2 ? Integer.parseInt( requestSplit[ 1 ] ) : 0;
+    } catch( NumberFormatException e ) {
+      k = 0;
+    }
+    if( k <= 0 || k > MoveSearch.MAX_MOVES || room.height() == 0 || room.width() == 0 )
+      return "Invalid Command\n";
+    return room.hints( moveSearch, k );
+  }
+
+  /**
+   * Opens the main room with a new game, in place of any main room there was.
+   */
+  private void openMain() {
+    Room room = new Room( Room.MAIN, newBoard(), template, users, roomWorkers, journal );
+    if ( backend )
+      room.keepPlacements();
+    mainRoom = room;
+    rooms.put( Room.MAIN, room );
+  }
+
+  /**
+   * Opens a room with a new game, or finds it if it's already open.
+   * @param name Name of the room
+   * @return The room
+   */
+  private Room open( String name ) {
+    return rooms.computeIfAbsent( name, n -> {
+        Room room = new Room( n, newBoard(), template, null, roomWorkers, journal );
+        if ( backend )
+          room.keepPlacements();
+        return room;
+      } );
+  }
+
+  /**
+   * Moves a session to another room, opening the room with a new game if nobody has used it
+   * yet.  If the session was subscribed to board changes, it's subscribed to the new room's
+   * instead.  Room names are letters, digits, '-' and '_'.
+   * @param request The request string the user has made
+   * @param rec The record for the user making the request
+   * @param session The session that's moving
+   * @param from The room the session is in now
+   * @return The reply, giving the room's name and the version of its board
+   */
+  private String join( String request, UserRec rec, Subscriptions.Subscriber session,
+                       Room from ) {
+    String requestSplit[] = request.split( " " );
+    if( requestSplit.length != 2 || !requestSplit[ 1 ].matches( ROOM_NAME ) )
+      return "Invalid Command\n";
+
+    String name = requestSplit[ 1 ];
+    Room to = rooms.get( name );
+    if( to == null ) {
+      if( rooms.size() >= maxRooms )
+        return "Too many rooms\n";
+      to = open( name );
+    }
+
+    // Move the seat before any subscription, so events come from the room the session is in.
+    to.score( rec );
+    if( to != from ) {
+      boolean subscribed = from.subscriptions.unsubscribe( session );
+      if( to == mainRoom )
+        seats.remove( session );
+      else
+        seats.put( session, to );
+      if( subscribed )
+        to.subscriptions.subscribe( session );
+    }
+    return "Joined " + to.name + " at version " + to.history.version() + "\n";
+  }
+
+  /**
+   * Lists the rooms, with how many players each has and how far its game has got.  The room
+   * the user is in is marked with a "*".
+   * @param current The room the user is in
+   * @return The reply, with a line for each room
+   */
+  private String listRooms( Room current ) {
+    StringBuilder reply = new StringBuilder();
+    for( Room room : new TreeMap< String, Room >( rooms ).values() )
+      reply.append( ( room == current ? "* " : "  " ) + room.name + ": " + room.players()
+                    + " players, version " + room.history.version() + "\n" );
+    return reply.toString();
+  }
+
+  /**
+   * Lists the players with the highest scores in a room, highest first, a line each giving
+   * their rank, name and score.  Players on the same score share a rank.  Only players who've
+   * scored are listed.
+   * @param request The request string the user has made
+   * @param room The room the user is in
+   * @return The reply
+   */
+  private String top( String request, Room room ) {
+    String requestSplit[] = request.split( " " );
+    int k;
+    try {
+      k = requestSplit.length == 2 ? Integer.parseInt( requestSplit[ 1 ] ) : 0;
+    } catch( NumberFormatException e ) {
+      k = 0;
+    }
+    if( k <= 0 )
+      return "Invalid Command\n";
+
+    StringBuilder reply = new StringBuilder();
+    room.leaderboard.top( k, ( rank, name, score ) ->
+        reply.append( rank + ". " + name + ": " + score + "\n" ) );
+    if( reply.length() == 0 )
+      return "No scores yet\n";
+    return reply.toString();
+  }
+
+  /**
+   * Tells the user where a player stands in their room, as the player's name, score, rank
+   * and the number of players, as in "alan: 42, rank 3 of 17".  Players on the same score
+   * share a rank, and players who haven't scored share the last one.
+   * @param request The request string the user has made, naming the player, or the user
+   *                themselves if it doesn't
+   * @param rec The record for the user making the request
+   * @param room The room the user is in
+   * @return The reply
+   */
+  private String rank( String request, UserRec rec, Room room ) {
+    String requestSplit[] = request.split( " " );
+    if( requestSplit.length > 2 )
+      return "Invalid Command\n";
+
+    UserRec player = requestSplit.length == 2 ? users.find( requestSplit[ 1 ] ) : rec;
+    if( player == null || !room.playing( player ) )
+      return "No such player\n";
+    long score = room.score( player ).sum();
+    return player.name + ": " + score + ", rank " + room.leaderboard.rank( score ) + " of "
+      + room.players() + "\n";
+  }
+
+  /**
+   * Gives a user a resumption ticket, with the secret that goes with it, so they can log in
+   * again without the RSA challenge.  The reply is "ticket", the ticket, and the secret in
+   * base 64, all on one line.
+   * @param rec The user asking for the ticket
+   * @return The reply
+   */
+  String ticket( UserRec rec ) {
+    try {
+      byte[] secret = Tickets.newSecret();
+      return "ticket " + tickets.issue( rec.name, secret ) + " "
+        + Base64.getEncoder().encodeToString( secret ) + "\n";
+    } catch( GeneralSecurityException e ) {
+      System.err.println( "Encryption error: " + e );
+      return "Invalid Command\n";
+    }
+  }
+
+  /**
+   * Tells the user what's changed since a version of the board they already have.  The reply
+   * starts with the current version.  Then there's a line for each letter placed since their
+   * version, giving its row, column and letter, and the current score of each user who placed
+   * one.  If their version is too old for us to remember everything since then, we send
+   * "full" and the whole board instead.
+   * @param request The request string the user has made
+   * @param room The room the user is in
+   */
+  private String boardSince( String request, Room room ) {
+    String requestSplit[] = request.split( " " );
+    if( requestSplit.length != 3 )
+      return "Invalid Command\n";
+
+    long since;
+    try {
+      since = Long.parseLong( requestSplit[ 2 ] );
+    } catch( NumberFormatException e ) {
+      return "Invalid Command\n";
+    }
+
+    return room.changes( since, room.history.version() );
+  }
+
+  /**
+   * Attempts to place a letter on the board at a particular location. If it is an invalid move,
+   * or an invalid request it will append "Invalid Command" to the reply string to inform the user
+   * of their invalid move.
+   * @param request The request string the user has made
+   * @param rec The record for the user making the request
+   * @param room The room the user is in
+   */
+  private String place( String request, UserRec rec, Room room ) {
+    char[] let = new char [ 1 ];
+    int[] row = new int [ 1 ], col = new int [ 1 ];
+    if( !parsePlace( request, let, row, col, 0 ) ) {
+      metrics.placed( 0 );
+      return "Invalid Command\n";
+    }
+
+    // The room and its board check the location and do their own locking.  A room being handed
+    // to another server takes no more letters.
+    int pointsAwarded = room.place( rec, let[ 0 ], row[ 0 ], col[ 0 ] );
+    metrics.placed( pointsAwarded );
+
+    if( pointsAwarded > 0 ) {
+      room.subscriptions.changed();
+      return pointsAwarded + " points\n";
+    } else
+      return "Invalid Command\n";
+  }
+
+  /**
+   * Places every letter in a batch request as a single transaction on the board, and replies
+   * with one line per letter, just as if each had been sent as its own place command.  The
+   * request is "batch", followed by a place command on each line.
+   * @param request The request string the user has made
+   * @param rec The record for the user making the request
+   * @param room The room the user is in
+   */
+  private String batch( String request, UserRec rec, Room room ) {
+    String lines[] = request.split( "\n" );
+    int count = lines.length - 1;
+    char[] lets = new char [ count ];
+    int[] rows = new int [ count ], cols = new int [ count ];
+    boolean[] valid = new boolean [ count ];
+    for( int i = 0; i < count; i++ ) {
+      valid[ i ] = lines[ i + 1 ].contains( "place" )
+        && parsePlace( lines[ i + 1 ], lets, rows, cols, i );
+
+      // Commands we can't understand go to a spot that's never on the board.
+      if( !valid[ i ] )
+        rows[ i ] = -1;
+    }
+
+    int[] points = new int [ count ];
+    boolean changed = room.placeAll( rec, lets, rows, cols, count, points );
+
+    StringBuilder reply = new StringBuilder();
+    for( int i = 0; i < count; i++ ) {
+      metrics.placed( points[ i ] );
+      if( points[ i ] > 0 )
+        reply.append( points[ i ] + " points\n" );
+      else
+        reply.append( "Invalid Command\n" );
+    }
+
+    // Subscribers get the whole batch together.
+    if( changed )
+      room.subscriptions.changed();
+    return reply.toString();
+  }
+
+  /**
+   * Picks the letter, row and column out of a place command.
+   * @param request The place command
+   * @param lets Where to store the letter
+   * @param rows Where to store the row
+   * @param cols Where to store the column
+   * @param i The index in the arrays to store them at
+   * @return False if the command isn't a properly formed place command
+   */
+  private static boolean parsePlace( String request, char[] lets, int[] rows, int[] cols, int i ) {
+    String requestSplit[] = request.split( " " );
+    
+    if( requestSplit.length != 4 || requestSplit[ 1 ].length() != 1 )
+      return false;
+
+    try { // Error check to ensure these are Integers
+      rows[ i ] = Integer.parseInt( requestSplit[ 2 ] );
+      cols[ i ] = Integer.parseInt( requestSplit[ 3 ] );
+      lets[ i ] = requestSplit[ 1 ].charAt( 0 );
+    } catch( NumberFormatException e ) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Makes an executor that runs each task on its own virtual thread.  Virtual threads only
+   * exist on Java 21 and later, so we look the factory method up by name and fall back to a
+   * platform thread per task on older JVMs.
+   * @return An executor that starts a new thread for every task
+   */
+  static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+      return ( ExecutorService ) factory.invoke( null );
+    } catch ( ReflectiveOperationException e ) {
+      System.err.println( "Virtual threads aren't available, using platform threads" );
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /**
+   * Puts back a placement from the journal, opening its room if it isn't open yet.  Rooms
+   * opened this way don't count against the limit on rooms, since users opened them before.
+   * @param name Name of the room
+   * @param user Name of the user who placed the letter, or null
+   * @param let The letter, or 0 to put back just the points
+   * @param row The row it went in
+   * @param col The column it went in
+   * @param points The points it was worth
+   */
+  private void restore( String name, String user, char let, int row, int col, int points ) {
+    Room room = open( name );
+    room.restore( user == null ? null : users.find( user ), let, row, col, points );
+  }
+
+  /**
+   * Lists every room, for the router, a line each giving its name, the number of players and
+   * the version of its board.
+   * @return The list
+   */
+  String roomTable() {
+    StringBuilder reply = new StringBuilder();
+    for( Room room : rooms.values() )
+      reply.append( room.name + " " + room.players() + " " + room.history.version() + "\n" );
+    return reply.toString();
+  }
+
+  /**
+   * Freezes a room that the router is moving to another backend, and lists its placements.
+   * @param name Name of the room
+   * @return The placements, as for Room.export(), or nothing if there's no such room
+   */
+  String exportRoom( String name ) {
+    Room room = rooms.get( name );
+    return room == null ? "" : room.export();
+  }
+
+  /**
+   * Puts back the placements of a room the router has moved here from another backend,
+   * opening the room if it isn't open, and journals them as if they'd been made here.
+   * @param name Name of the room
+   * @param placements The placements, as from Room.export()
+   */
+  void importRoom( String name, String placements ) {
+    Room room = open( name );
+    for( String line : placements.split( "\n" ) ) {
+      String f[] = line.split( " " );
+      if( f.length != 5 || f[ 1 ].length() != 1 )
+        continue;
+      try {
+        char let = f[ 1 ].equals( "-" ) ? 0 : f[ 1 ].charAt( 0 );
+        int row = Integer.parseInt( f[ 2 ] ), col = Integer.parseInt( f[ 3 ] );
+        int points = Integer.parseInt( f[ 4 ] );
+        room.restore( users.find( f[ 0 ] ), let, row, col, points );
+        if( journal != null )
+          journal.append( name, f[ 0 ], let, row, col, points );
+      } catch( NumberFormatException e ) {
+      }
+    }
+    room.subscriptions.changed();
+  }
+
+  /**
+   * Forgets a room the router has moved to another backend, and journals that it's gone.
+   * @param name Name of the room
+   */
+  void dropRoom( String name ) {
+    forget( name );
+    if( journal != null )
+      journal.drop( name );
+  }
+
+  /**
+   * Forgets a room and everything placed in it.  The main room is always open, so it's
+   * opened again with a new game, after everyone's score in it is reset.  Anyone still seated
+   * in another room goes back to the main room.
+   * @param name Name of the room
+   */
+  private void forget( String name ) {
+    Room room = rooms.get( name );
+    if( room == mainRoom ) {
+      room.reset();
+      openMain();
+    } else if( room != null ) {
+      rooms.remove( name );
+      seats.values().removeIf( r -> r == room );
+    }
+  }
+
+  /** 
+   * Esentially, the main method for our server, 
+   * as an instance method so we can access non-static fields. 
+   */
+  void run( String[] args ) {
+    ServerSocket serverSocket = null;
+
+    // Look for options selecting how client connections are served.
+    boolean nio = false;
+    boolean virtual = false;
+    int loops = NioServer.DEFAULT_LOOPS;
+    File ticketKey = null;
+    int handshakeThreads = HandshakeStage.DEFAULT_THREADS;
+    int handshakeQueue = HandshakeStage.DEFAULT_QUEUE;
+    double loginRate = 0;
+    long handshakeTimeout = HandshakeStage.DEFAULT_TIMEOUT;
+    File journalDir = null;
+    long syncMillis = Journal.DEFAULT_SYNC_MILLIS;
+    int snapshotEvery = Journal.DEFAULT_SNAPSHOT_EVERY;
+    long hintBudget = MoveSearch.DEFAULT_BUDGET;
+    int bots = 0;
+    String botRoom = Bots.DEFAULT_ROOM;
+    long botDelay = Bots.DEFAULT_DELAY;
+    int highWater = OutboundQueue.DEFAULT_HIGH_WATER;
+    long writeTimeout = OutboundQueue.DEFAULT_WRITE_TIMEOUT;
+    boolean evict = true;
+    int clusterPort = 0;
+    File clusterKey = null;
+    File backends = null;
+    for ( int i = 0; i < args.length; i++ ) {
+      if ( args[ i ].equals( "-nio" ) )
+        nio = true;
+      else if ( args[ i ].equals( "-virtual" ) )
+        virtual = true;
+      else if ( args[ i ].equals( "-loops" ) && i + 1 < args.length )
+        loops = Integer.parseInt( args[ ++i ] );
+      else if ( args[ i ].equals( "-engine" ) && i + 1 < args.length
+                && args[ i + 1 ].matches( Rules.ENGINES ) )
+        engine = args[ ++i ];
+      else if ( args[ i ].equals( "-ticketkey" ) && i + 1 < args.length )
+        ticketKey = new File( args[ ++i ] );
+      else if ( args[ i ].equals( "-maxrooms" ) && i + 1 < args.length )
+        maxRooms = Integer.parseInt( args[ ++i ] );
+      else if ( args[ i ].equals( "-users" ) && i + 1 < args.length )
+        compiledUsers = new File( args[ ++i ] );
+      else if ( args[ i ].equals( "-board" ) && i + 1 < args.length )
+        boardFile = new File( args[ ++i ] );
+      else if ( args[ i ].equals( "-journal" ) && i + 1 < args.length )
+        journalDir = new File( args[ ++i ] );
+      else if ( args[ i ].equals( "-fsync" ) && i + 1 < args.length )
+        syncMillis = Long.parseLong( args[ ++i ] );
+      else if ( args[ i ].equals( "-snapshot" ) && i + 1 < args.length )
+        snapshotEvery = Integer.parseInt( args[ ++i ] );
+      else if ( args[ i ].equals( "-hintbudget" ) && i + 1 < args.length )
+        hintBudget = Long.parseLong( args[ ++i ] );
+      else if ( args[ i ].equals( "-bots" ) && i + 1 < args.length )
+        bots = Integer.parseInt( args[ ++i ] );
+      else if ( args[ i ].equals( "-botroom" ) && i + 1 < args.length
+                && args[ i + 1 ].matches( ROOM_NAME ) )
+        botRoom = args[ ++i ];
+      else if ( args[ i ].equals( "-botdelay" ) && i + 1 < args.length )
+        botDelay = Long.parseLong( args[ ++i ] );
+      else if ( args[ i ].equals( "-sendqueue" ) && i + 1 < args.length )
+        highWater = Integer.parseInt( args[ ++i ] );
+      else if ( args[ i ].equals( "-writetimeout" ) && i + 1 < args.length )
+        writeTimeout = Long.parseLong( args[ ++i ] );
+      else if ( args[ i ].equals( "-slowclients" ) && i + 1 < args.length
+                && args[ i + 1 ].matches( OutboundQueue.POLICIES ) )
+        evict = args[ ++i ].equals( "evict" );
+      else if ( args[ i ].equals( "-cluster" ) && i + 1 < args.length )
+        clusterPort = Integer.parseInt( args[ ++i ] );
+      else if ( args[ i ].equals( "-backends" ) && i + 1 < args.length )
+        backends = new File( args[ ++i ] );
+      else if ( args[ i ].equals( "-clusterkey" ) && i + 1 < args.length )
+        clusterKey = new File( args[ ++i ] );
+      else if ( args[ i ].equals( "-handshakes" ) && i + 1 < args.length )
+        handshakeThreads = Integer.parseInt( args[ ++i ] );
+      else if ( args[ i ].equals( "-handshakequeue" ) && i + 1 < args.length )
+        handshakeQueue = Integer.parseInt( args[ ++i ] );
+      else if ( args[ i ].equals( "-loginrate" ) && i + 1 < args.length )
+        loginRate = Double.parseDouble( args[ ++i ] );
+      else if ( args[ i ].equals( "-handshaketimeout" ) && i + 1 < args.length )
+        handshakeTimeout = Long.parseLong( args[ ++i ] );
+      else {
+        System.err.println( "Usage: Server [-nio [-loops <n>] | -virtual] "
+                            + "[-engine striped|atomic|chunked] [-ticketkey <file>] [-users <file>]\n"
+                            + "              [-board <file>] [-maxrooms <n>] [-handshakes <n>] "
+                            + "[-handshakequeue <n>] [-loginrate <n>]\n"
+                            + "              [-handshaketimeout <ms>] "
+                            + "[-journal <dir> [-fsync <ms>] [-snapshot <n>]] "
+                            + "[-hintbudget <ms>]\n"
+                            + "              [-bots <n> [-botroom <room>] [-botdelay <ms>]] "
+                            + "[-sendqueue <bytes>] [-writetimeout <ms>]\n"
+                            + "              [-slowclients evict|block] "
+                            + "[-cluster <port> | -backends <file>] [-clusterkey <file>]" );
+        System.exit( 1 );
+      }
+    }
+    if ( ( clusterPort > 0 || backends != null ) && clusterKey == null ) {
+      System.err.println( "A cluster needs -clusterkey <file>" );
+      System.exit( 1 );
+    }
+    if ( backends != null && ( clusterPort > 0 || nio ) ) {
+      System.err.println( "The router can't be a backend, and doesn't run with -nio" );
+      System.exit( 1 );
+    }
+
+    // A backend keeps every room's placements, so the router can move the room.
+    backend = clusterPort > 0;
+    
+    // One-time setup.
+    try {
+      // Read the map and the public keys for all the users.  Rooms write to the journal
+      // from the start, so it's made first, but it can't be replayed until there are rooms.
+      if ( journalDir != null )
+        journal = new Journal( journalDir, syncMillis, snapshotEvery, metrics );
+      readConfig();
+
+      // Put back the game from before the last restart, and get the last placements onto
+      // the disk if we're stopped.
+      if ( journal != null ) {
+        long begin = System.nanoTime();
+        long count = journal.recover( new Journal.Replay() {
+            public void place( String room, String user, char let, int row, int col,
+                               int points ) {
+              restore( room, user, let, row, col, points );
+            }
+
+            public void drop( String room ) {
+              forget( room );
+            }
+          } );
+        System.out.println( "Recovered " + count + " placements in " + rooms.size()
+                            + " rooms in " + ( System.nanoTime() - begin ) / 1000000 + " ms" );
+        Journal j = journal;
+        Runtime.getRuntime().addShutdownHook( new Thread( () -> j.flush( 5000 ) ) );
+      }
+
+      // Hints and bots share one move search.  Bots start once any earlier game is back.
+      moveSearch = new MoveSearch( scoreSheet, hintBudget );
+      if ( bots > 0 )
+        new Bots( bots, open( botRoom ), moveSearch, metrics, botDelay );
+
+      // Keep the ticket key in a file if we're asked to, so tickets outlast a restart.
+      if ( ticketKey != null )
+        tickets = new Tickets( ticketKey );
+
+      // Logins get workers of their own, so they can't crowd out users who are playing.
+      handshakes = new HandshakeStage( handshakeThreads, handshakeQueue, loginRate,
+                                       handshakeTimeout, metrics );
+      metrics.handshakeQueue = handshakes::queued;
+
+      // Messages to each session wait in a queue of their own, with these limits.
+      if ( virtual )
+        writers = newVirtualThreadExecutor();
+      else
+        writers = Executors.newCachedThreadPool( r -> {
+            Thread t = new Thread( r, "writer" );
+            t.setDaemon( true );
+            return t;
+          } );
+      outbound = new OutboundQueue.Limits( highWater, writeTimeout, evict, writers, this::aes,
+                                           metrics );
+
+      // A router passes users on to the backends listed in the file.
+      if ( backends != null )
+        router = new Router( this, Tickets.readKey( clusterKey ), backends );
+
+      // Let JMX clients watch the metrics.
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+        metrics, new ObjectName( "boardgame:type=Metrics" ) );
+
+
+      // Open a socket for listening.  The non-blocking server opens its own channel, and a
+      // backend only listens for the router.
+      if ( !nio && !backend )
+        serverSocket = new ServerSocket( PORT_NUMBER, ACCEPT_BACKLOG );
+    } catch( Exception e ){
+      System.err.println( "Can't initialize server: " + e );
+      e.printStackTrace();
+      System.exit( 1 );
+    }
+
+    // A backend takes users from the router instead of logging them in itself.
+    if ( backend ) {
+      try {
+        new Backend( this, Tickets.readKey( clusterKey ) ).run( clusterPort );
+      } catch( IOException e ){
+        System.err.println( "Backend failed: " + e );
+        System.exit( 1 );
+      }
+      return;
+    }
+
+    // Serve clients from a small pool of event loops instead of a thread per client.
+    if ( nio ) {
+      try {
+        new NioServer( this, loops ).run( PORT_NUMBER );
+      } catch( IOException e ){
+        System.err.println( "Non-blocking server failed: " + e );
+        System.exit( 1 );
+      }
+      return;
+    }
+     
+    // With virtual threads, each user gets a cheap thread of its own from this executor
+    // once they've logged in.
+    ExecutorService sessions = virtual ? newVirtualThreadExecutor() : null;
+
+    // Keep trying to accept new connections and serve them.
+    while( true ){
+      try {
+        // Try to get a new client connection, and send it off to log in.
+        Socket sock = serverSocket.accept();
+        admit( sock, sessions );
+
+      } catch( IOException e ){
+        System.err.println( "Failure accepting client " + e );
+      }
+    }
+  }
+
+  /**
+   * Starting point for the program. Creates a server object and begins to run it.
+   * @param args The program arguments given at runtime
+   */
+  public static void main( String[] args ) {
+    // Make a server object, so we can have non-static fields.
+    Server server = new Server();
+    server.run( args );
+  }
+}
@@ -0,0 +1,207 @@
+/**
+ * Measures how well the server holds up with a large number of logged-in users. It starts a
+ * server in this process in the chosen mode, logs in many sessions, and then has every session
+ * issue commands, reporting login rate, command throughput, and the threads and memory the
+ * server needed to do it.
+ * @file SessionBenchmark.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the thread-per-client, virtual thread and non-blocking modes of the server.  Run it
+ * once per mode with the same arguments and compare the reports.  Each session needs a file
+ * descriptor on both ends, so large runs need a higher open file limit (ulimit -n).
+ */
+public class SessionBenchmark {
+  /** Mode names accepted on the command line, and the server options for each. */
+  private static final String[][] MODES = {
+    { "thread" },
+    { "virtual", "-virtual" },
+    { "nio", "-nio" }
+  };
+
+  /**
+   * Runs the benchmark.
+   * @param args The mode, then the number of sessions, rounds of commands and client threads
+   */
+  public static void main( String[] args ) throws Exception {
+    if ( args.length < 2 ) {
+      System.out.println( "Usage: SessionBenchmark <thread|virtual|nio> <sessions> "
+                          + "[rounds] [client-threads]" );
+      System.exit( -1 );
+    }
+
+    String[] serverArgs = null;
+    for ( String[] mode : MODES )
+      if ( mode[ 0 ].equals( args[ 0 ] ) ) {
+        serverArgs = new String [ mode.length - 1 ];
+        System.arraycopy( mode, 1, serverArgs, 0, serverArgs.length );
+      }
+    if ( serverArgs == null ) {
+      System.out.println( "Unknown mode: " + args[ 0 ] );
+      System.exit( -1 );
+    }
+
+    int sessions = Integer.parseInt( args[ 1 ] );
+    int rounds = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 10;
+    int workers = args.length > 3 ? Integer.parseInt( args[ 3 ] )
+      : Runtime.getRuntime().availableProcessors() * 4;
+
+    List< String > names = new ArrayList< String >();
+    List< PrivateKey > keys = new ArrayList< PrivateKey >();
+    readUsers( names, keys );
+
+    // Start up the server on a thread of its own, and wait for it to take connections.
+    String[] runArgs = serverArgs;
+    Thread serverThread = new Thread( () -> new Server().run( runArgs ), "server" );
+    serverThread.setDaemon( true );
+    serverThread.start();
+    waitForServer();
+
+    // Leave out users who can't log in, like the test user whose key doesn't match.
+    dropFailingUsers( "localhost", names, keys );
+
+    long baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+    long baseHeap = usedHeap();
+
+    // Log in all the sessions, spread across the client threads.
+    ExecutorService pool = Executors.newFixedThreadPool( workers );
+    List< List< Client.Connection > > shares = new ArrayList< List< Client.Connection > >();
+    AtomicInteger failed = new AtomicInteger();
+    List< Future< ? > > done = new ArrayList< Future< ? > >();
+    long start = System.nanoTime();
+    for ( int w = 0; w < workers; w++ ) {
+      List< Client.Connection > share = new ArrayList< Client.Connection >();
+      shares.add( share );
+      int first = w;
+      done.add( pool.submit( () -> {
+        for ( int i = first; i < sessions; i += workers ) {
+          int u = i % names.size();
+          try {
+            share.add( new Client.Connection( "localhost", Server.PORT_NUMBER,
+                                              names.get( u ), keys.get( u ) ) );
+          } catch ( Exception e ) {
+            failed.incrementAndGet();
+          }
+        }
+      } ) );
+    }
+    for ( Future< ? > f : done )
+      f.get();
+    double loginSeconds = ( System.nanoTime() - start ) / 1e9;
+    int connected = sessions - failed.get();
+
+    long threads = ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads;
+    long heap = usedHeap() - baseHeap;
+
+    // Have every session run a board command each round.
+    AtomicInteger commands = new AtomicInteger();
+    done.clear();
+    start = System.nanoTime();
+    for ( List< Client.Connection > share : shares )
+      done.add( pool.submit( () -> {
+        for ( int r = 0; r < rounds; r++ )
+          for ( Client.Connection conn : share ) {
+            try {
+              conn.request( "board" );
+              commands.incrementAndGet();
+            } catch ( Exception e ) {
+              failed.incrementAndGet();
+            }
+          }
+      } ) );
+    for ( Future< ? > f : done )
+      f.get();
+    double commandSeconds = ( System.nanoTime() - start ) / 1e9;
+
+    System.out.printf( "mode:            %s%n", args[ 0 ] );
+    System.out.printf( "sessions:        %d connected, %d failures%n", connected, failed.get() );
+    System.out.printf( "login rate:      %.0f sessions/s%n", connected / loginSeconds );
+    System.out.printf( "command rate:    %.0f commands/s%n", commands.get() / commandSeconds );
+    System.out.printf( "extra threads:   %d%n", threads );
+    System.out.printf( "extra heap:      %.1f MB (%.1f KB/session, includes client side)%n",
+                       heap / 1048576.0, heap / 1024.0 / Math.max( 1, connected ) );
+
+    for ( List< Client.Connection > share : shares )
+      for ( Client.Connection conn : share ) {
+        try {
+          conn.close();
+        } catch ( Exception e ) {
+        }
+      }
+    pool.shutdown();
+    System.exit( 0 );
+  }
+
+  /**
+   * Reads the names of all the users that have a private key we can log in with.
+   * @param names List to fill in with user names
+   * @param keys List to fill in with the matching private keys
+   */
+  static void readUsers( List< String > names, List< PrivateKey > keys ) throws Exception {
+    Scanner input = new Scanner( new File( "../input/passwd.txt" ) );
+    while ( input.hasNext() ) {
+      String name = input.next();
+      input.nextLine();
+      if ( new File( "../input/" + name + ".txt" ).exists() ) {
+        names.add( name );
+        keys.add( Client.readPrivateKey( name ) );
+      }
+    }
+    input.close();
+  }
+
+  /**
+   * Tries logging in once as each user, and leaves out the ones who can't.
+   * @param host The host the server is running on
+   * @param names User names, with any that fail removed
+   * @param keys The matching private keys, with any that fail removed
+   */
+  static void dropFailingUsers( String host, List< String > names, List< PrivateKey > keys ) {
+    for ( int u = names.size() - 1; u >= 0; u-- ) {
+      try {
+        new Client.Connection( host, Server.PORT_NUMBER, names.get( u ), keys.get( u ) ).close();
+      } catch ( Exception e ) {
+        names.remove( u );
+        keys.remove( u );
+      }
+    }
+  }
+
+  /**
+   * Waits until the server is accepting connections.
+   */
+  static void waitForServer() throws InterruptedException {
+    while ( true ) {
+      try {
+        new Socket( "localhost", Server.PORT_NUMBER ).close();
+        return;
+      } catch ( IOException e ) {
+        Thread.sleep( 50 );
+      }
+    }
+  }
+
+  /**
+   * Reports how much heap is in use after giving the collector a chance to clean up.
+   * @return Bytes of heap in use
+   */
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    System.gc();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Encrypts or decrypts the messages one side of a session sends, with the session key. New
+ * clients ask for AES-GCM, which also checks that every message arrives as it was sent, and
+ * older ones get the AES-ECB the game has always used.
+ * @file SessionCipher.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A cipher for one direction of one session.  With GCM, every message gets its own nonce:
+ * four bytes saying which way the message is going, then a count of the messages sent that
+ * way so far.  Both sides keep count, so nonces never go over the network, and a message
+ * that's dropped, repeated or out of order fails to decrypt.  ECB doesn't need a nonce, but
+ * the same block of a message always encrypts the same way, so repeated parts of the board
+ * show through.
+ *
+ * The cipher is always set up for the next message, so getOutputSize() can be asked at any
+ * time, and messages can go from one buffer to another without making any new arrays.
+ */
+public class SessionCipher {
+  /** Login option a client sends to ask for AES-GCM instead of AES-ECB. */
+  public static final String GCM_OPTION = "gcm/1";
+
+  /** Which way a cipher's messages go, to keep the nonces for the two directions apart. */
+  public static final int FROM_CLIENT = 0, FROM_SERVER = 1;
+
+  /** Size of a GCM nonce, and of the tag on the end of every GCM message. */
+  private static final int NONCE_SIZE = 12, TAG_BITS = 128;
+
+  /** The underlying cipher. */
+  private Cipher cipher;
+
+  /** Either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE. */
+  private int mode;
+
+  /** The session key. */
+  private SecretKeySpec key;
+
+  /** Nonce for the next message, with the count in its last eight bytes, or null for ECB. */
+  private ByteBuffer nonce;
+
+  /**
+   * Makes a cipher for one direction of a session.
+   * @param mode Either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+   * @param sessionKey The raw bytes of the session key
+   * @param gcm True for AES-GCM, false for AES-ECB
+   * @param direction FROM_CLIENT or FROM_SERVER, for the messages this cipher handles
+   */
+  public SessionCipher( int mode, byte[] sessionKey, boolean gcm, int direction )
+    throws GeneralSecurityException {
+    this.mode = mode;
+    if ( !gcm ) {
+      cipher = Server.aesCipher( mode, sessionKey );
+      return;
+    }
+
+    key = new SecretKeySpec( sessionKey, "AES" );
+    cipher = Cipher.getInstance( "AES/GCM/NoPadding" );
+    nonce = ByteBuffer.allocate( NONCE_SIZE );
+    nonce.putInt( 0, direction );
+    nonce.putLong( 4, 0 );
+    cipher.init( mode, key, new GCMParameterSpec( TAG_BITS, nonce.array() ) );
+  }
+
+  /**
+   * Moves on to the next message's nonce.
+   */
+  private void next() throws GeneralSecurityException {
+    if ( nonce == null )
+      return;
+    nonce.putLong( 4, nonce.getLong( 4 ) + 1 );
+    cipher.init( mode, key, new GCMParameterSpec( TAG_BITS, nonce.array() ) );
+  }
+
+  /**
+   * Reports how big a message of a given size is once encrypted or decrypted.
+   * @param len Size of the message going in
+   * @return The most the message coming out can take
+   */
+  public int getOutputSize( int len ) {
+    return cipher.getOutputSize( len );
+  }
+
+  /**
+   * Encrypts or decrypts a message into a new array.
+   * @param msg The message
+   * @return The encrypted or decrypted message
+   */
+  public byte[] doFinal( byte[] msg ) throws GeneralSecurityException {
+    try {
+      return cipher.doFinal( msg );
+    } finally {
+      next();
+    }
+  }
+
+  /**
+   * Encrypts or decrypts a message from one buffer into another.
+   * @param msg The message, ready for reading
+   * @param out Where to put the result, with room for getOutputSize() bytes
+   * @return The number of bytes put in the result
+   */
+  public int doFinal( ByteBuffer msg, ByteBuffer out ) throws GeneralSecurityException {
+    try {
+      return cipher.doFinal( msg, out );
+    } finally {
+      next();
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/**
+ * Plays the game against itself in this process, as fast as it can, with no server, sockets
+ * or encryption. It's used to measure how fast the boards can be played on, and to see how
+ * scores come out when the rules or the board change.
+ * @file Simulator.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A headless simulator.  Each thread has a board of its own from Rules, so threads never
+ * share a lock or a cache line while they play, and resets it between games.  In a game,
+ * players take turns placing a random letter on a cell picked at random from the cells a
+ * letter can go on, until no cell can take a letter or the game reaches its most moves.
+ * Scores are kept in a histogram for each thread, and the histograms are added up at the end.
+ */
+public class Simulator {
+  /** Games played if no number is given. */
+  private static final long DEFAULT_GAMES = 100000;
+
+  /** Players in each game if no number is given. */
+  private static final int DEFAULT_PLAYERS = 4;
+
+  /** What the threads found, added up. */
+  private static class Tally {
+    // Letters placed, and points scored.
+    long moves, points;
+
+    // Every player's final score, the winner's, how far ahead the winner was, and how many
+    // moves each game took.
+    LatencyHistogram scores = new LatencyHistogram(), winners = new LatencyHistogram(),
+      margins = new LatencyHistogram(), lengths = new LatencyHistogram();
+
+    /**
+     * Adds another thread's tally to this one.
+     * @param other The other tally
+     */
+    void add( Tally other ) {
+      moves += other.moves;
+      points += other.points;
+      scores.add( other.scores );
+      winners.add( other.winners );
+      margins.add( other.margins );
+      lengths.add( other.lengths );
+    }
+  }
+
+  /**
+   * One thread's games, on its own board.  It's also the visitor that picks a cell for each
+   * move, by reservoir sampling the cells a letter can go on, so a move needs no new memory.
+   */
+  private static class Table implements GameBoard.MoveVisitor {
+    // This thread's board.
+    private GameBoard board;
+
+    // Size of the board.
+    private int height, width;
+
+    // This thread's random numbers.
+    private SplittableRandom random;
+
+    // Cells seen so far while picking a move, and the one picked.
+    private int seen, row, col;
+
+    // What this thread found.
+    private Tally tally = new Tally();
+
+    /**
+     * Sets up a table.
+     * @param board A board of the table's own, in its initial state
+     * @param template The template the board was made from
+     * @param seed Seed for the table's random numbers
+     */
+    Table( GameBoard board, BoardTemplate template, long seed ) {
+      this.board = board;
+      height = template.height();
+      width = template.width();
+      random = new SplittableRandom( seed );
+    }
+
+    /**
+     * Considers a cell for the move.  The nth cell replaces the one picked so far with a
+     * chance of 1 in n, so every cell is equally likely to end up picked.
+     * @param row The cell's row
+     * @param col The cell's column
+     * @param cell What's in the cell
+     */
+    public void visit( int row, int col, char cell ) {
+      if ( random.nextInt( ++seen ) == 0 ) {
+        this.row = row;
+        this.col = col;
+      }
+    }
+
+    /**
+     * Plays one game, then resets the board for the next.
+     * @param players Number of players
+     * @param maxMoves Most moves the game can last
+     */
+    void play( int players, long maxMoves ) {
+      long[] scores = new long [ players ];
+      long moves = 0;
+      for ( ; moves < maxMoves; moves++ ) {
+        seen = 0;
+        if ( height > 0 && width > 0 )
+          board.moves( 0, 0, height - 1, width - 1, this );
+        if ( seen == 0 )
+          break;
+
+        int points = board.place( ( char ) ( 'a' + random.nextInt( 26 ) ), row, col );
+        scores[ ( int ) ( moves % players ) ] += points;
+        tally.points += points;
+      }
+      board.reset();
+
+      tally.moves += moves;
+      tally.lengths.record( moves );
+      long best = 0, second = 0;
+      for ( long score : scores ) {
+        tally.scores.record( score );
+        if ( score > best ) {
+          second = best;
+          best = score;
+        } else if ( score > second )
+          second = score;
+      }
+      tally.winners.record( best );
+      tally.margins.record( best - second );
+    }
+  }
+
+  /**
+   * Summarizes a histogram of counts on one line.
+   * @param h The histogram
+   * @return The mean, percentiles and maximum
+   */
+  private static String summary( LatencyHistogram h ) {
+    return String.format( "mean=%.1f p50=%d p99=%d max=%d", h.mean(), h.percentile( 50 ),
+                          h.percentile( 99 ), h.max() );
+  }
+
+  /**
+   * Runs the simulator.
+   * @param args The options
+   */
+  public static void main( String[] args ) throws Exception {
+    long games = DEFAULT_GAMES;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int players = DEFAULT_PLAYERS;
+    String engine = "striped";
+    File boardFile = new File( "../input/board.txt" );
+    long maxMoves = -1;
+    long seed = System.nanoTime();
+    for ( int i = 0; i < args.length; i++ ) {
+      if ( args[ i ].equals( "-games" ) && i + 1 < args.length )
+        games = Long.parseLong( args[ ++i ] );
+      else if ( args[ i ].equals( "-threads" ) && i + 1 < args.length )
+        threads = Integer.parseInt( args[ ++i ] );
+      else if ( args[ i ].equals( "-players" ) && i + 1 < args.length )
+        players = Integer.parseInt( args[ ++i ] );
+      else if ( args[ i ].equals( "-engine" ) && i + 1 < args.length
+                && args[ i + 1 ].matches( Rules.ENGINES ) )
+        engine = args[ ++i ];
+      else if ( args[ i ].equals( "-board" ) && i + 1 < args.length )
+        boardFile = new File( args[ ++i ] );
+      else if ( args[ i ].equals( "-moves" ) && i + 1 < args.length )
+        maxMoves = Long.parseLong( args[ ++i ] );
+      else if ( args[ i ].equals( "-seed" ) && i + 1 < args.length )
+        seed = Long.parseLong( args[ ++i ] );
+      else {
+        System.out.println( "Usage: Simulator [-games <n>] [-threads <n>] [-players <n>] "
+                            + "[-engine striped|atomic|chunked]\n"
+                            + "                 [-board <file>] [-moves <n>] [-seed <n>]" );
+        System.exit( -1 );
+      }
+    }
+    if ( threads < 1 || players < 1 ) {
+      System.out.println( "Need at least one thread and one player" );
+      System.exit( -1 );
+    }
+
+    BoardTemplate template = BoardTemplate.read( boardFile );
+    Map< Character, Integer > scoreSheet = Rules.scoreSheet();
+
+    // A placed 'o' can always take another letter, so a game that never runs out of cells
+    // stops once it has had a move for every cell.
+    if ( maxMoves < 0 )
+      maxMoves = ( long ) template.height() * template.width();
+
+    // Each thread takes the next game to play until there are none left.
+    AtomicLong next = new AtomicLong();
+    ExecutorService pool = Executors.newFixedThreadPool( threads );
+    List< Future< Tally > > results = new ArrayList< Future< Tally > >();
+    long begin = System.nanoTime();
+    for ( int t = 0; t < threads; t++ ) {
+      Table table = new Table( Rules.newBoard( engine, template, scoreSheet, null ), template,
+                               seed + t );
+      long limit = games, most = maxMoves;
+      int count = players;
+      results.add( pool.submit( () -> {
+            while ( next.getAndIncrement() < limit )
+              table.play( count, most );
+            return table.tally;
+          } ) );
+    }
+
+    Tally total = new Tally();
+    for ( Future< Tally > result : results )
+      total.add( result.get() );
+    double seconds = ( System.nanoTime() - begin ) / 1e9;
+    pool.shutdown();
+
+    System.out.printf( "%d games of %d players on a %dx%d board, %s engine, %d threads, "
+                       + "seed %d%n", games, players, template.height(), template.width(),
+                       engine, threads, seed );
+    System.out.printf( "%d moves in %.2f s: %.0f moves/s, %.0f games/s%n", total.moves,
+                       seconds, total.moves / seconds, games / seconds );
+    System.out.printf( "points per move: %.2f%n",
+                       total.moves == 0 ? 0.0 : ( double ) total.points / total.moves );
+    System.out.println( "moves per game: " + summary( total.lengths ) );
+    System.out.println( "final scores: " + summary( total.scores ) );
+    System.out.println( "winning scores: " + summary( total.winners ) );
+    System.out.println( "winning margins: " + summary( total.margins ) );
+  }
+}
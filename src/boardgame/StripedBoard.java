@@ -0,0 +1,358 @@
+/**
+ * A board for the game that's split into horizontal bands of rows, each with a lock of its
+ * own. Users placing letters in different parts of the board, or displaying it, don't have to
+ * wait for each other.
+ * @file StripedBoard.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Board where each band of rows is protected by a read/write lock.  A placement write-locks the
+ * band holding its cell and read-locks the bands holding its neighbours, always in order from
+ * the top of the board down, so two placements can never deadlock.  Rendering read-locks one
+ * band at a time, so it only ever holds up placements in the band it's copying.  Which cells
+ * can take a letter is kept in a MoveIndex, so checking a placement is one bit test.
+ */
+public class StripedBoard implements GameBoard {
+  /** Most bands we'll split a board into. */
+  private static final int MAX_STRIPES = 64;
+
+  /** Original state of the board, for resetting at the start of a game. */
+  private char[][] template;
+
+  /** Current board, a 2D array of characters. */
+  private char[][] board;
+
+  /** The cells a letter can go on right now. */
+  private MoveIndex legal;
+
+  /** A map of all characters mapped with the score associated with them. */
+  private Map< Character, Integer > scoreSheet;
+
+  /** Number of rows in each band. */
+  private int stripeRows;
+
+  /** A lock for each band of rows. */
+  private ReentrantReadWriteLock[] stripes;
+
+  /** Where to record waits for locks, or null. */
+  private Metrics metrics;
+
+  /**
+   * Makes a new board in its initial state.
+   * @param template Initial contents of the board, one array per row
+   * @param width Number of columns on the board
+   * @param scoreSheet Points awarded for each letter
+   */
+  public StripedBoard( char[][] template, int width, Map< Character, Integer > scoreSheet ) {
+    this( template, width, scoreSheet, null );
+  }
+
+  /**
+   * Makes a new board in its initial state, recording how long placements wait for locks.
+   * @param template Initial contents of the board, one array per row
+   * @param width Number of columns on the board
+   * @param scoreSheet Points awarded for each letter
+   * @param metrics Where to record lock waits, or null
+   */
+  public StripedBoard( char[][] template, int width, Map< Character, Integer > scoreSheet,
+                       Metrics metrics ) {
+    this.metrics = metrics;
+    this.template = template;
+    this.scoreSheet = scoreSheet;
+    board = new char [ template.length ][ width ];
+    legal = new MoveIndex( template.length, width );
+
+    int height = Math.max( 1, template.length );
+    int count = Math.min( MAX_STRIPES, height );
+    stripeRows = ( height + count - 1 ) / count;
+    stripes = new ReentrantReadWriteLock [ ( height + stripeRows - 1 ) / stripeRows ];
+    for ( int i = 0; i < stripes.length; i++ )
+      stripes[ i ] = new ReentrantReadWriteLock();
+
+    reset();
+  }
+
+  /**
+   * Set the game board back to its initial state.
+   */
+  public void reset() {
+    for ( int s = 0; s < stripes.length; s++ )
+      stripes[ s ].writeLock().lock();
+    try {
+      for ( int i = 0; i < board.length; i++ )
+        for ( int j = 0; j < board[ i ].length; j++ )
+          board[ i ][ j ] = template[ i ][ j ];
+
+      // Work out where letters can go from scratch, just this once.
+      legal.clear();
+      for ( int i = 0; i < board.length; i++ )
+        for ( int j = 0; j < board[ i ].length; j++ )
+          if ( board[ i ][ j ] == 'o' || ( isOpen( board[ i ][ j ] ) && hasLetterNext( i, j ) ) )
+            legal.set( i, j );
+    } finally {
+      for ( int s = stripes.length - 1; s >= 0; s-- )
+        stripes[ s ].writeLock().unlock();
+    }
+  }
+
+  /**
+   * Puts a letter back where it was placed before the server stopped.
+   * @param let The letter
+   * @param row The row it was placed in, on the board
+   * @param col The column it was placed in, on the board
+   */
+  public void restore( char let, int row, int col ) {
+    // The neighbours' bands are locked too, since their cells can take a letter now.
+    int first = Math.max( row - 1, 0 ) / stripeRows;
+    int last = Math.min( row + 1, board.length - 1 ) / stripeRows;
+    for ( int s = first; s <= last; s++ )
+      stripes[ s ].writeLock().lock();
+    try {
+      board[ row ][ col ] = let;
+      landed( let, row, col );
+    } finally {
+      for ( int s = last; s >= first; s-- )
+        stripes[ s ].writeLock().unlock();
+    }
+  }
+
+  /**
+   * Attempts to place a letter on the board at a particular location.  Only the bands holding
+   * the cell and its neighbours above and below are locked.
+   * @param let The letter to place
+   * @param row The row the user wishes to place a letter
+   * @param col The column the user wishes to place a letter
+   * @return The points awarded for the letter, or 0 if it can't be placed there
+   */
+  public int place( char let, int row, int col ) {
+    if ( !onBoard( row, col ) )
+      return 0;
+
+    // Lock our band for writing, and the bands just above and below for reading.
+    int mine = row / stripeRows;
+    int first = Math.max( row - 1, 0 ) / stripeRows;
+    int last = Math.min( row + 1, board.length - 1 ) / stripeRows;
+    for ( int s = first; s <= last; s++ )
+      if ( s == mine )
+        lock( stripes[ s ].writeLock() );
+      else
+        lock( stripes[ s ].readLock() );
+
+    try {
+      return placeLocked( let, row, col );
+    } finally {
+      for ( int s = last; s >= first; s-- )
+        if ( s == mine )
+          stripes[ s ].writeLock().unlock();
+        else
+          stripes[ s ].readLock().unlock();
+    }
+  }
+
+  /**
+   * Places a group of letters as one transaction.  Every band any of the letters needs is
+   * locked before the first letter goes down, top to bottom as usual, and held until the last
+   * one is in.
+   * @param lets The letters to place
+   * @param rows The row for each letter
+   * @param cols The column for each letter
+   * @param count How many letters there are
+   * @param points Filled in with the points awarded for each letter, 0 if it couldn't be placed
+   */
+  public void placeAll( char[] lets, int[] rows, int[] cols, int count, int[] points ) {
+    // Work out which bands we need, and whether we need to write to them.
+    boolean[] read = new boolean [ stripes.length ];
+    boolean[] write = new boolean [ stripes.length ];
+    for ( int i = 0; i < count; i++ ) {
+      if ( !onBoard( rows[ i ], cols[ i ] ) )
+        continue;
+      write[ rows[ i ] / stripeRows ] = true;
+      read[ Math.max( rows[ i ] - 1, 0 ) / stripeRows ] = true;
+      read[ Math.min( rows[ i ] + 1, board.length - 1 ) / stripeRows ] = true;
+    }
+
+    for ( int s = 0; s < stripes.length; s++ )
+      if ( write[ s ] )
+        lock( stripes[ s ].writeLock() );
+      else if ( read[ s ] )
+        lock( stripes[ s ].readLock() );
+
+    try {
+      for ( int i = 0; i < count; i++ )
+        points[ i ] = onBoard( rows[ i ], cols[ i ] )
+          ? placeLocked( lets[ i ], rows[ i ], cols[ i ] ) : 0;
+    } finally {
+      for ( int s = stripes.length - 1; s >= 0; s-- )
+        if ( write[ s ] )
+          stripes[ s ].writeLock().unlock();
+        else if ( read[ s ] )
+          stripes[ s ].readLock().unlock();
+    }
+  }
+
+  /**
+   * Takes a lock.  If someone else has it, we time how long we wait for it.  Taking a free
+   * lock is just counted, so the common case costs no more than it did.
+   * @param lock The lock to take
+   */
+  private void lock( Lock lock ) {
+    if ( lock.tryLock() ) {
+      if ( metrics != null )
+        metrics.lockFree.increment();
+      return;
+    }
+
+    long begin = System.nanoTime();
+    lock.lock();
+    if ( metrics != null )
+      metrics.lockWait.record( System.nanoTime() - begin );
+  }
+
+  /**
+   * Checks that a location is on the board.
+   * @param row The row the user wishes to place a letter
+   * @param col The column the user wishes to place a letter
+   * @return True if the location is on the board
+   */
+  private boolean onBoard( int row, int col ) {
+    return row >= 0 && row < board.length && col >= 0 && col < board[ row ].length;
+  }
+
+  /**
+   * Places a letter, if the rules allow it.  The caller must hold the write lock for the
+   * letter's band, and at least a read lock on the bands above and below it.
+   * @param let The letter to place
+   * @param row The row the user wishes to place a letter
+   * @param col The column the user wishes to place a letter
+   * @return The points awarded for the letter, or 0 if it can't be placed there
+   */
+  private int placeLocked( char let, int row, int col ) {
+    Integer points = scoreSheet.get( let );
+    if ( points == null || !legal.get( row, col ) )
+      return 0;
+
+    int pointsAwarded = board[ row ][ col ] == ':' ? points * 2 : points;
+    if( pointsAwarded > 0 ) {
+      board[ row ][ col ] = let;
+      landed( let, row, col );
+    }
+    return pointsAwarded;
+  }
+
+  /**
+   * Brings the index up to date after a letter lands.  Its own cell can't take another
+   * letter, unless the letter is an 'o', which counts as a starting space like any other,
+   * and the open spaces around it now can.  The caller must hold the write lock for the
+   * letter's band, and at least a read lock on the bands above and below it.
+   * @param let The letter
+   * @param row The row it went in
+   * @param col The column it went in
+   */
+  private void landed( char let, int row, int col ) {
+    if ( let != 'o' )
+      legal.clear( row, col );
+    if ( row > 0 && isOpen( board[ row - 1 ][ col ] ) )
+      legal.set( row - 1, col );
+    if ( row + 1 < board.length && isOpen( board[ row + 1 ][ col ] ) )
+      legal.set( row + 1, col );
+    if ( col > 0 && isOpen( board[ row ][ col - 1 ] ) )
+      legal.set( row, col - 1 );
+    if ( col + 1 < board[ row ].length && isOpen( board[ row ][ col + 1 ] ) )
+      legal.set( row, col + 1 );
+  }
+
+  /**
+   * Appends the contents of the board to the given builder, one band at a time.
+   * @param out The builder to add the board to
+   */
+  public void render( StringBuilder out ) {
+    for ( int s = 0; s < stripes.length; s++ ) {
+      lock( stripes[ s ].readLock() );
+      try {
+        int end = Math.min( ( s + 1 ) * stripeRows, board.length );
+        for ( int i = s * stripeRows; i < end; i++ ) {
+          out.append( board[ i ] );
+          out.append( "\n" );
+        }
+      } finally {
+        stripes[ s ].readLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Appends a rectangle of the board to the given builder, holding each band's lock only
+   * while its rows are copied.
+   * @param out The builder to add the rectangle to
+   * @param top The first row
+   * @param left The first column
+   * @param bottom The last row
+   * @param right The last column
+   */
+  public void render( StringBuilder out, int top, int left, int bottom, int right ) {
+    for ( int s = top / stripeRows; s <= bottom / stripeRows; s++ ) {
+      lock( stripes[ s ].readLock() );
+      try {
+        int end = Math.min( ( s + 1 ) * stripeRows - 1, bottom );
+        for ( int i = Math.max( s * stripeRows, top ); i <= end; i++ ) {
+          out.append( board[ i ], left, right - left + 1 );
+          out.append( "\n" );
+        }
+      } finally {
+        stripes[ s ].readLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Visits the cells in a rectangle that can take a letter, holding each band's lock only
+   * while its rows are looked at.
+   * @param top The first row
+   * @param left The first column
+   * @param bottom The last row
+   * @param right The last column
+   * @param visitor What to do with each cell
+   */
+  public void moves( int top, int left, int bottom, int right, MoveVisitor visitor ) {
+    for ( int s = top / stripeRows; s <= bottom / stripeRows; s++ ) {
+      lock( stripes[ s ].readLock() );
+      try {
+        legal.forEach( Math.max( s * stripeRows, top ), left,
+                       Math.min( ( s + 1 ) * stripeRows - 1, bottom ), right,
+                       ( i, j ) -> visitor.visit( i, j, board[ i ][ j ] ) );
+      } finally {
+        stripes[ s ].readLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Checks the four cells around the given one for a letter.  A starting space counts, as it
+   * always has.
+   * @param row The row of the cell
+   * @param col The column of the cell
+   * @return True if there's a letter above, below, left or right of the cell
+   */
+  private boolean hasLetterNext( int row, int col ) {
+    return ( row > 0 && Character.isLetter( board[ row - 1 ][ col ] ) )
+      || ( row + 1 < board.length && Character.isLetter( board[ row + 1 ][ col ] ) )
+      || ( col > 0 && Character.isLetter( board[ row ][ col - 1 ] ) )
+      || ( col + 1 < board[ row ].length && Character.isLetter( board[ row ][ col + 1 ] ) );
+  }
+
+  /**
+   * Reports whether a cell is an open space, which can take a letter once there's one next
+   * to it.
+   * @param c What's in the cell
+   * @return True for '.' and ':' spaces
+   */
+  private static boolean isOpen( char c ) {
+    return c == '.' || c == ':';
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Pushes board changes out to users who have subscribed to them, so they don't have to keep
+ * asking for the board to see other players' moves.
+ * @file Subscriptions.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fan-out of placements to subscribed sessions.  Placements just schedule a dispatch pass on a
+ * pool of workers shared with every other room, and only one pass is ever waiting or running
+ * at a time.  A pass sends each subscriber everything that's changed since the last event it
+ * was sent, but never has more than one event on its way to a subscriber at a time.  A slow
+ * subscriber just gets fewer, bigger events, and subscribers that are caught up share one
+ * rendering of each change.  A busy room gets one pass at a time like any other, so it can't
+ * keep the workers from the rest.
+ */
+public class Subscriptions {
+  /** A session that board changes can be pushed to. */
+  interface Subscriber {
+    /**
+     * Starts sending an event to the client, without waiting for it to be written.
+     * @param event The text of the event
+     * @param done To be run once the event has been written, or the connection has failed
+     */
+    void push( byte[] event, Runnable done );
+  }
+
+  /** Renders the changes between two versions of the board. */
+  interface Renderer {
+    /**
+     * Renders the changes after one version of the board up to another.
+     * @param since Version the subscriber already has
+     * @param upTo Version to bring them up to
+     * @return The text of the event
+     */
+    byte[] changes( long since, long upTo );
+  }
+
+  /** What we know about one subscriber. */
+  private static class Subscription {
+    // Where to send events.
+    final Subscriber subscriber;
+
+    // Version of the board the subscriber has been sent.
+    volatile long sent;
+
+    // True while an event is on its way to this subscriber.
+    final AtomicBoolean busy = new AtomicBoolean();
+
+    /**
+     * Makes a subscription starting from the given version.
+     * @param subscriber Where to send events
+     * @param sent Version the subscriber already has
+     */
+    Subscription( Subscriber subscriber, long sent ) {
+      this.subscriber = subscriber;
+      this.sent = sent;
+    }
+  }
+
+  /** Versions of the board, for knowing when there's something to send. */
+  private BoardHistory history;
+
+  /** Renders events. */
+  private Renderer renderer;
+
+  /** Everyone who's subscribed. */
+  private Map< Subscriber, Subscription > subscriptions =
+    new ConcurrentHashMap< Subscriber, Subscription >();
+
+  /** Workers that run dispatch passes. */
+  private Executor workers;
+
+  /** True while a dispatch pass is waiting for a worker. */
+  private AtomicBoolean scheduled = new AtomicBoolean();
+
+  /**
+   * Makes the subscription list.
+   * @param history Versions of the board
+   * @param renderer Renders the changes between versions
+   * @param workers Workers to run dispatch passes on
+   */
+  public Subscriptions( BoardHistory history, Renderer renderer, Executor workers ) {
+    this.history = history;
+    this.renderer = renderer;
+    this.workers = workers;
+  }
+
+  /**
+   * Starts sending board changes to a session.
+   * @param subscriber The session to send changes to
+   * @return The version of the board changes will be sent from
+   */
+  public long subscribe( Subscriber subscriber ) {
+    long v = history.version();
+    subscriptions.put( subscriber, new Subscription( subscriber, v ) );
+    return v;
+  }
+
+  /**
+   * Stops sending board changes to a session.
+   * @param subscriber The session that's no longer interested
+   * @return True if the session was subscribed
+   */
+  public boolean unsubscribe( Subscriber subscriber ) {
+    return subscriptions.remove( subscriber ) != null;
+  }
+
+  /**
+   * Lets the subscriptions know the board has changed.  This is cheap, so it's fine to call on
+   * every placement.
+   */
+  public void changed() {
+    if ( !subscriptions.isEmpty() )
+      schedule();
+  }
+
+  /**
+   * Queues a dispatch pass, unless there's one waiting already.
+   */
+  private void schedule() {
+    if ( scheduled.compareAndSet( false, true ) )
+      workers.execute( this::dispatch );
+  }
+
+  /**
+   * A dispatch pass.  It starts an event on its way to every subscriber that's behind and
+   * isn't still being sent the previous one.  Placements that land during the pass, and
+   * subscribers that free up, queue another one.
+   */
+  private void dispatch() {
+    // Anything that happens from here on needs a pass of its own.
+    scheduled.set( false );
+    long now = history.version();
+
+    // Subscribers that were sent the same version get the same event.
+    Map< Long, byte[] > events = new HashMap< Long, byte[] >();
+    for ( Subscription sub : subscriptions.values() ) {
+      if ( sub.sent >= now || !sub.busy.compareAndSet( false, true ) )
+        continue;
+
+      byte[] event = events.get( sub.sent );
+      if ( event == null ) {
+        event = renderer.changes( sub.sent, now );
+        events.put( sub.sent, event );
+      }
+
+      sub.subscriber.push( event, () -> {
+          sub.sent = now;
+          sub.busy.set( false );
+          if ( history.version() > now )
+            schedule();
+        } );
+    }
+  }
+}
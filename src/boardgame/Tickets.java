@@ -0,0 +1,216 @@
+/**
+ * Resumption tickets, which let a user who has logged in once log in again without the RSA
+ * challenge. When everyone reconnects at once, after a server restart say, the server only
+ * has to do cheap symmetric crypto for users who come back with a ticket.
+ * @file Tickets.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and checks tickets.  A ticket holds a user's name, a random resumption secret and
+ * an expiry time, sealed with AES-GCM under a key only the server knows, so the server
+ * doesn't have to remember anything about the tickets it has handed out.  The user gets the
+ * secret along with the ticket, over their encrypted session.
+ *
+ * To resume, the client sends "ticket=<ticket>" after its username.  If the ticket is good,
+ * the handshake goes just as it usually does, except that the client proves it has the
+ * secret with an HMAC of the challenge instead of encrypting it with its private key, and the
+ * session key comes back encrypted with the secret instead of the user's public key.
+ */
+public class Tickets {
+  /** Login option a client sends, followed by its ticket, to resume. */
+  public static final String OPTION = "ticket=";
+
+  /** How long a ticket is good for. */
+  public static final long LIFETIME = TimeUnit.HOURS.toMillis( 1 );
+
+  /** Size of the resumption secret and the ticket key. */
+  private static final int SECRET_SIZE = 16, KEY_SIZE = 32;
+
+  /** Size of the nonce at the front of each ticket, and of the GCM tag at the end. */
+  private static final int NONCE_SIZE = 12, TAG_BITS = 128;
+
+  /** Source of secrets and nonces. */
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /** Cipher and MAC objects for each thread, since they're costly to look up. */
+  private static final ThreadLocal< Cipher > GCM = ThreadLocal.withInitial( () -> {
+      try {
+        return Cipher.getInstance( "AES/GCM/NoPadding" );
+      } catch ( GeneralSecurityException e ) {
+        throw new IllegalStateException( e );
+      }
+    } );
+  private static final ThreadLocal< Mac > HMAC = ThreadLocal.withInitial( () -> {
+      try {
+        return Mac.getInstance( "HmacSHA256" );
+      } catch ( GeneralSecurityException e ) {
+        throw new IllegalStateException( e );
+      }
+    } );
+
+  /** Key that tickets are sealed with. */
+  private SecretKey key;
+
+  /**
+   * Makes a ticket issuer with a new random key.  Its tickets are only good until the server
+   * stops.
+   */
+  public Tickets() {
+    byte[] raw = new byte [ KEY_SIZE ];
+    RANDOM.nextBytes( raw );
+    key = new SecretKeySpec( raw, "AES" );
+  }
+
+  /**
+   * Makes a ticket issuer whose key is kept in a file, so tickets are still good after the
+   * server restarts.  If the file doesn't exist yet, a new key is made and saved in it.
+   * @param file Where the key is kept
+   */
+  public Tickets( File file ) throws IOException {
+    key = new SecretKeySpec( readKey( file ), "AES" );
+  }
+
+  /**
+   * Reads a random key kept in a file in base 64.  If the file doesn't exist yet, a new key
+   * is made and saved in it.
+   * @param file Where the key is kept
+   * @return The raw key
+   */
+  static byte[] readKey( File file ) throws IOException {
+    byte[] raw;
+    if ( file.exists() )
+      raw = Base64.getDecoder().decode( Files.readString( file.toPath() ).trim() );
+    else {
+      raw = new byte [ KEY_SIZE ];
+      RANDOM.nextBytes( raw );
+      Files.writeString( file.toPath(), Base64.getEncoder().encodeToString( raw ) + "\n" );
+    }
+    if ( raw.length != KEY_SIZE )
+      throw new IOException( "Key in " + file + " is the wrong size" );
+    return raw;
+  }
+
+  /**
+   * Makes a new random resumption secret.
+   * @return The secret
+   */
+  public static byte[] newSecret() {
+    byte[] secret = new byte [ SECRET_SIZE ];
+    RANDOM.nextBytes( secret );
+    return secret;
+  }
+
+  /**
+   * Makes a ticket for a user.
+   * @param name The user's name
+   * @param secret The resumption secret the user will be given along with the ticket
+   * @return The ticket, as text
+   */
+  public String issue( String name, byte[] secret ) throws GeneralSecurityException {
+    byte[] nameBytes = name.getBytes( StandardCharsets.UTF_8 );
+    ByteBuffer plain = ByteBuffer.allocate( 8 + SECRET_SIZE + nameBytes.length );
+    plain.putLong( System.currentTimeMillis() + LIFETIME ).put( secret ).put( nameBytes );
+
+    byte[] nonce = new byte [ NONCE_SIZE ];
+    RANDOM.nextBytes( nonce );
+    Cipher cipher = GCM.get();
+    cipher.init( Cipher.ENCRYPT_MODE, key, new GCMParameterSpec( TAG_BITS, nonce ) );
+    byte[] sealed = cipher.doFinal( plain.array() );
+
+    ByteBuffer ticket = ByteBuffer.allocate( NONCE_SIZE + sealed.length );
+    ticket.put( nonce ).put( sealed );
+    return Base64.getUrlEncoder().withoutPadding().encodeToString( ticket.array() );
+  }
+
+  /**
+   * Checks a ticket a user has come back with.
+   * @param ticket The ticket, as text
+   * @param name The user the client says it is
+   * @return The user's resumption secret, or null if the ticket is forged, expired, or
+   *         belongs to someone else
+   */
+  public byte[] open( String ticket, String name ) {
+    try {
+      byte[] raw = Base64.getUrlDecoder().decode( ticket );
+      if ( raw.length < NONCE_SIZE + TAG_BITS / 8 )
+        return null;
+      Cipher cipher = GCM.get();
+      cipher.init( Cipher.DECRYPT_MODE, key, new GCMParameterSpec( TAG_BITS, raw, 0, NONCE_SIZE ) );
+      ByteBuffer plain = ByteBuffer.wrap( cipher.doFinal( raw, NONCE_SIZE, raw.length - NONCE_SIZE ) );
+
+      long expires = plain.getLong();
+      byte[] secret = new byte [ SECRET_SIZE ];
+      plain.get( secret );
+      String owner = StandardCharsets.UTF_8.decode( plain ).toString();
+      if ( expires < System.currentTimeMillis() || !owner.equals( name ) )
+        return null;
+      return secret;
+    } catch ( IllegalArgumentException | GeneralSecurityException e ) {
+      // Bad text, or a ticket we didn't seal.
+      return null;
+    }
+  }
+
+  /**
+   * Proves a client has the resumption secret, by taking an HMAC of the server's challenge.
+   * @param secret The resumption secret
+   * @param challenge The challenge the server sent
+   * @return The proof to send back in place of the encrypted challenge
+   */
+  public static byte[] prove( byte[] secret, byte[] challenge ) throws GeneralSecurityException {
+    Mac mac = HMAC.get();
+    mac.init( new SecretKeySpec( secret, "HmacSHA256" ) );
+    return mac.doFinal( challenge );
+  }
+
+  /**
+   * Checks a client's proof that it has the resumption secret.
+   * @param secret The resumption secret from the ticket
+   * @param challenge The challenge we sent
+   * @param proof What the client sent back
+   * @return True if the proof is right
+   */
+  public static boolean check( byte[] secret, byte[] challenge, byte[] proof )
+    throws GeneralSecurityException {
+    return MessageDigest.isEqual( prove( secret, challenge ), proof );
+  }
+
+  /**
+   * Encrypts a new session key with the resumption secret, to send in place of the session key
+   * encrypted with the user's public key.
+   * @param secret The resumption secret
+   * @param sessionKey The new session key
+   * @return The encrypted session key
+   */
+  public static byte[] wrapKey( byte[] secret, byte[] sessionKey ) throws GeneralSecurityException {
+    return Server.aesCipher( Cipher.ENCRYPT_MODE, secret ).doFinal( sessionKey );
+  }
+
+  /**
+   * Recovers a session key sent by wrapKey().
+   * @param secret The resumption secret
+   * @param wrapped The encrypted session key
+   * @return The session key
+   */
+  public static byte[] unwrapKey( byte[] secret, byte[] wrapped ) throws GeneralSecurityException {
+    return Server.aesCipher( Cipher.DECRYPT_MODE, secret ).doFinal( wrapped );
+  }
+}
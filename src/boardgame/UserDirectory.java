@@ -0,0 +1,260 @@
+/**
+ * The server's directory of users, which finds a user by name in constant time however many
+ * there are. Users can be read from the usual passwd.txt, or from a compiled directory that's
+ * mapped into memory, so a server with a huge number of users still starts straight away.
+ * @file UserDirectory.java
+ * @author Josh Ferrero (jpferrer)
+ */
+package boardgame;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Users, looked up by name through a hash index.  Public keys are kept in their encoded form
+ * and only turned into keys the first time a user logs in (see UserRec.publicKey()).
+ *
+ * A compiled directory is a file made by running this class, and is laid out as:
+ *
+ *   header   "BGUD", version, number of users, number of slots in the hash table
+ *   table    one int per slot: where a user's record starts, or 0 for an empty slot
+ *   records  for each user: name length (short), name in UTF-8, key length (short), key
+ *
+ * The table uses open addressing with linear probing, and is at least twice as big as the
+ * number of users.  The file is mapped rather than read, so only the parts of it that logins
+ * touch are ever paged in.  A user from a compiled directory gets a record the first time
+ * they're looked up, and only then shows up on the board.
+ */
+public class UserDirectory {
+  /** Marks the start of a compiled directory, and the version of the layout. */
+  private static final int MAGIC = 0x42475544, VERSION = 1;
+
+  /** Size of the header of a compiled directory. */
+  private static final int HEADER = 16;
+
+  /** Users with records, by name. */
+  private ConcurrentHashMap< String, Server.UserRec > index =
+    new ConcurrentHashMap< String, Server.UserRec >();
+
+  /** Users with records, in the order they got them, for the board, and how many there are. */
+  private volatile Server.UserRec[] roster = new Server.UserRec [ 16 ];
+  private volatile int size;
+
+  /** The mapped compiled directory, or null if users came from a text file. */
+  private ByteBuffer map;
+
+  /** Number of slots in the compiled directory's hash table. */
+  private int slots;
+
+  /**
+   * Reads users from a password file, with a line for each user giving their name and their
+   * public key in base 64.
+   * @param file The password file
+   * @return The directory
+   */
+  public static UserDirectory readText( File file ) throws IOException {
+    UserDirectory dir = new UserDirectory();
+    for ( String[] user : readPasswd( file ) )
+      dir.add( new Server.UserRec( user[ 0 ], Base64.getDecoder().decode( user[ 1 ] ) ) );
+    return dir;
+  }
+
+  /**
+   * Maps a compiled directory into memory.  Nothing in it is read until users log in.
+   * @param file The compiled directory
+   * @return The directory
+   */
+  public static UserDirectory map( File file ) throws IOException {
+    UserDirectory dir = new UserDirectory();
+    try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+      dir.map = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+    }
+    if ( dir.map.capacity() < HEADER || dir.map.getInt( 0 ) != MAGIC
+         || dir.map.getInt( 4 ) != VERSION )
+      throw new IOException( file + " isn't a compiled user directory" );
+    dir.slots = dir.map.getInt( 12 );
+    return dir;
+  }
+
+  /**
+   * Reads the names and keys from a password file.  This is done a line at a time, since a
+   * Scanner is slow when there are a lot of users.
+   * @param file The password file
+   * @return The name and base 64 key of each user, in order
+   */
+  private static List< String[] > readPasswd( File file ) throws IOException {
+    List< String[] > users = new ArrayList< String[] >();
+    try ( BufferedReader reader = new BufferedReader( new FileReader( file ) ) ) {
+      String line;
+      while ( ( line = reader.readLine() ) != null ) {
+        line = line.trim();
+        int space = line.indexOf( ' ' );
+        if ( space > 0 )
+          users.add( new String[] { line.substring( 0, space ),
+                                    line.substring( space + 1 ).trim() } );
+      }
+    }
+    return users;
+  }
+
+  /**
+   * Hashes a user's name, as stored in a compiled directory.
+   * @param name The name in UTF-8
+   * @return The hash, FNV-1a
+   */
+  private static int hash( byte[] name ) {
+    int h = 0x811C9DC5;
+    for ( byte b : name )
+      h = ( h ^ ( b & 0xFF ) ) * 0x01000193;
+    return h;
+  }
+
+  /**
+   * Adds a user who now has a record.
+   * @param rec The user's record
+   */
+  private synchronized void add( Server.UserRec rec ) {
+    Server.UserRec[] users = roster;
+    if ( size == users.length ) {
+      users = new Server.UserRec [ size * 2 ];
+      System.arraycopy( roster, 0, users, 0, size );
+      roster = users;
+    }
+    users[ size ] = rec;
+    index.put( rec.name, rec );
+    size++;
+  }
+
+  /**
+   * Finds a user by name.
+   * @param name The name the client logged in with
+   * @return The user's record, or null if there's no such user
+   */
+  public Server.UserRec find( String name ) {
+    Server.UserRec rec = index.get( name );
+    if ( rec != null || map == null )
+      return rec;
+
+    byte[] key = lookUp( name.getBytes( StandardCharsets.UTF_8 ) );
+    if ( key == null )
+      return null;
+    synchronized ( this ) {
+      // Someone else may have looked the same user up first.
+      rec = index.get( name );
+      if ( rec == null ) {
+        rec = new Server.UserRec( name, key );
+        add( rec );
+      }
+      return rec;
+    }
+  }
+
+  /**
+   * Looks a user up in the compiled directory.
+   * @param name The user's name in UTF-8
+   * @return The user's encoded public key, or null if there's no such user
+   */
+  private byte[] lookUp( byte[] name ) {
+    int tableStart = HEADER;
+    for ( int slot = hash( name ) & ( slots - 1 ); ; slot = ( slot + 1 ) & ( slots - 1 ) ) {
+      int at = map.getInt( tableStart + slot * 4 );
+      if ( at == 0 )
+        return null;
+
+      // Compare names, using absolute gets so any number of threads can look at once.
+      int len = map.getShort( at ) & 0xFFFF;
+      if ( len != name.length )
+        continue;
+      boolean same = true;
+      for ( int i = 0; i < len && same; i++ )
+        same = map.get( at + 2 + i ) == name[ i ];
+      if ( !same )
+        continue;
+
+      int keyAt = at + 2 + len;
+      byte[] key = new byte [ map.getShort( keyAt ) & 0xFFFF ];
+      map.get( keyAt + 2, key );
+      return key;
+    }
+  }
+
+  /**
+   * Reports how many users have records.
+   * @return The number of users
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets a user with a record.
+   * @param i Which one, in the order they got records, less than size()
+   * @return The user's record
+   */
+  public Server.UserRec get( int i ) {
+    return roster[ i ];
+  }
+
+  /**
+   * Compiles a password file into a directory that can be mapped.
+   * @param passwd The password file
+   * @param out Where to write the compiled directory
+   * @return The number of users
+   */
+  public static int compile( File passwd, File out ) throws IOException {
+    List< String[] > users = readPasswd( passwd );
+    int slots = Integer.highestOneBit( Math.max( 1, users.size() ) * 2 - 1 ) << 1;
+    int[] table = new int [ slots ];
+
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream recordOut = new DataOutputStream( records );
+    int recordStart = HEADER + slots * 4;
+    for ( String[] user : users ) {
+      byte[] name = user[ 0 ].getBytes( StandardCharsets.UTF_8 );
+      byte[] key = Base64.getDecoder().decode( user[ 1 ] );
+      int slot = hash( name ) & ( slots - 1 );
+      while ( table[ slot ] != 0 )
+        slot = ( slot + 1 ) & ( slots - 1 );
+      table[ slot ] = recordStart + recordOut.size();
+
+      recordOut.writeShort( name.length );
+      recordOut.write( name );
+      recordOut.writeShort( key.length );
+      recordOut.write( key );
+    }
+
+    try ( DataOutputStream fileOut = new DataOutputStream(
+            new BufferedOutputStream( new FileOutputStream( out ) ) ) ) {
+      fileOut.writeInt( MAGIC );
+      fileOut.writeInt( VERSION );
+      fileOut.writeInt( users.size() );
+      fileOut.writeInt( slots );
+      for ( int at : table )
+        fileOut.writeInt( at );
+      records.writeTo( fileOut );
+    }
+    return users.size();
+  }
+
+  /**
+   * Compiles a password file from the command line, for starting the server with -users.
+   * @param args The password file and where to write the compiled directory
+   */
+  public static void main( String[] args ) throws IOException {
+    if ( args.length != 2 ) {
+      System.out.println( "Usage: UserDirectory <passwd-file> <compiled-directory>" );
+      System.exit( -1 );
+    }
+    long begin = System.nanoTime();
+    int count = compile( new File( args[ 0 ] ), new File( args[ 1 ] ) );
+    System.out.printf( "compiled %d users in %.0f ms%n", count,
+                       ( System.nanoTime() - begin ) / 1e6 );
+  }
+}